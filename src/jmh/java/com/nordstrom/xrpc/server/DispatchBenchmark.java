@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameWriter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersEncoder;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Full request dispatch through the server's handlers on an {@link EmbeddedChannel}: routing,
+ * method dispatch, running the handler, and writing the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+  /** Offset of the stream id in an HTTP/2 frame header. */
+  private static final int STREAM_ID_OFFSET = 5;
+
+  /**
+   * Netty logs through java.util.logging when no SLF4J binding is present. Silence the HTTP/2 frame
+   * logger, or this measures log formatting instead of dispatch. Held here so it isn't collected.
+   */
+  private static final java.util.logging.Logger FRAME_LOGGER =
+      java.util.logging.Logger.getLogger(Http2Handler.class.getName());
+
+  static {
+    FRAME_LOGGER.setLevel(java.util.logging.Level.WARNING);
+  }
+
+  @Param({"10", "100", "1000", "10000"})
+  private int routeCount;
+
+  @Param({"LITERAL", "VARIABLE", "MIXED"})
+  private String mix;
+
+  private RoutingFixture fixture;
+  private XrpcChannelContext xctx;
+  private int next;
+
+  private EmbeddedChannel h1Channel;
+  private ResponseSink h1Sink;
+  private FullHttpRequest[] h1Requests;
+
+  private EmbeddedChannel h2Channel;
+  /** An encoded HEADERS frame for each path, with the stream id patched in per request. */
+  private ByteBuf[] h2Frames;
+
+  private ByteBuf h2Input;
+  private int h2StreamId;
+
+  @Setup
+  public void setUp() {
+    fixture = new RoutingFixture(routeCount, RoutingFixture.Mix.valueOf(mix));
+    xctx = fixture.channelContext();
+
+    h1Requests = new FullHttpRequest[RoutingFixture.PATH_COUNT];
+    for (int i = 0; i < h1Requests.length; i++) {
+      // Empty content isn't reference counted, so each request can be dispatched repeatedly.
+      h1Requests[i] =
+          new DefaultFullHttpRequest(
+              HttpVersion.HTTP_1_1, HttpMethod.GET, fixture.paths[i], Unpooled.EMPTY_BUFFER);
+    }
+    h1Sink = new ResponseSink();
+    h1Channel = new EmbeddedChannel(h1Sink, new UrlRouter(xctx), new Drain());
+
+    h2Frames = new ByteBuf[RoutingFixture.PATH_COUNT];
+    for (int i = 0; i < h2Frames.length; i++) {
+      Http2Headers headers =
+          new DefaultHttp2Headers()
+              .method("GET")
+              .scheme("https")
+              .authority("localhost")
+              .path(fixture.paths[i]);
+      h2Frames[i] =
+          encode((writer, ctx) -> writer.writeHeaders(ctx, 1, headers, 0, true, ctx.newPromise()));
+    }
+    h2Input = Unpooled.buffer();
+  }
+
+  /** Start a fresh HTTP/2 connection for each iteration, so stream ids don't run out. */
+  @Setup(Level.Iteration)
+  public void setUpConnection() {
+    h2Channel = new EmbeddedChannel(new Http2HandlerBuilder(xctx).build());
+    h2Channel.writeInbound(
+        Unpooled.wrappedBuffer(
+            Http2CodecUtil.connectionPrefaceBuf(),
+            encode(
+                (writer, ctx) -> writer.writeSettings(ctx, new Http2Settings(), ctx.newPromise())),
+            // Open the connection window wide, since the benchmark never reads the responses.
+            encode(
+                (writer, ctx) ->
+                    writer.writeWindowUpdate(
+                        ctx,
+                        0,
+                        Integer.MAX_VALUE - Http2CodecUtil.DEFAULT_WINDOW_SIZE,
+                        ctx.newPromise()))));
+    h2Channel.releaseOutbound();
+    h2StreamId = 1;
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownConnection() {
+    h2Channel.finishAndReleaseAll();
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (RoutingFixture.PATH_COUNT - 1);
+    return next;
+  }
+
+  @Benchmark
+  public Object http1() {
+    h1Channel.writeInbound(h1Requests[nextIndex()]);
+    return h1Sink.takeResponse();
+  }
+
+  @Benchmark
+  public int http2() {
+    ByteBuf frame = h2Frames[nextIndex()];
+    h2Input.clear().writeBytes(frame, frame.readerIndex(), frame.readableBytes());
+    h2Input.setInt(STREAM_ID_OFFSET, h2StreamId);
+    h2StreamId += 2;
+
+    // The decoder releases the buffer once it has read it; keep it for the next request.
+    h2Channel.writeInbound(h2Input.retain());
+    int written = h2Channel.outboundMessages().size();
+    h2Channel.releaseOutbound();
+    return written;
+  }
+
+  private interface FrameWrite {
+    void write(Http2FrameWriter writer, ChannelHandlerContext ctx) throws Exception;
+  }
+
+  /** Encode frames as a client would send them, without any HPACK state between frames. */
+  private static ByteBuf encode(FrameWrite write) {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    Http2FrameWriter writer = new DefaultHttp2FrameWriter(Http2HeadersEncoder.ALWAYS_SENSITIVE);
+    try {
+      write.write(writer, channel.pipeline().firstContext());
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+    channel.flush();
+
+    ByteBuf encoded = Unpooled.buffer();
+    for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+      encoded.writeBytes((ByteBuf) msg);
+      ReferenceCountUtil.release(msg);
+    }
+    channel.finishAndReleaseAll();
+    return encoded;
+  }
+
+  /** Captures responses, and ignores the close that follows them. */
+  private static final class ResponseSink extends ChannelOutboundHandlerAdapter {
+    private Object response;
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+      ReferenceCountUtil.release(response);
+      response = msg;
+      promise.setSuccess();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+      promise.setSuccess();
+    }
+
+    Object takeResponse() {
+      Object taken = response;
+      response = null;
+      ReferenceCountUtil.release(taken);
+      return taken;
+    }
+  }
+
+  /** Discards requests once the router has passed them on. */
+  private static final class Drain extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+}
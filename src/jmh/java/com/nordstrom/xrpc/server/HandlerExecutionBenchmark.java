@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.nordstrom.xrpc.server.http.RouteTrie;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Running a batch of blocking handlers, such as ones that call a database, each way the server can
+ * run them: inline on the event loop, which is played by the benchmark thread; offloaded to the
+ * pool of handler threads; or offloaded to virtual threads. Each operation is a batch of requests
+ * that are in flight together, and ends once all of them have responded.
+ *
+ * <p>The virtual thread runs fail on JDKs without virtual threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandlerExecutionBenchmark {
+  @Param({"INLINE", "POOLED", "VIRTUAL"})
+  private String execution;
+
+  /** The requests in flight together. */
+  @Param({"32", "1000", "10000"})
+  private int inFlight;
+
+  /** How long each handler blocks for. */
+  @Param({"1000"})
+  private int blockMicros;
+
+  private ExecutorService executor;
+  private RouteHandler handler;
+  private XrpcRequest request;
+
+  @Setup
+  public void setUp() {
+    switch (execution) {
+      case "INLINE":
+        executor = null;
+        break;
+      case "POOLED":
+        // The default pool, with a queue deep enough that no request is turned away.
+        executor = HandlerExecutors.pooled(32, 100_000);
+        break;
+      case "VIRTUAL":
+        executor = HandlerExecutors.virtual();
+        if (executor == null) {
+          throw new IllegalStateException("This JDK has no virtual threads");
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown execution: " + execution);
+    }
+
+    long blockNanos = TimeUnit.MICROSECONDS.toNanos(blockMicros);
+    Handler blocking =
+        request -> {
+          LockSupport.parkNanos(blockNanos);
+          return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        };
+    RouteTrie.Match<MethodDispatch> match =
+        RouteTable.builder()
+            .addRoute("/blocking", blocking, HttpMethod.GET)
+            .setRouteOptions(
+                "/blocking",
+                RouteOptions.builder()
+                    .execution(executor == null ? Execution.INLINE : Execution.OFFLOAD)
+                    .build())
+            .build(0, null, null)
+            .match("/blocking");
+    XrpcChannelContext xctx =
+        XrpcChannelContext.builder()
+            .requestMeter(new Meter())
+            .handlerExecutor(executor == null ? null : MoreExecutors.listeningDecorator(executor))
+            .build();
+    handler = xctx.handler(match.getValue(), match.getValue().handler(HttpMethod.GET));
+    request =
+        new XrpcRequest(
+            new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/blocking"),
+            match.getVariables(),
+            new EmbeddedChannel());
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Benchmark
+  public void batch(Blackhole blackhole) throws Exception {
+    if (handler.kind() == RouteHandler.Kind.ORDINARY) {
+      for (int i = 0; i < inFlight; i++) {
+        blackhole.consume(handler.handler().handle(request));
+      }
+      return;
+    }
+
+    List<ListenableFuture<HttpResponse>> responses = new ArrayList<>(inFlight);
+    for (int i = 0; i < inFlight; i++) {
+      responses.add(handler.asyncHandler().handleAsync(request));
+    }
+    blackhole.consume(Futures.allAsList(responses).get());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.server.http.Route;
+import com.nordstrom.xrpc.server.http.RouteTrie;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Route compilation, single-route matching, and lookup across a whole route table. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RouteBenchmark {
+  @Param({"10", "100", "1000", "10000"})
+  private int routeCount;
+
+  @Param({"LITERAL", "VARIABLE", "MIXED"})
+  private String mix;
+
+  private RoutingFixture fixture;
+  private Route[] routes;
+  private RouteTable routeTable;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    fixture = new RoutingFixture(routeCount, RoutingFixture.Mix.valueOf(mix));
+    routes = new Route[fixture.patterns.length];
+    for (int i = 0; i < routes.length; i++) {
+      routes[i] = Route.build(fixture.patterns[i]);
+    }
+    routeTable = fixture.routeTable();
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (RoutingFixture.PATH_COUNT - 1);
+    return next;
+  }
+
+  @Benchmark
+  public Route build() {
+    return Route.build(fixture.patterns[nextIndex() % fixture.patterns.length]);
+  }
+
+  /** Match one path against one route, as the linear scan used to do for every route. */
+  @Benchmark
+  public Map<String, String> groups() {
+    int index = nextIndex();
+    return routes[index % routes.length].groups(fixture.paths[index]);
+  }
+
+  @Benchmark
+  public RouteTrie.Match<MethodDispatch> tableMatch() {
+    return routeTable.match(fixture.paths[nextIndex()]);
+  }
+}
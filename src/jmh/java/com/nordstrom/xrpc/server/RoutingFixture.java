@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Meter;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.Random;
+
+/** Synthetic route tables and request paths shared by the routing benchmarks. */
+final class RoutingFixture {
+  /** The number of distinct paths each benchmark cycles through. */
+  static final int PATH_COUNT = 1024;
+
+  /** How the generated routes are split between literal and variable paths. */
+  enum Mix {
+    /** Every route is a literal path. */
+    LITERAL,
+    /** Every route captures two variables. */
+    VARIABLE,
+    /** Alternating literal and variable routes. */
+    MIXED
+  }
+
+  static final Handler OK_HANDLER = xrpcRequest -> Recipes.newResponseOk("ok");
+
+  final String[] patterns;
+  final String[] paths;
+
+  RoutingFixture(int routeCount, Mix mix) {
+    patterns = new String[routeCount];
+    for (int i = 0; i < routeCount; i++) {
+      patterns[i] = isVariable(mix, i) ? variablePattern(i) : literalPattern(i);
+    }
+
+    // A fixed seed keeps the path sequence identical across runs.
+    Random random = new Random(42);
+    paths = new String[PATH_COUNT];
+    for (int i = 0; i < PATH_COUNT; i++) {
+      int route = random.nextInt(routeCount);
+      paths[i] =
+          isVariable(mix, route)
+              ? "/api/v1/resource" + route + "/" + random.nextInt(100000) + "/items/" + i
+              : literalPattern(route);
+    }
+  }
+
+  private static boolean isVariable(Mix mix, int route) {
+    return mix == Mix.VARIABLE || (mix == Mix.MIXED && route % 2 == 1);
+  }
+
+  private static String literalPattern(int route) {
+    return "/api/v1/resource" + route + "/items";
+  }
+
+  private static String variablePattern(int route) {
+    return "/api/v1/resource" + route + "/{id}/items/{item}";
+  }
+
+  /** Compile the generated routes, each handling GET with {@link #OK_HANDLER}. */
+  RouteTable routeTable() {
+    RouteTable.Builder builder = RouteTable.builder();
+    for (String pattern : patterns) {
+      builder.addRoute(pattern, OK_HANDLER, HttpMethod.GET);
+    }
+    return builder.build(0, null, null);
+  }
+
+  /** A channel context serving the generated routes, with the meters the handlers expect. */
+  XrpcChannelContext channelContext() {
+    XrpcChannelContext ctx = XrpcChannelContext.builder().requestMeter(new Meter()).build();
+    ctx.getRouteTable().set(routeTable());
+    for (HttpResponseStatus status :
+        new HttpResponseStatus[] {
+          HttpResponseStatus.OK,
+          HttpResponseStatus.NOT_FOUND,
+          HttpResponseStatus.METHOD_NOT_ALLOWED,
+          HttpResponseStatus.INTERNAL_SERVER_ERROR
+        }) {
+      ctx.getMetersByStatusCode().put(status, new Meter());
+    }
+    return ctx;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a request must be answered, after which nobody will read the response.
+ * Deadlines pass between services as the time left, in the format of gRPC's {@code grpc-timeout}
+ * header: up to 8 digits followed by a unit, one of {@code H}, {@code M}, {@code S}, {@code m},
+ * {@code u} or {@code n} for hours down to nanoseconds. For example, {@code 250m} is 250
+ * milliseconds.
+ */
+public final class Deadline {
+  /** The header that carries deadlines, unless configured otherwise. */
+  public static final String HEADER = "grpc-timeout";
+
+  /** The most digits a timeout may have. */
+  private static final int MAX_DIGITS = 8;
+  /** The largest timeout to take as it is. Longer ones are cut to this, so as not to overflow. */
+  private static final long MAX_NANOS = Long.MAX_VALUE / 4;
+
+  private static final char[] UNITS = {'n', 'u', 'm', 'S', 'M', 'H'};
+  private static final TimeUnit[] TIME_UNITS = {
+    TimeUnit.NANOSECONDS,
+    TimeUnit.MICROSECONDS,
+    TimeUnit.MILLISECONDS,
+    TimeUnit.SECONDS,
+    TimeUnit.MINUTES,
+    TimeUnit.HOURS
+  };
+
+  /** The deadline, as a {@link System#nanoTime()}. */
+  private final long nanoTime;
+
+  private Deadline(long nanoTime) {
+    this.nanoTime = nanoTime;
+  }
+
+  /** Returns the deadline the given time from now. */
+  public static Deadline after(long duration, TimeUnit unit) {
+    return new Deadline(
+        System.nanoTime() + Math.max(0, Math.min(unit.toNanos(duration), MAX_NANOS)));
+  }
+
+  /**
+   * Returns the deadline the given timeout from now, or null if the timeout is null or malformed.
+   */
+  public static Deadline parse(CharSequence timeout) {
+    if (timeout == null || timeout.length() < 2 || timeout.length() > MAX_DIGITS + 1) {
+      return null;
+    }
+
+    long value = 0;
+    int end = timeout.length() - 1;
+    for (int i = 0; i < end; i++) {
+      char c = timeout.charAt(i);
+      if (c < '0' || c > '9') {
+        return null;
+      }
+      value = value * 10 + (c - '0');
+    }
+    char unit = timeout.charAt(end);
+    for (int i = 0; i < UNITS.length; i++) {
+      if (UNITS[i] == unit) {
+        return after(value, TIME_UNITS[i]);
+      }
+    }
+    return null;
+  }
+
+  /** Returns the time left, rounded down, which is zero or less once the deadline has passed. */
+  public long remaining(TimeUnit unit) {
+    return unit.convert(nanoTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns whether the deadline has passed. */
+  public boolean isExpired() {
+    return nanoTime - System.nanoTime() <= 0;
+  }
+
+  /** Returns whichever of this and the given deadline comes first. */
+  public Deadline min(Deadline other) {
+    return other == null || nanoTime - other.nanoTime <= 0 ? this : other;
+  }
+
+  /**
+   * Returns the time left, to send along with a request, in the finest unit that fits in 8 digits.
+   */
+  public String toTimeout() {
+    long nanos = Math.max(0, remaining(TimeUnit.NANOSECONDS));
+    for (int i = 0; i < UNITS.length; i++) {
+      long value = TIME_UNITS[i].convert(nanos, TimeUnit.NANOSECONDS);
+      if (value < 100_000_000L) {
+        return Long.toString(value) + UNITS[i];
+      }
+    }
+    return "99999999H";
+  }
+
+  @Override
+  public String toString() {
+    return "Deadline in " + remaining(TimeUnit.MILLISECONDS) + "ms";
+  }
+}
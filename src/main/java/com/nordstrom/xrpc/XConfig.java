@@ -16,8 +16,10 @@
 
 package com.nordstrom.xrpc;
 
+import com.google.common.primitives.Ints;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import java.util.List;
 
 /**
  * A configuration object for the xrpc framework. This can be left with defaults, or provided with a
@@ -31,14 +33,39 @@ public class XConfig {
   private final int readerIdleTimeout;
   private final int writerIdleTimeout;
   private final int allIdleTimeout;
+  private final int keepAliveTimeout;
+  private final int maxRequestsPerConnection;
+  private final int maxPipelinedRequests;
+  private final int maxPayloadBytes;
+  private final long asyncHandlerTimeoutMillis;
+  private final String deadlineHeader;
+  private final long http2MaxConcurrentStreams;
+  private final int http2InitialWindowSize;
+  private final long http2HeaderTableSize;
+  private final int http2MaxFrameSize;
+  private final long http2MaxHeaderListSize;
+  private final int http2ConnectionWindowSize;
+  private final int http2MaxConnectionWindowSize;
+  private final double http2FrameTraceSampleRate;
+  private final int http2FrameTraceRingSize;
+  private final int http2FrameTraceConnections;
   private final String workerNameFormat;
   private final int bossThreadCount;
   private final int workerThreadCount;
+  private final int handlerThreadCount;
+  private final int handlerQueueSize;
+  private final boolean handlerVirtualThreads;
   private final int maxConnections;
   private final double rateLimit;
   private final String cert;
   private final String key;
   private final int port;
+  private final boolean cleartext;
+  private final int routeCacheSize;
+  private final int compressionLevel;
+  private final int compressionMinSize;
+  private final List<String> compressibleContentTypes;
+  private final long compressionCacheBytes;
 
   /**
    * Construct a config object using the default configuration values <a
@@ -60,14 +87,40 @@ public class XConfig {
     readerIdleTimeout = config.getInt("reader_idle_timeout_seconds");
     writerIdleTimeout = config.getInt("writer_idle_timeout_seconds");
     allIdleTimeout = config.getInt("all_idle_timeout_seconds");
+    keepAliveTimeout = config.getInt("keep_alive_timeout_seconds");
+    maxRequestsPerConnection = config.getInt("max_requests_per_connection");
+    maxPipelinedRequests = config.getInt("max_pipelined_requests");
+    maxPayloadBytes = Ints.checkedCast(config.getBytes("max_payload_bytes"));
+    asyncHandlerTimeoutMillis = config.getLong("async_handler_timeout_millis");
+    deadlineHeader = config.getString("deadline_header");
+    http2MaxConcurrentStreams = config.getLong("http2_max_concurrent_streams");
+    http2InitialWindowSize = Ints.checkedCast(config.getBytes("http2_initial_window_size"));
+    http2HeaderTableSize = config.getBytes("http2_header_table_size");
+    http2MaxFrameSize = Ints.checkedCast(config.getBytes("http2_max_frame_size"));
+    http2MaxHeaderListSize = config.getBytes("http2_max_header_list_size");
+    http2ConnectionWindowSize = Ints.checkedCast(config.getBytes("http2_connection_window_size"));
+    http2MaxConnectionWindowSize =
+        Ints.checkedCast(config.getBytes("http2_max_connection_window_size"));
+    http2FrameTraceSampleRate = config.getDouble("http2_frame_trace_sample_rate");
+    http2FrameTraceRingSize = config.getInt("http2_frame_trace_ring_size");
+    http2FrameTraceConnections = config.getInt("http2_frame_trace_connections");
     workerNameFormat = config.getString("worker_name_format");
     bossThreadCount = config.getInt("boss_thread_count");
     workerThreadCount = config.getInt("worker_thread_count");
+    handlerThreadCount = config.getInt("handler_thread_count");
+    handlerQueueSize = config.getInt("handler_queue_size");
+    handlerVirtualThreads = config.getBoolean("handler_virtual_threads");
     maxConnections = config.getInt("max_connections");
     rateLimit = config.getDouble("req_per_sec");
     cert = config.getString("cert");
     key = config.getString("key");
     port = config.getInt("server.port");
+    cleartext = config.getBoolean("server.cleartext");
+    routeCacheSize = config.getInt("route_cache_size");
+    compressionLevel = config.getInt("compression_level");
+    compressionMinSize = Ints.checkedCast(config.getBytes("compression_min_size_bytes"));
+    compressibleContentTypes = config.getStringList("compressible_content_types");
+    compressionCacheBytes = config.getBytes("compression_cache_bytes");
   }
 
   public int readerIdleTimeout() {
@@ -82,6 +135,71 @@ public class XConfig {
     return allIdleTimeout;
   }
 
+  public int keepAliveTimeout() {
+    return keepAliveTimeout;
+  }
+
+  public int maxRequestsPerConnection() {
+    return maxRequestsPerConnection;
+  }
+
+  public int maxPipelinedRequests() {
+    return maxPipelinedRequests;
+  }
+
+  public int maxPayloadBytes() {
+    return maxPayloadBytes;
+  }
+
+  public long asyncHandlerTimeoutMillis() {
+    return asyncHandlerTimeoutMillis;
+  }
+
+  /** Returns the header clients send their deadlines in, or null if deadlines are ignored. */
+  public String deadlineHeader() {
+    return deadlineHeader.isEmpty() ? null : deadlineHeader;
+  }
+
+  public long http2MaxConcurrentStreams() {
+    return http2MaxConcurrentStreams;
+  }
+
+  public int http2InitialWindowSize() {
+    return http2InitialWindowSize;
+  }
+
+  public long http2HeaderTableSize() {
+    return http2HeaderTableSize;
+  }
+
+  public int http2MaxFrameSize() {
+    return http2MaxFrameSize;
+  }
+
+  public long http2MaxHeaderListSize() {
+    return http2MaxHeaderListSize;
+  }
+
+  public int http2ConnectionWindowSize() {
+    return http2ConnectionWindowSize;
+  }
+
+  public int http2MaxConnectionWindowSize() {
+    return http2MaxConnectionWindowSize;
+  }
+
+  public double http2FrameTraceSampleRate() {
+    return http2FrameTraceSampleRate;
+  }
+
+  public int http2FrameTraceRingSize() {
+    return http2FrameTraceRingSize;
+  }
+
+  public int http2FrameTraceConnections() {
+    return http2FrameTraceConnections;
+  }
+
   public String workerNameFormat() {
     return workerNameFormat;
   }
@@ -94,6 +212,18 @@ public class XConfig {
     return workerThreadCount;
   }
 
+  public int handlerThreadCount() {
+    return handlerThreadCount;
+  }
+
+  public int handlerQueueSize() {
+    return handlerQueueSize;
+  }
+
+  public boolean handlerVirtualThreads() {
+    return handlerVirtualThreads;
+  }
+
   public int maxConnections() {
     return maxConnections;
   }
@@ -113,4 +243,28 @@ public class XConfig {
   public int port() {
     return port;
   }
+
+  public boolean cleartext() {
+    return cleartext;
+  }
+
+  public int routeCacheSize() {
+    return routeCacheSize;
+  }
+
+  public int compressionLevel() {
+    return compressionLevel;
+  }
+
+  public int compressionMinSize() {
+    return compressionMinSize;
+  }
+
+  public List<String> compressibleContentTypes() {
+    return compressibleContentTypes;
+  }
+
+  public long compressionCacheBytes() {
+    return compressionCacheBytes;
+  }
 }
@@ -20,7 +20,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.nordstrom.xrpc.Deadline;
 import com.nordstrom.xrpc.client.retry.BoundedExponentialBackoffRetry;
 import com.nordstrom.xrpc.client.retry.RetryLoop;
 import com.nordstrom.xrpc.client.retry.TracerDriver;
@@ -33,16 +35,23 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import lombok.extern.slf4j.Slf4j;
 
 /** */
 @Slf4j
-class Call {
+public class Call {
   private final XrpcClient client;
   private final String uri;
 
   private FullHttpRequest request = null;
+  /** Completes when the call should be abandoned, or null if it runs to the end. */
+  private ListenableFuture<?> cancellation = null;
+  /** When the call must be answered by, or null for no limit. */
+  private Deadline deadline = null;
+  /** The header to send the deadline in. */
+  private String deadlineHeader = Deadline.HEADER;
 
   public Call(XrpcClient client, String uri) {
 
@@ -56,10 +65,45 @@ class Call {
     return this;
   }
 
+  /**
+   * Abandon the call once the given future completes, such as the {@code getCancellation()} of the
+   * server request the call is made on behalf of, so that work nobody is waiting for stops. The
+   * response future is cancelled, and the connection closed.
+   */
+  public Call cancelOn(ListenableFuture<?> cancellation) {
+    this.cancellation = cancellation;
+
+    return this;
+  }
+
+  /**
+   * Give up on the call once the given deadline passes, such as the {@code getDeadline()} of the
+   * server request the call is made on behalf of, and tell the server the time left in the {@link
+   * Deadline#HEADER} header. The response fails with a {@link TimeoutException} once the deadline
+   * passes, straight away if it already has. A null deadline leaves the call without one.
+   */
+  public Call deadline(Deadline deadline) {
+    return deadline(deadline, Deadline.HEADER);
+  }
+
+  /** Like {@link #deadline(Deadline)}, for a server that takes deadlines in the given header. */
+  public Call deadline(Deadline deadline, String header) {
+    this.deadline = deadline;
+    this.deadlineHeader = header;
+
+    return this;
+  }
+
   public ListenableFuture<FullHttpResponse> execute() throws URISyntaxException {
     Preconditions.checkState(request != null);
+    if (deadline != null && deadline.isExpired()) {
+      return Futures.immediateFailedFuture(new TimeoutException("Deadline passed before the call"));
+    }
     final SettableFuture<FullHttpResponse> error = SettableFuture.create();
     final SettableFuture<FullHttpResponse> response = SettableFuture.create();
+    if (cancellation != null) {
+      cancellation.addListener(() -> response.cancel(true), MoreExecutors.directExecutor());
+    }
     final ListenableFuture<ChannelFuture> connectFuture =
         connect(XUrl.getInetSocket(uri), client.getBootstrap(), buildRetryLoop());
 
@@ -70,6 +114,21 @@ class Call {
           public void onSuccess(ChannelFuture result) {
             try {
               Channel channel = result.await().channel();
+              // The connection is the call's own, so closing it stops the call at the server too.
+              response.addListener(
+                  () -> {
+                    if (response.isCancelled()) {
+                      channel.close();
+                    }
+                  },
+                  MoreExecutors.directExecutor());
+              if (response.isCancelled()) {
+                return;
+              }
+              if (deadline != null) {
+                // The time left as of sending, after any retried connection attempts.
+                request.headers().set(deadlineHeader, deadline.toTimeout());
+              }
               channel.writeAndFlush(request);
 
               HttpResponseHandler responseHandler =
@@ -92,6 +151,14 @@ class Call {
       return error;
     }
 
+    if (deadline != null) {
+      // Timing out cancels the response, which closes the connection.
+      return Futures.withTimeout(
+          response,
+          Math.max(1, deadline.remaining(TimeUnit.NANOSECONDS)),
+          TimeUnit.NANOSECONDS,
+          client.getBootstrap().config().group());
+    }
     return response;
   }
 
@@ -138,7 +205,7 @@ class Call {
                 log.error("==== Service connect failure ", future.cause());
                 // Close the connection if the connection attempt has failed.
                 future.channel().close();
-                f.setException((Exception) e);
+                f.setException(e);
               }
             } else {
               log.debug("Xrpc connected to: " + server);
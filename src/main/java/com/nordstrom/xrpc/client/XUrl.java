@@ -24,6 +24,7 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -80,6 +81,90 @@ public class XUrl {
     }
   }
 
+  /**
+   * Returns the decoded path of a request target, which may be in origin form ({@code /a/b?c}) or
+   * absolute form ({@code http://host/a/b?c}). Unlike {@link #getPath(String)} this scans the
+   * target directly instead of building a {@link URI}, and only allocates when it has to decode.
+   *
+   * @return the path, or null if it contains a malformed percent-encoding
+   */
+  public static String getRequestPath(String uri) {
+    Preconditions.checkNotNull(uri);
+    int start = 0;
+    if (!uri.startsWith("/")) {
+      int authority = uri.indexOf("://");
+      if (authority >= 0) {
+        start = uri.indexOf('/', authority + 3);
+        if (start < 0) {
+          return "";
+        }
+      }
+    }
+
+    int end = start;
+    while (end < uri.length()) {
+      char c = uri.charAt(end);
+      if (c == '?' || c == '#') {
+        break;
+      }
+      end++;
+    }
+    return decodeComponent(uri, start, end, false);
+  }
+
+  /**
+   * Percent-decodes the given region of a string as UTF-8. If the region has nothing to decode it
+   * is returned as a plain substring.
+   *
+   * @param plusAsSpace whether '+' encodes a space, as it does in query strings
+   * @return the decoded region, or null if it contains a malformed percent-encoding
+   */
+  public static String decodeComponent(String s, int start, int end, boolean plusAsSpace) {
+    int first = start;
+    while (first < end) {
+      char c = s.charAt(first);
+      if (c == '%' || (plusAsSpace && c == '+')) {
+        break;
+      }
+      first++;
+    }
+    if (first == end) {
+      return s.substring(start, end);
+    }
+
+    // Each char expands to at most 3 UTF-8 bytes, and escapes only shrink.
+    byte[] bytes = new byte[(end - start) * 3];
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '%') {
+        if (i + 2 >= end) {
+          return null;
+        }
+        int high = Character.digit(s.charAt(i + 1), 16);
+        int low = Character.digit(s.charAt(i + 2), 16);
+        if (high < 0 || low < 0) {
+          return null;
+        }
+        bytes[length++] = (byte) ((high << 4) | low);
+        i += 2;
+      } else if (plusAsSpace && c == '+') {
+        bytes[length++] = ' ';
+      } else if (c < 0x80) {
+        bytes[length++] = (byte) c;
+      } else {
+        byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+        if (Character.isHighSurrogate(c) && i + 1 < end) {
+          encoded = s.substring(i, i + 2).getBytes(StandardCharsets.UTF_8);
+          i++;
+        }
+        System.arraycopy(encoded, 0, bytes, length, encoded.length);
+        length += encoded.length;
+      }
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
   public static String stripUrlParameters(String url) {
     Preconditions.checkNotNull(url);
     int paramStartIndex = url.indexOf("?");
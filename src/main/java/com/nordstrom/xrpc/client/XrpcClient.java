@@ -42,23 +42,32 @@ import javax.net.ssl.SSLException;
 import lombok.Getter;
 
 public class XrpcClient {
-  private static final int MAX_PAYLOAD_SIZE = 1 * 1024 * 1024;
+  /** The largest response body to accept, unless constructed with another limit. */
+  public static final int DEFAULT_MAX_PAYLOAD_SIZE = 1 * 1024 * 1024;
 
   @Getter private final Bootstrap bootstrap;
   private final SslContext sslCtx;
   private final String workerNameFormat = "xrpc-client-%d";
   private final int workerThreadCount = 4;
+  private final int maxPayloadSize;
 
   private EventLoopGroup workerGroup;
   private Class<? extends SocketChannel> channelClass;
 
   public XrpcClient() {
+    this.maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
     this.sslCtx = buildSslCtx();
     this.bootstrap = buildBootstrap();
   }
 
   public XrpcClient(EventLoopGroup elg) {
+    this(elg, DEFAULT_MAX_PAYLOAD_SIZE);
+  }
+
+  /** Construct a client that accepts response bodies of up to maxPayloadSize bytes. */
+  public XrpcClient(EventLoopGroup elg, int maxPayloadSize) {
     this.workerGroup = elg;
+    this.maxPayloadSize = maxPayloadSize;
     this.sslCtx = buildSslCtx();
     this.bootstrap = buildBootstrap();
   }
@@ -126,7 +135,7 @@ public class XrpcClient {
                 cp.addLast("tls", sslCtx.newHandler(ch.alloc()));
                 //cp.addLast("protocolNeg", new Http2OrHttpHandler());
                 cp.addLast("codec", new HttpClientCodec());
-                cp.addLast("aggregator", new HttpObjectAggregator(MAX_PAYLOAD_SIZE));
+                cp.addLast("aggregator", new HttpObjectAggregator(maxPayloadSize));
                 cp.addLast("responseHandler", new HttpResponseHandler());
               }
             });
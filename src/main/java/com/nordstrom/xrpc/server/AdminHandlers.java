@@ -5,7 +5,15 @@ import com.codahale.metrics.health.HealthCheck;
 import com.codahale.metrics.health.HealthCheckRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.nordstrom.xrpc.server.http.QueryParameters;
 import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.handler.codec.http.HttpMethod;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 
 public class AdminHandlers {
@@ -45,4 +53,68 @@ public class AdminHandlers {
                     mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(healthChecks)),
             Recipes.ContentType.Application_Json);
   }
+
+  /**
+   * Returns a handler that shows what HTTP/2 frames are traced, and the recent frames of each
+   * traced connection. A POST changes what is traced first, from the query parameters it has:
+   *
+   * <ul>
+   *   <li>{@code sample_rate}: the fraction of connections to trace, from 0 (tracing off) to 1
+   *   <li>{@code types}: the frame types to trace, such as {@code HEADERS,RST_STREAM}, or {@code
+   *       all}
+   *   <li>{@code ring_size}: the number of recent frames to keep for each traced connection
+   * </ul>
+   *
+   * <p>The handler does not authenticate its callers, so only serve it to trusted ones. Traced
+   * frames leave out the values of credential headers, but keep the rest of each request's headers.
+   */
+  public static Handler frameTracingHandler(FrameTracing tracing, ObjectMapper mapper) {
+    Preconditions.checkState(tracing != null);
+    Preconditions.checkState(mapper != null);
+    return xrpcRequest -> {
+      if (HttpMethod.POST.equals(xrpcRequest.getHttpRequest().method())) {
+        try {
+          tracing.setSettings(frameTracingSettings(xrpcRequest.getQuery(), tracing.getSettings()));
+        } catch (IllegalArgumentException e) {
+          return Recipes.newResponseBadRequest(e.getMessage());
+        }
+      }
+
+      FrameTracing.Settings settings = tracing.getSettings();
+      Map<String, Object> body = new LinkedHashMap<>();
+      body.put("sampleRate", settings.getSampleRate());
+      body.put("frameTypes", settings.getFrameTypes());
+      body.put("ringSize", settings.getRingSize());
+      body.put("connections", tracing.recentFrames());
+      return Recipes.newResponseOk(
+          xrpcRequest
+              .getAlloc()
+              .directBuffer()
+              .writeBytes(mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(body)),
+          Recipes.ContentType.Application_Json);
+    };
+  }
+
+  /** Returns the given settings, changed by any that are in the query. */
+  private static FrameTracing.Settings frameTracingSettings(
+      QueryParameters query, FrameTracing.Settings settings) {
+    double sampleRate = settings.getSampleRate();
+    if (query.contains("sample_rate")) {
+      sampleRate = Double.parseDouble(query.get("sample_rate"));
+    }
+    Set<FrameTracing.FrameType> frameTypes = settings.getFrameTypes();
+    if (query.contains("types")) {
+      frameTypes = EnumSet.noneOf(FrameTracing.FrameType.class);
+      for (String type :
+          Splitter.on(',').omitEmptyStrings().trimResults().split(query.get("types"))) {
+        if (type.equalsIgnoreCase("all")) {
+          frameTypes.addAll(EnumSet.allOf(FrameTracing.FrameType.class));
+        } else {
+          frameTypes.add(FrameTracing.FrameType.valueOf(type.toUpperCase(Locale.ROOT)));
+        }
+      }
+    }
+    int ringSize = query.getInt("ring_size", settings.getRingSize());
+    return new FrameTracing.Settings(sampleRate, frameTypes, ringSize);
+  }
 }
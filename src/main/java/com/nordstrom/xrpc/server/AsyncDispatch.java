@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.nordstrom.xrpc.Deadline;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs {@link AsyncHandler}s, and hands their responses back on the connection's event loop. Logs
+ * handlers that fail.
+ */
+@Slf4j
+final class AsyncDispatch {
+  private AsyncDispatch() {}
+
+  /**
+   * Start an asynchronous handler, and pass its outcome to the callback on the channel's event
+   * loop. A handler that throws, or returns or completes with null, fails. If the request is
+   * cancelled before the handler responds, the handler's future is cancelled, and the callback
+   * fails with a {@link CancellationException}; the callback should then drop the request.
+   *
+   * @param timeoutMillis how long the handler has to respond before it fails with a {@link
+   *     TimeoutException} and its future is cancelled, or zero for no limit. A request with a
+   *     deadline that comes sooner has until its deadline.
+   */
+  static void execute(
+      ChannelHandlerContext ctx,
+      AsyncHandler handler,
+      XrpcRequest request,
+      long timeoutMillis,
+      FutureCallback<HttpResponse> callback) {
+    ListenableFuture<HttpResponse> response;
+    try {
+      response = handler.handleAsync(request);
+      if (response == null) {
+        response = Futures.immediateFailedFuture(new NullPointerException("No response future"));
+      }
+    } catch (Exception e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    Deadline deadline = request.getDeadline();
+    if (deadline != null) {
+      long remaining = Math.max(1, deadline.remaining(TimeUnit.NANOSECONDS));
+      timeoutNanos = timeoutNanos > 0 ? Math.min(timeoutNanos, remaining) : remaining;
+    }
+    if (timeoutNanos > 0 && !response.isDone()) {
+      response = Futures.withTimeout(response, timeoutNanos, TimeUnit.NANOSECONDS, ctx.executor());
+    }
+    if (!response.isDone()) {
+      // Nobody will read the response to an abandoned request, so the handler can stop on it.
+      ListenableFuture<HttpResponse> handled = response;
+      request
+          .getCancellation()
+          .addListener(() -> handled.cancel(true), MoreExecutors.directExecutor());
+    }
+    Futures.addCallback(
+        response,
+        new FutureCallback<HttpResponse>() {
+          @Override
+          public void onSuccess(HttpResponse result) {
+            if (request.isCancelled()) {
+              ReferenceCountUtil.release(result);
+              callback.onFailure(new CancellationException("Request cancelled"));
+            } else if (result == null) {
+              callback.onFailure(new NullPointerException("Handler responded with null"));
+            } else {
+              callback.onSuccess(result);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable cause) {
+            // Timeouts and rejections are counted by their status, and are expected under load.
+            if (request.isCancelled()) {
+              log.debug("Request cancelled before its handler responded");
+            } else if (failureStatus(cause).equals(HttpResponseStatus.INTERNAL_SERVER_ERROR)) {
+              log.error("Error in handling Route", cause);
+            } else {
+              log.debug("Handler did not respond: {}", cause.toString());
+            }
+            callback.onFailure(cause);
+          }
+        },
+        eventLoop(ctx));
+  }
+
+  /**
+   * Returns the status to answer a request whose handler failed with the given cause, looking
+   * through the {@link CompletionException}s and {@link ExecutionException}s that futures wrap
+   * failures in.
+   */
+  static HttpResponseStatus failureStatus(Throwable cause) {
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof TimeoutException) {
+      return HttpResponseStatus.GATEWAY_TIMEOUT;
+    }
+    if (cause instanceof RejectedExecutionException) {
+      return HttpResponseStatus.SERVICE_UNAVAILABLE;
+    }
+    return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+  }
+
+  /**
+   * Returns an executor that runs tasks on the channel's event loop, straight away if already on
+   * it, so that a handler that responds at once is answered without a trip through the task queue.
+   */
+  private static Executor eventLoop(ChannelHandlerContext ctx) {
+    return command -> {
+      if (ctx.executor().inEventLoop()) {
+        command.run();
+      } else {
+        ctx.executor().execute(command);
+      }
+    };
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Handles a request without blocking the event loop, for handlers that wait on a database or
+ * another service. The handler is called on the connection's event loop, and must return without
+ * waiting; the response is written back on the event loop whenever its future completes, from any
+ * thread. Other requests, on this connection and others sharing the event loop, are served
+ * meanwhile. Register it with {@link Router#addAsyncRoute}.
+ *
+ * <p>A request whose future fails is answered with 500, and one that takes longer than its route's
+ * timeout with 504, after which its future is cancelled. The future is also cancelled if the client
+ * abandons the request; see {@link XrpcRequest#isCancelled()}. The body of the request stays valid
+ * until the future completes.
+ */
+@FunctionalInterface
+public interface AsyncHandler {
+  /** Returns the response to the request, once it is ready. */
+  ListenableFuture<HttpResponse> handleAsync(XrpcRequest request) throws IOException;
+
+  /**
+   * Returns a handler that responds with the {@link CompletionStage} the given function returns.
+   * Cancelling the response cancels the stage too, if it is a {@link Future}.
+   */
+  static AsyncHandler fromCompletionStage(
+      Function<XrpcRequest, ? extends CompletionStage<? extends HttpResponse>> handler) {
+    return request -> {
+      SettableFuture<HttpResponse> response = SettableFuture.create();
+      CompletionStage<? extends HttpResponse> stage = handler.apply(request);
+      if (stage instanceof Future) {
+        response.addListener(
+            () -> {
+              if (response.isCancelled()) {
+                ((Future<?>) stage).cancel(true);
+              }
+            },
+            MoreExecutors.directExecutor());
+      }
+      stage.whenComplete(
+          (result, failure) -> {
+            // Stages that depend on a failed stage see its failure wrapped.
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+              response.setException(failure.getCause());
+            } else if (failure != null) {
+              response.setException(failure);
+            } else {
+              response.set(result);
+            }
+          });
+      return response;
+    };
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Pauses and resumes reading from a channel on behalf of several independent parties. Reads only
+ * resume once every reason for pausing them has been withdrawn, so one party can't undo another's
+ * backpressure.
+ */
+final class AutoRead {
+  /** Why reads are paused. */
+  enum Reason {
+    /** Too many pipelined HTTP/1.1 requests are waiting for responses. */
+    PIPELINE_FULL,
+    /** A streaming handler asked for its request body to slow down. */
+    REQUEST_BODY,
+    /** A streamed response body is being written, and later requests must wait for it. */
+    RESPONSE_BODY
+  }
+
+  /** A bitmask of the reasons reads are paused on a channel. */
+  private static final AttributeKey<Integer> PAUSED = AttributeKey.valueOf("xrpc.autoReadPaused");
+
+  private AutoRead() {}
+
+  /** Stop reading from the channel until {@link #resume} is called for the same reason. */
+  static void pause(Channel channel, Reason reason) {
+    update(channel, reason, true);
+  }
+
+  /** Withdraw a reason for pausing; reads resume if no other reason remains. */
+  static void resume(Channel channel, Reason reason) {
+    update(channel, reason, false);
+  }
+
+  private static void update(Channel channel, Reason reason, boolean pause) {
+    if (!channel.eventLoop().inEventLoop()) {
+      channel.eventLoop().execute(() -> update(channel, reason, pause));
+      return;
+    }
+
+    Integer current = channel.attr(PAUSED).get();
+    int paused = current == null ? 0 : current;
+    int bit = 1 << reason.ordinal();
+    int updated = pause ? paused | bit : paused & ~bit;
+    if (updated == paused) {
+      return;
+    }
+    channel.attr(PAUSED).set(updated);
+    channel.config().setAutoRead(updated == 0);
+  }
+}
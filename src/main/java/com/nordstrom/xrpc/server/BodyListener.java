@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.IOException;
+
+/**
+ * Receives a request body for a {@link StreamingHandler}. Methods are called on the connection's
+ * event loop, in order. To slow the client down while a piece of the body is being processed
+ * elsewhere, use {@link XrpcRequest#pauseBody()} and {@link XrpcRequest#resumeBody()}.
+ */
+public interface BodyListener {
+  /**
+   * Called with each piece of the body as it arrives. The buffer is released once this returns;
+   * retain it to keep it longer.
+   */
+  void onData(ByteBuf data) throws IOException;
+
+  /**
+   * Called once the whole body has arrived.
+   *
+   * @return the response to send
+   */
+  HttpResponse onComplete() throws IOException;
+
+  /**
+   * Called instead of {@link #onComplete()} if the body can't be finished: the client went away or
+   * reset the stream, or an earlier call threw. Anything retained should be released here.
+   */
+  default void onAbort(Throwable cause) {}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import java.util.List;
+
+/**
+ * Chooses the protocol of a cleartext connection, which has no TLS handshake to negotiate it. A
+ * client that starts with the HTTP/2 connection preface is served HTTP/2 straight away ("prior
+ * knowledge"); any other client is served HTTP/1.1, and may ask to upgrade the connection to HTTP/2
+ * with {@code Upgrade: h2c}.
+ *
+ * <p>One instance per connection; removes itself once the protocol is known.
+ */
+final class CleartextHttp2OrHttpHandler extends ByteToMessageDecoder {
+  private static final ByteBuf PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+
+  private final Http2OrHttpHandler protocols;
+
+  CleartextHttp2OrHttpHandler(Http2OrHttpHandler protocols) {
+    this.protocols = protocols;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    int length = Math.min(in.readableBytes(), PREFACE.readableBytes());
+    if (!ByteBufUtil.equals(PREFACE, PREFACE.readerIndex(), in, in.readerIndex(), length)) {
+      configure(ctx, ApplicationProtocolNames.HTTP_1_1);
+    } else if (length == PREFACE.readableBytes()) {
+      configure(ctx, ApplicationProtocolNames.HTTP_2);
+    }
+    // Otherwise wait for the rest of the preface.
+  }
+
+  private void configure(ChannelHandlerContext ctx, String protocol) {
+    protocols.configurePipeline(ctx.pipeline(), protocol, true);
+    // Hands what has been read so far on to the new handlers.
+    ctx.pipeline().remove(this);
+  }
+}
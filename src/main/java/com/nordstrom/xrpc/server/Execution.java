@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+/** Where the ordinary {@link Handler}s of a route run. */
+public enum Execution {
+  /**
+   * On the connection's event loop, which is the cheapest for handlers that neither block nor take
+   * long, but holds up every other connection on that event loop while they run.
+   */
+  INLINE,
+  /**
+   * On the server's bounded handler executor, so that handlers which block or use a lot of CPU
+   * don't hold up the event loops. Requests that find the executor's queue full are answered with
+   * 503. Runs inline if the server has no handler executor.
+   */
+  OFFLOAD
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import io.netty.channel.Channel;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+
+/**
+ * Controls the tracing of HTTP/2 frames, which is off until a sample rate is set. Whenever tracing
+ * is switched on or changed, each connection is sampled in or out on its next frame. A sampled
+ * connection keeps its most recent frames of the chosen types in a ring, which the admin route
+ * shows, and logs them at DEBUG if that is enabled. Connections that aren't sampled only pay for
+ * checking the current settings on each frame.
+ *
+ * <p>The rings of the most recently sampled connections are kept, including after the connections
+ * close. Instances are thread safe, and shared by all connections.
+ */
+public final class FrameTracing {
+  /** The kinds of frame that can be traced. */
+  public enum FrameType {
+    DATA,
+    HEADERS,
+    PRIORITY,
+    RST_STREAM,
+    SETTINGS,
+    PUSH_PROMISE,
+    PING,
+    GO_AWAY,
+    WINDOW_UPDATE,
+    UNKNOWN
+  }
+
+  /** What to trace. Replaced, never modified, when tracing changes. */
+  public static final class Settings {
+    /** The fraction of connections to trace, from 0 (none) to 1 (all). */
+    @Getter private final double sampleRate;
+    /** The kinds of frame to record for a sampled connection. */
+    @Getter private final ImmutableSet<FrameType> frameTypes;
+    /** The number of recent frames to keep for each sampled connection. */
+    @Getter private final int ringSize;
+
+    public Settings(double sampleRate, Set<FrameType> frameTypes, int ringSize) {
+      Preconditions.checkArgument(
+          sampleRate >= 0 && sampleRate <= 1, "sampleRate must be from 0 to 1");
+      Preconditions.checkArgument(ringSize > 0, "ringSize must be positive");
+      this.sampleRate = sampleRate;
+      this.frameTypes = Sets.immutableEnumSet(frameTypes);
+      this.ringSize = ringSize;
+    }
+  }
+
+  private volatile Settings settings;
+  /** The rings of the most recently sampled connections, by channel id. */
+  private final Cache<String, FrameRing> rings;
+
+  /**
+   * @param settings what to trace to begin with
+   * @param maxConnections the number of sampled connections whose rings are kept
+   */
+  public FrameTracing(Settings settings, int maxConnections) {
+    this.settings = settings;
+    this.rings = CacheBuilder.newBuilder().maximumSize(maxConnections).build();
+  }
+
+  /** Returns tracing that is off, and keeps the frames of up to 16 connections once on. */
+  static FrameTracing off() {
+    return new FrameTracing(new Settings(0, EnumSet.allOf(FrameType.class), 128), 16);
+  }
+
+  public Settings getSettings() {
+    return settings;
+  }
+
+  /** Change what is traced. Every connection is sampled again on its next frame. */
+  public void setSettings(Settings settings) {
+    this.settings = Preconditions.checkNotNull(settings);
+  }
+
+  /** Returns the recent frames of each sampled connection, oldest first, by channel id. */
+  public Map<String, List<String>> recentFrames() {
+    Map<String, List<String>> frames = new LinkedHashMap<>();
+    for (Map.Entry<String, FrameRing> entry : rings.asMap().entrySet()) {
+      frames.put(entry.getKey(), entry.getValue().frames());
+    }
+    return frames;
+  }
+
+  /** Returns a new ring to record a connection's frames in, which replaces any it had before. */
+  FrameRing newRing(Channel channel, int size) {
+    FrameRing ring = new FrameRing(size);
+    rings.put(channel.id().asShortText(), ring);
+    return ring;
+  }
+
+  /** The most recent frames of a connection, up to a fixed number. */
+  static final class FrameRing {
+    private final String[] frames;
+    /** The number of frames ever added. */
+    private long added;
+
+    FrameRing(int size) {
+      this.frames = new String[size];
+    }
+
+    synchronized void add(String frame) {
+      frames[(int) (added++ % frames.length)] = frame;
+    }
+
+    /** Returns the frames held, oldest first. */
+    synchronized List<String> frames() {
+      ImmutableList.Builder<String> oldestFirst = ImmutableList.builder();
+      for (long i = Math.max(0, added - frames.length); i < added; i++) {
+        oldestFirst.add(frames[(int) (i % frames.length)]);
+      }
+      return oldestFirst.build();
+    }
+  }
+}
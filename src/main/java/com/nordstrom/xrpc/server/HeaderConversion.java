@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts response headers between HTTP/1.x and HTTP/2. This does less than Netty's {@link
+ * io.netty.handler.codec.http2.HttpConversionUtil}, which handles requests as well: response
+ * headers only need their names lower-cased and connection-specific headers dropped.
+ */
+final class HeaderConversion {
+  /** The most header names to remember the lower-case form of. */
+  private static final int MAX_NAMES = 1024;
+
+  /** Lower-case header names, by the names handlers set. */
+  private static final Map<String, AsciiString> NAMES = new ConcurrentHashMap<>();
+
+  // Netty deprecates its constants for these two, but HTTP/1.x clients still send them.
+  private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+  private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+  /** The headers which only apply to an HTTP/1.x connection, and which HTTP/2 forbids. */
+  private static final AsciiString[] CONNECTION_HEADERS = {
+    HttpHeaderNames.CONNECTION,
+    KEEP_ALIVE,
+    PROXY_CONNECTION,
+    HttpHeaderNames.TRANSFER_ENCODING,
+    HttpHeaderNames.UPGRADE,
+    HttpHeaderNames.TE
+  };
+
+  static {
+    // Seed the names with Netty's constants, so that the common headers share one instance.
+    for (Field field : HttpHeaderNames.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) && field.getType() == AsciiString.class) {
+        try {
+          AsciiString name = (AsciiString) field.get(null);
+          NAMES.put(name.toString(), name);
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+  }
+
+  private HeaderConversion() {}
+
+  /** Returns the lower-case form of a header name, which is shared for names seen before. */
+  static AsciiString name(CharSequence name) {
+    if (name instanceof AsciiString) {
+      // This is the name itself if it is already lower-case, as Netty's constants are.
+      return ((AsciiString) name).toLowerCase();
+    }
+
+    String key = name.toString();
+    AsciiString lowerCase = NAMES.get(key);
+    if (lowerCase == null) {
+      lowerCase = AsciiString.of(key).toLowerCase();
+      // Past the limit, names are converted each time rather than remembering every one.
+      if (NAMES.size() < MAX_NAMES) {
+        NAMES.put(key, lowerCase);
+      }
+    }
+    return lowerCase;
+  }
+
+  /** Returns the HTTP/2 headers for a response. */
+  static Http2Headers toHttp2(HttpResponse response) {
+    HttpHeaders headers = response.headers();
+    // The names are validated by the HTTP/1.x headers and lower-cased here, so aren't checked
+    // again.
+    Http2Headers http2 = new DefaultHttp2Headers(false, headers.size() + 1);
+    http2.status(response.status().codeAsText());
+    addHttp1(headers, http2);
+    return http2;
+  }
+
+  /** Add HTTP/1.x headers to HTTP/2 headers, leaving out the connection-specific ones. */
+  static void addHttp1(HttpHeaders source, Http2Headers destination) {
+    Iterator<Map.Entry<CharSequence, CharSequence>> iterator = source.iteratorCharSequence();
+    while (iterator.hasNext()) {
+      Map.Entry<CharSequence, CharSequence> header = iterator.next();
+      AsciiString name = name(header.getKey());
+      if (!isConnectionHeader(name)) {
+        destination.add(name, header.getValue());
+      }
+    }
+  }
+
+  /** Add HTTP/2 headers to HTTP/1.x headers, leaving out the pseudo-headers. */
+  static void addHttp2(Http2Headers source, HttpHeaders destination) {
+    for (Map.Entry<CharSequence, CharSequence> header : source) {
+      if (!Http2Headers.PseudoHeaderName.isPseudoHeader(header.getKey())) {
+        destination.add(header.getKey(), header.getValue());
+      }
+    }
+  }
+
+  private static boolean isConnectionHeader(AsciiString name) {
+    for (AsciiString connectionHeader : CONNECTION_HEADERS) {
+      if (connectionHeader.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
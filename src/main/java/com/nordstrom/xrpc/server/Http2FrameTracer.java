@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.server.FrameTracing.FrameRing;
+import com.nordstrom.xrpc.server.FrameTracing.FrameType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http2.Http2Flags;
+import io.netty.handler.codec.http2.Http2FrameLogger;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.logging.LogLevel;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Traces the frames of one HTTP/2 connection, as {@link FrameTracing} directs. Frames are only
+ * formatted if the connection is sampled and their type is chosen; payloads are summarized by their
+ * length, except for PING and GOAWAY, whose payloads are short. Headers that carry credentials are
+ * recorded without their values, as the traces are served to anyone who can reach the admin routes.
+ */
+@Slf4j
+final class Http2FrameTracer extends Http2FrameLogger {
+  /** The headers whose values are never recorded. */
+  private static final AsciiString[] REDACTED = {
+    HttpHeaderNames.AUTHORIZATION,
+    HttpHeaderNames.PROXY_AUTHORIZATION,
+    HttpHeaderNames.COOKIE,
+    HttpHeaderNames.SET_COOKIE
+  };
+
+  private final FrameTracing tracing;
+  /** The settings this connection was last sampled under. */
+  private FrameTracing.Settings sampledUnder;
+  /** Where this connection's frames are recorded, or null if it isn't sampled. */
+  private FrameRing ring;
+
+  Http2FrameTracer(FrameTracing tracing) {
+    super(LogLevel.DEBUG, Http2FrameTracer.class);
+    this.tracing = tracing;
+  }
+
+  /** Returns where to record a frame of the given type, or null if it isn't traced. */
+  private FrameRing ring(ChannelHandlerContext ctx, FrameType type) {
+    FrameTracing.Settings settings = tracing.getSettings();
+    if (settings != sampledUnder) {
+      sampledUnder = settings;
+      boolean sampled =
+          settings.getSampleRate() > 0
+              && ThreadLocalRandom.current().nextDouble() < settings.getSampleRate();
+      ring = sampled ? tracing.newRing(ctx.channel(), settings.getRingSize()) : null;
+    }
+    return ring != null && settings.getFrameTypes().contains(type) ? ring : null;
+  }
+
+  private static void trace(
+      FrameRing ring, ChannelHandlerContext ctx, Direction direction, String frame) {
+    String entry = Instant.now() + " " + direction + " " + frame;
+    ring.add(entry);
+    log.debug("{} {}", ctx.channel(), entry);
+  }
+
+  /** Formats headers for a trace, leaving out the values of those that carry credentials. */
+  private static String format(Http2Headers headers) {
+    StringBuilder formatted = new StringBuilder("[");
+    for (Map.Entry<CharSequence, CharSequence> header : headers) {
+      if (formatted.length() > 1) {
+        formatted.append(", ");
+      }
+      formatted.append(header.getKey()).append(": ");
+      formatted.append(isRedacted(header.getKey()) ? "<redacted>" : header.getValue());
+    }
+    return formatted.append(']').toString();
+  }
+
+  private static boolean isRedacted(CharSequence name) {
+    for (AsciiString redacted : REDACTED) {
+      if (redacted.contentEqualsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void logData(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      int streamId,
+      ByteBuf data,
+      int padding,
+      boolean endStream) {
+    FrameRing ring = ring(ctx, FrameType.DATA);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "DATA: streamId="
+              + streamId
+              + " padding="
+              + padding
+              + " endStream="
+              + endStream
+              + " length="
+              + data.readableBytes());
+    }
+  }
+
+  @Override
+  public void logHeaders(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      int padding,
+      boolean endStream) {
+    FrameRing ring = ring(ctx, FrameType.HEADERS);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "HEADERS: streamId="
+              + streamId
+              + " headers="
+              + format(headers)
+              + " padding="
+              + padding
+              + " endStream="
+              + endStream);
+    }
+  }
+
+  @Override
+  public void logHeaders(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      int streamDependency,
+      short weight,
+      boolean exclusive,
+      int padding,
+      boolean endStream) {
+    FrameRing ring = ring(ctx, FrameType.HEADERS);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "HEADERS: streamId="
+              + streamId
+              + " headers="
+              + format(headers)
+              + " streamDependency="
+              + streamDependency
+              + " weight="
+              + weight
+              + " exclusive="
+              + exclusive
+              + " padding="
+              + padding
+              + " endStream="
+              + endStream);
+    }
+  }
+
+  @Override
+  public void logPriority(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      int streamId,
+      int streamDependency,
+      short weight,
+      boolean exclusive) {
+    FrameRing ring = ring(ctx, FrameType.PRIORITY);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "PRIORITY: streamId="
+              + streamId
+              + " streamDependency="
+              + streamDependency
+              + " weight="
+              + weight
+              + " exclusive="
+              + exclusive);
+    }
+  }
+
+  @Override
+  public void logRstStream(
+      Direction direction, ChannelHandlerContext ctx, int streamId, long errorCode) {
+    FrameRing ring = ring(ctx, FrameType.RST_STREAM);
+    if (ring != null) {
+      trace(ring, ctx, direction, "RST_STREAM: streamId=" + streamId + " errorCode=" + errorCode);
+    }
+  }
+
+  @Override
+  public void logSettingsAck(Direction direction, ChannelHandlerContext ctx) {
+    FrameRing ring = ring(ctx, FrameType.SETTINGS);
+    if (ring != null) {
+      trace(ring, ctx, direction, "SETTINGS: ack=true");
+    }
+  }
+
+  @Override
+  public void logSettings(Direction direction, ChannelHandlerContext ctx, Http2Settings settings) {
+    FrameRing ring = ring(ctx, FrameType.SETTINGS);
+    if (ring != null) {
+      trace(ring, ctx, direction, "SETTINGS: ack=false settings=" + settings);
+    }
+  }
+
+  @Override
+  public void logPing(Direction direction, ChannelHandlerContext ctx, ByteBuf data) {
+    FrameRing ring = ring(ctx, FrameType.PING);
+    if (ring != null) {
+      trace(ring, ctx, direction, "PING: ack=false bytes=" + ByteBufUtil.hexDump(data));
+    }
+  }
+
+  @Override
+  public void logPingAck(Direction direction, ChannelHandlerContext ctx, ByteBuf data) {
+    FrameRing ring = ring(ctx, FrameType.PING);
+    if (ring != null) {
+      trace(ring, ctx, direction, "PING: ack=true bytes=" + ByteBufUtil.hexDump(data));
+    }
+  }
+
+  @Override
+  public void logPushPromise(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      int streamId,
+      int promisedStreamId,
+      Http2Headers headers,
+      int padding) {
+    FrameRing ring = ring(ctx, FrameType.PUSH_PROMISE);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "PUSH_PROMISE: streamId="
+              + streamId
+              + " promisedStreamId="
+              + promisedStreamId
+              + " headers="
+              + format(headers)
+              + " padding="
+              + padding);
+    }
+  }
+
+  @Override
+  public void logGoAway(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      int lastStreamId,
+      long errorCode,
+      ByteBuf debugData) {
+    FrameRing ring = ring(ctx, FrameType.GO_AWAY);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "GO_AWAY: lastStreamId="
+              + lastStreamId
+              + " errorCode="
+              + errorCode
+              + " debugData="
+              + debugData.toString(CharsetUtil.UTF_8));
+    }
+  }
+
+  @Override
+  public void logWindowsUpdate(
+      Direction direction, ChannelHandlerContext ctx, int streamId, int windowSizeIncrement) {
+    FrameRing ring = ring(ctx, FrameType.WINDOW_UPDATE);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "WINDOW_UPDATE: streamId=" + streamId + " windowSizeIncrement=" + windowSizeIncrement);
+    }
+  }
+
+  @Override
+  public void logUnknownFrame(
+      Direction direction,
+      ChannelHandlerContext ctx,
+      byte frameType,
+      int streamId,
+      Http2Flags flags,
+      ByteBuf data) {
+    FrameRing ring = ring(ctx, FrameType.UNKNOWN);
+    if (ring != null) {
+      trace(
+          ring,
+          ctx,
+          direction,
+          "UNKNOWN: frameType="
+              + (frameType & 0xff)
+              + " streamId="
+              + streamId
+              + " flags="
+              + flags.value()
+              + " length="
+              + data.readableBytes());
+    }
+  }
+}
@@ -2,36 +2,91 @@ package com.nordstrom.xrpc.server;
 
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http2.Http2CodecUtil.HTTP_UPGRADE_STREAM_ID;
 
-import com.google.common.collect.ImmutableMap;
-import com.nordstrom.xrpc.server.http.Route;
-import com.nordstrom.xrpc.server.http.XHttpMethod;
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.FutureCallback;
+import com.nordstrom.xrpc.client.XUrl;
+import com.nordstrom.xrpc.server.http.RouteTrie;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http2.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public final class Http2Handler extends Http2ConnectionHandler implements Http2FrameListener {
 
   private final XrpcChannelContext xctx;
-  private XrpcRequest xrpcRequest;
+  /** The requests that are waiting for the rest of their body, by stream. */
+  private final IntObjectMap<StreamState> streams = new IntObjectHashMap<>();
+  /** The writers for streams whose response bodies are being streamed. */
+  private final IntObjectMap<ResponseBodyWriter> bodyWriters = new IntObjectHashMap<>();
+  /** The requests whose asynchronous handlers haven't yet responded, by stream. */
+  private final IntObjectMap<XrpcRequest> handling = new IntObjectHashMap<>();
+
+  /** The size of the connection's receive window, which only grows. */
+  private int connectionWindowSize = Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+  /** The size to open the connection's receive window to, once the client's settings arrive. */
+  private final int initialConnectionWindowSize;
+  /** The size the connection's receive window may grow to. */
+  private final int maxConnectionWindowSize;
+  /** The bytes received since the connection's receive window last grew. */
+  private long receivedSinceGrowth;
+  /** The number of streams opened on this connection. */
+  private int streamsOpened;
 
   Http2Handler(
       XrpcChannelContext xctx,
       Http2ConnectionDecoder decoder,
       Http2ConnectionEncoder encoder,
-      Http2Settings initialSettings) {
+      Http2Settings initialSettings,
+      int connectionWindowSize,
+      int maxConnectionWindowSize) {
     super(decoder, encoder, initialSettings);
     this.xctx = xctx;
+    this.initialConnectionWindowSize = connectionWindowSize;
+    this.maxConnectionWindowSize = maxConnectionWindowSize;
   }
 
   @Override
-  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {}
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+    if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+      HttpServerUpgradeHandler.UpgradeEvent upgrade = (HttpServerUpgradeHandler.UpgradeEvent) evt;
+      try {
+        onUpgrade(ctx, upgrade.upgradeRequest());
+      } finally {
+        upgrade.release();
+      }
+    }
+  }
+
+  /** Serve the HTTP/1.1 request that upgraded the connection, which is stream 1. */
+  private void onUpgrade(ChannelHandlerContext ctx, FullHttpRequest request) {
+    Http2Headers headers =
+        HttpConversionUtil.toHttp2Headers(request.headers(), true)
+            .method(request.method().asciiName())
+            .path(request.uri())
+            .scheme(HttpScheme.HTTP.name());
+    boolean hasBody = request.content().isReadable();
+    onHeadersRead(ctx, HTTP_UPGRADE_STREAM_ID, headers, 0, !hasBody);
+    if (hasBody) {
+      onDataRead(ctx, HTTP_UPGRADE_STREAM_ID, request.content(), 0, true);
+    }
+  }
 
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -45,53 +100,75 @@ public final class Http2Handler extends Http2ConnectionHandler implements Http2F
     xctx.getRequestMeter().mark();
   }
 
-  private void executeHandler(ChannelHandlerContext ctx, int streamId, Route route)
-      throws IOException {
-    FullHttpResponse h1Resp;
-    Optional<ImmutableMap<XHttpMethod, Handler>> handlerMapOptional =
-        xctx.getRoutes()
-            .get()
-            .get(route)
-            .stream()
-            .filter(
-                m ->
-                    m.keySet()
-                        .stream()
-                        .anyMatch(
-                            mx ->
-                                mx.compareTo(
-                                        XHttpMethod.valueOf(
-                                            xrpcRequest.getH2Headers().method().toString()))
-                                    == 0))
-            .findFirst();
-
-    if (handlerMapOptional.isPresent()) {
-      h1Resp =
-          (FullHttpResponse)
-              handlerMapOptional
-                  .get()
-                  .get(handlerMapOptional.get().keySet().asList().get(0))
-                  .handle(xrpcRequest);
-    } else {
-      h1Resp =
-          (FullHttpResponse)
-              xctx.getRoutes()
-                  .get()
-                  .get(route)
-                  .stream()
-                  .filter(mx -> mx.containsKey(XHttpMethod.ANY))
-                  .findFirst()
-                  .get()
-                  .get(XHttpMethod.ANY)
-                  .handle(xrpcRequest);
+  private void executeHandler(ChannelHandlerContext ctx, int streamId, StreamState state) {
+    if (xctx.expired(state.request)) {
+      // Nobody is waiting for the response, so the handler is spared the work.
+      state.releaseBody();
+      writeResponse(ctx, streamId, HttpResponseStatus.GATEWAY_TIMEOUT, ctx.alloc().buffer(0));
+      return;
+    }
+    state.request.setData(state.body);
+    if (state.handler.kind() == RouteHandler.Kind.ASYNC) {
+      executeAsync(ctx, streamId, state);
+      return;
+    }
+    try {
+      executeHandler(ctx, streamId, state.request, state.handler.handler());
+    } finally {
+      // The body is only the handler's until it returns.
+      state.releaseBody();
     }
+  }
 
-    xctx.getMetersByStatusCode().get(h1Resp.status()).mark();
+  private void executeHandler(
+      ChannelHandlerContext ctx, int streamId, XrpcRequest request, Handler handler) {
+    try {
+      writeHandlerResponse(ctx, streamId, request, handler.handle(request));
+    } catch (IOException e) {
+      log.error("Error in handling Route", e);
+      writeError(ctx, streamId);
+    }
+  }
+
+  /**
+   * Start an asynchronous handler, and answer the request once it responds, unless the stream has
+   * gone by then.
+   */
+  private void executeAsync(ChannelHandlerContext ctx, int streamId, StreamState state) {
+    handling.put(streamId, state.request);
+    AsyncDispatch.execute(
+        ctx,
+        state.handler.asyncHandler(),
+        state.request,
+        state.timeoutMillis,
+        new FutureCallback<HttpResponse>() {
+          @Override
+          public void onSuccess(HttpResponse response) {
+            handling.remove(streamId);
+            try {
+              if (connection().stream(streamId) == null) {
+                ReferenceCountUtil.release(response);
+                return;
+              }
+              writeHandlerResponse(ctx, streamId, state.request, response);
+              flush(ctx);
+            } finally {
+              // The body is the handler's until it responds.
+              state.releaseBody();
+            }
+          }
 
-    Http2Headers responseHeaders = HttpConversionUtil.toHttp2Headers(h1Resp, true);
-    Http2DataFrame responseDataFrame = new DefaultHttp2DataFrame(h1Resp.content(), true);
-    encoder().writeHeaders(ctx, streamId, responseHeaders, 0, false, ctx.newPromise());
-    encoder().writeData(ctx, streamId, responseDataFrame.content(), 0, true, ctx.newPromise());
+          @Override
+          public void onFailure(Throwable cause) {
+            handling.remove(streamId);
+            state.releaseBody();
+            if (!state.request.isCancelled() && connection().stream(streamId) != null) {
+              writeResponse(
+                  ctx, streamId, AsyncDispatch.failureStatus(cause), ctx.alloc().buffer(0));
+              flush(ctx);
+            }
+          }
+        });
   }
 
   private void writeResponse(
@@ -99,41 +176,362 @@ public final class Http2Handler extends Http2ConnectionHandler implements Http2F
     FullHttpResponse h1Resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buffer);
     h1Resp.headers().set(CONTENT_TYPE, "text/plain");
     h1Resp.headers().setInt(CONTENT_LENGTH, buffer.readableBytes());
+    writeResponse(ctx, streamId, h1Resp);
+  }
+
+  /** Write a handler's response to a request, compressed if the client accepts it. */
+  private void writeHandlerResponse(
+      ChannelHandlerContext ctx, int streamId, XrpcRequest request, HttpResponse response) {
+    if (response instanceof FullHttpResponse) {
+      Http2Headers headers = request.getH2Headers();
+      response =
+          xctx.getCompressor()
+              .compress(
+                  (FullHttpResponse) response,
+                  headers.get(HttpHeaderNames.ACCEPT_ENCODING),
+                  headers.path().toString(),
+                  ctx.alloc());
+    }
+    // The promises go first, so that the client doesn't ask for a resource it is about to get.
+    Map<Integer, Http2Headers> pushes = promisePushes(ctx, streamId, request, response);
+    writeResponse(ctx, streamId, response);
+    for (Map.Entry<Integer, Http2Headers> push : pushes.entrySet()) {
+      serve(ctx, push.getKey(), push.getValue(), true, false);
+    }
+  }
+
+  /**
+   * Promise the client the responses a handler asked to push, as long as its response is a success
+   * and the client can take more streams.
+   *
+   * @return the requests to serve on the promised streams, by stream
+   */
+  private Map<Integer, Http2Headers> promisePushes(
+      ChannelHandlerContext ctx, int streamId, XrpcRequest request, HttpResponse response) {
+    List<String> paths = request.pushes();
+    if (paths.isEmpty() || response.status().codeClass() != HttpStatusClass.SUCCESS) {
+      return Collections.emptyMap();
+    }
+
+    Http2Connection.Endpoint<Http2LocalFlowController> local = connection().local();
+    Http2Headers headers = request.getH2Headers();
+    Map<Integer, Http2Headers> promised = new LinkedHashMap<>();
+    for (String path : paths) {
+      if (!connection().remote().allowPushTo()
+          || local.numActiveStreams() + promised.size() >= local.maxActiveStreams()) {
+        log.debug("Not pushing {}, as the client can't take more streams", path);
+        break;
+      }
+      RouteTrie.Match<MethodDispatch> routeMatch =
+          xctx.getRouteTable().get().match(XUrl.getRequestPath(path));
+      if (routeMatch == null || routeMatch.getValue().handler(HttpMethod.GET) == null) {
+        log.debug("Not pushing {}, as no GET route serves it", path);
+        continue;
+      }
+
+      Http2Headers pushHeaders =
+          new DefaultHttp2Headers()
+              .method(HttpMethod.GET.asciiName())
+              .scheme(headers.scheme())
+              .authority(headers.authority())
+              .path(path);
+      CharSequence acceptEncoding = headers.get(HttpHeaderNames.ACCEPT_ENCODING);
+      if (acceptEncoding != null) {
+        pushHeaders.set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+      }
+      int promisedStreamId = local.incrementAndGetNextStreamId();
+      encoder().writePushPromise(ctx, streamId, promisedStreamId, pushHeaders, 0, ctx.newPromise());
+      promised.put(promisedStreamId, pushHeaders);
+    }
+    return promised;
+  }
+
+  private void writeResponse(ChannelHandlerContext ctx, int streamId, HttpResponse response) {
+    Meter meter = xctx.getMetersByStatusCode().get(response.status());
+    if (meter != null) {
+      meter.mark();
+    }
+
+    Http2Headers responseHeaders =
+        response instanceof PrebuiltResponse
+            ? ((PrebuiltResponse) response).http2Headers()
+            : HeaderConversion.toHttp2(response);
+    // An empty response ends with its headers, so that nothing is left queued behind flow control
+    // if the stream is reset straight after.
+    boolean empty =
+        response instanceof FullHttpResponse
+            && !((FullHttpResponse) response).content().isReadable();
+    encoder().writeHeaders(ctx, streamId, responseHeaders, 0, empty, ctx.newPromise());
+    if (response instanceof StreamingResponse) {
+      writeStreaming(ctx, streamId, (StreamingResponse) response);
+      return;
+    }
+    FullHttpResponse h1Resp = (FullHttpResponse) response;
+    if (empty) {
+      h1Resp.release();
+      return;
+    }
+    encoder().writeData(ctx, streamId, h1Resp.content(), 0, true, ctx.newPromise());
+  }
+
+  private void writeStreaming(ChannelHandlerContext ctx, int streamId, StreamingResponse response) {
+    Http2RemoteFlowController flowController = encoder().flowController();
+    ResponseBodyWriter writer =
+        new ResponseBodyWriter(ctx, response) {
+          @Override
+          boolean isWritable() {
+            Http2Stream stream = connection().stream(streamId);
+            return stream != null && flowController.isWritable(stream);
+          }
+
+          @Override
+          ChannelFuture writeChunk(ByteBuf chunk, boolean last) {
+            return encoder().writeData(ctx, streamId, chunk, 0, last, ctx.newPromise());
+          }
+
+          @Override
+          void flush() {
+            // Through this handler, so that the flow controller writes what it has queued.
+            Http2Handler.this.flush(ctx);
+          }
+
+          @Override
+          void fail(Exception cause) {
+            resetStream(ctx, streamId, Http2Error.INTERNAL_ERROR.code(), ctx.newPromise());
+            bodyWriters.remove(streamId);
+          }
+
+          @Override
+          void finished() {
+            bodyWriters.remove(streamId);
+          }
+        };
+    bodyWriters.put(streamId, writer);
+    writer.write();
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    super.handlerAdded(ctx);
+    connection()
+        .addListener(
+            new Http2ConnectionAdapter() {
+              @Override
+              public void onStreamActive(Http2Stream stream) {
+                streamsOpened++;
+                xctx.getHttp2StreamMeter().mark();
+                xctx.getHttp2ActiveStreams().inc();
+              }
+
+              @Override
+              public void onStreamClosed(Http2Stream stream) {
+                xctx.getHttp2ActiveStreams().dec();
+                // However the stream ended, nothing more of its request will arrive.
+                StreamState state = streams.remove(stream.id());
+                if (state != null) {
+                  state.abort(new IOException("Stream " + stream.id() + " closed"));
+                }
+                cancelRequest(stream.id());
+              }
+            });
+    // Streamed response bodies carry on writing when their stream's window opens up again.
+    Http2RemoteFlowController flowController = encoder().flowController();
+    flowController.listener(
+        stream -> {
+          if (!flowController.isWritable(stream)) {
+            xctx.getHttp2OutboundWindowExhaustedMeter().mark();
+            return;
+          }
+          ResponseBodyWriter writer = bodyWriters.get(stream.id());
+          if (writer != null) {
+            writer.write();
+          }
+        });
+  }
+
+  private void writeError(ChannelHandlerContext ctx, int streamId) {
+    ByteBuf buf = ctx.channel().alloc().directBuffer();
+    buf.writeBytes("Error executing endpoint".getBytes());
+    writeResponse(ctx, streamId, HttpResponseStatus.INTERNAL_SERVER_ERROR, buf);
+  }
+
+  /**
+   * Answer a request whose body won't be accepted before any of it is read, and otherwise tell a
+   * client that is waiting to send the body to go ahead.
+   *
+   * @return whether the request was answered
+   */
+  private boolean rejectEarly(
+      ChannelHandlerContext ctx, int streamId, StreamState state, boolean endOfStream) {
+    Http2Headers headers = state.request.getH2Headers();
+    HttpResponseStatus status = null;
+    CharSequence expect = headers.get(HttpHeaderNames.EXPECT);
+    if (expect != null && !HttpHeaderValues.CONTINUE.contentEqualsIgnoreCase(expect)) {
+      status = HttpResponseStatus.EXPECTATION_FAILED;
+    } else {
+      Long contentLength = headers.getLong(HttpHeaderNames.CONTENT_LENGTH);
+      if (!state.withinLimit(contentLength == null ? 0 : contentLength)) {
+        status = HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+      }
+    }
+
+    if (status != null) {
+      // A client waiting to be told to continue hasn't started on the body, and ends the stream
+      // itself once it sees the answer.
+      reject(ctx, streamId, status, !endOfStream && expect == null);
+      return true;
+    }
+    if (expect != null && !endOfStream) {
+      Http2Headers interim =
+          new DefaultHttp2Headers().status(HttpResponseStatus.CONTINUE.codeAsText());
+      encoder().writeHeaders(ctx, streamId, interim, 0, false, ctx.newPromise());
+    }
+    return false;
+  }
+
+  /**
+   * Answer a request early.
+   *
+   * @param stopBody whether to reset the stream, so that the client stops sending the body
+   */
+  private void reject(
+      ChannelHandlerContext ctx, int streamId, HttpResponseStatus status, boolean stopBody) {
+    writeResponse(ctx, streamId, status, ctx.channel().alloc().buffer(0));
+    if (stopBody) {
+      resetStream(ctx, streamId, Http2Error.NO_ERROR.code(), ctx.newPromise());
+    }
+  }
+
+  /**
+   * Start streaming a request body to a {@link StreamingHandler}.
+   *
+   * @return whether the route has a streaming handler for the request's method
+   */
+  private boolean startStream(
+      ChannelHandlerContext ctx, int streamId, StreamState state, boolean endOfStream) {
+    if (state.handler.kind() != RouteHandler.Kind.STREAMING) {
+      return false;
+    }
+    if (xctx.expired(state.request)) {
+      reject(ctx, streamId, HttpResponseStatus.GATEWAY_TIMEOUT, !endOfStream);
+      return true;
+    }
+
+    try {
+      state.listener = state.handler.streamingHandler().onRequest(state.request);
+    } catch (Exception e) {
+      log.error("Error in handling Route", e);
+      writeError(ctx, streamId);
+      return true;
+    }
+    if (endOfStream) {
+      streamData(ctx, streamId, state, null, true);
+    } else {
+      streams.put(streamId, state);
+    }
+    return true;
+  }
 
-    Http2Headers responseHeaders = HttpConversionUtil.toHttp2Headers(h1Resp, true);
-    Http2DataFrame responseDataFrame = new DefaultHttp2DataFrame(h1Resp.content(), true);
-    encoder().writeHeaders(ctx, streamId, responseHeaders, 0, false, ctx.newPromise());
-    encoder().writeData(ctx, streamId, responseDataFrame.content(), 0, true, ctx.newPromise());
+  private void streamData(
+      ChannelHandlerContext ctx,
+      int streamId,
+      StreamState state,
+      ByteBuf data,
+      boolean endOfStream) {
+    BodyListener listener = state.listener;
+    try {
+      if (data != null && data.isReadable()) {
+        listener.onData(data);
+      }
+      if (endOfStream) {
+        streams.remove(streamId);
+        writeHandlerResponse(ctx, streamId, state.request, listener.onComplete());
+      }
+    } catch (Exception e) {
+      log.error("Error in handling Route", e);
+      streams.remove(streamId);
+      listener.onAbort(e);
+      writeError(ctx, streamId);
+    }
+  }
 
-    xctx.getMetersByStatusCode().get(status).mark();
+  private void abortStreams(Throwable cause) {
+    for (StreamState state : streams.values()) {
+      state.abort(cause);
+    }
+    streams.clear();
+    for (ResponseBodyWriter writer : bodyWriters.values()) {
+      writer.abort();
+    }
+    bodyWriters.clear();
+  }
+
+  /** Cancel the request on the given stream, if its handler is still working on it. */
+  private void cancelRequest(int streamId) {
+    XrpcRequest request = handling.remove(streamId);
+    if (request != null) {
+      request.cancel();
+    }
+  }
+
+  /** Cancel the requests that are still being handled, as their client has gone. */
+  private void cancelRequests() {
+    // Cancelling a request completes its handler's future, which takes it out of the map.
+    for (XrpcRequest request : new ArrayList<>(handling.values())) {
+      request.cancel();
+    }
+    handling.clear();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    abortStreams(new ClosedChannelException());
+    cancelRequests();
+    xctx.getHttp2StreamsPerConnection().update(streamsOpened);
+    super.channelInactive(ctx);
   }
 
   @Override
   public int onDataRead(
       ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream) {
     int processed = data.readableBytes() + padding;
+    tuneConnectionWindow(ctx, processed);
+    StreamState state = streams.get(streamId);
+    if (state == null) {
+      // The request has already been answered; the rest of its body is dropped.
+      return processed;
+    }
 
-    if (endOfStream) {
-      xrpcRequest.setData(data);
-      for (Route route : xctx.getRoutes().get().descendingKeySet()) {
-        Optional<Map<String, String>> groups =
-            Optional.ofNullable(route.groups(xrpcRequest.getH2Headers().path().toString()));
-        if (groups.isPresent()) {
-          try {
-            executeHandler(ctx, streamId, route);
-          } catch (IOException e) {
-            log.error("Error in handling Route", e);
-            // Error
-            ByteBuf buf = ctx.channel().alloc().directBuffer();
-            buf.writeBytes("Error executing endpoint".getBytes());
-            writeResponse(ctx, streamId, HttpResponseStatus.INTERNAL_SERVER_ERROR, buf);
-          }
-        }
+    if (!state.receive(data.readableBytes())) {
+      streams.remove(streamId);
+      state.abort(
+          new TooLongFrameException(
+              "Request body is larger than " + state.maxPayloadBytes + " bytes"));
+      reject(ctx, streamId, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, !endOfStream);
+    } else if (state.listener != null) {
+      // The window is replenished as soon as the data is handed over; a listener that needs to
+      // slow the client down pauses reads instead.
+      streamData(ctx, streamId, state, data, endOfStream);
+    } else {
+      state.append(ctx, data);
+      if (endOfStream) {
+        streams.remove(streamId);
+        executeHandler(ctx, streamId, state);
       }
     }
     return processed;
   }
 
+  /** Finish a request whose body was ended by its trailers, rather than by a DATA frame. */
+  private void onTrailersRead(ChannelHandlerContext ctx, int streamId, StreamState state) {
+    if (state.listener != null) {
+      streamData(ctx, streamId, state, null, true);
+    } else {
+      streams.remove(streamId);
+      executeHandler(ctx, streamId, state);
+    }
+  }
+
   @Override
   public void onHeadersRead(
       ChannelHandlerContext ctx,
@@ -141,26 +539,75 @@ public final class Http2Handler extends Http2ConnectionHandler implements Http2F
       Http2Headers headers,
       int padding,
       boolean endOfStream) {
+    // A second HEADERS frame on a stream holds the request's trailers, which end its body. The
+    // trailers themselves aren't passed on.
+    StreamState state = streams.get(streamId);
+    if (state != null) {
+      if (endOfStream) {
+        onTrailersRead(ctx, streamId, state);
+      }
+      return;
+    }
+    Http2Stream stream = connection().stream(streamId);
+    if (stream != null && stream.isTrailersReceived()) {
+      // The request has already been answered, and its trailers are dropped like its body.
+      return;
+    }
 
-    String uri = headers.path().toString();
-    for (Route route : xctx.getRoutes().get().descendingKeySet()) {
-      Optional<Map<String, String>> groups = Optional.ofNullable(route.groups(uri));
-      if (groups.isPresent()) {
-        xrpcRequest = new XrpcRequest(headers, groups.get(), ctx.channel(), streamId);
-        Optional<CharSequence> contentLength = Optional.ofNullable(headers.get("content-length"));
-        if (!contentLength.isPresent()) {
-          try {
-            executeHandler(ctx, streamId, route);
-            return;
-          } catch (IOException e) {
-            log.error("Error in handling Route", e);
-            // Error
-            ByteBuf buf = ctx.channel().alloc().directBuffer();
-            buf.writeBytes("Error executing endpoint".getBytes());
-            writeResponse(ctx, streamId, HttpResponseStatus.INTERNAL_SERVER_ERROR, buf);
-          }
-        }
+    if (headers.path() == null || headers.method() == null) {
+      reject(ctx, streamId, HttpResponseStatus.BAD_REQUEST, !endOfStream);
+      return;
+    }
+    serve(ctx, streamId, headers, endOfStream, connection().remote().allowPushTo());
+  }
+
+  /**
+   * Route a request and start serving it.
+   *
+   * @param pushEnabled whether the handler may push responses, which it can only do for requests
+   *     the client sent
+   */
+  private void serve(
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      boolean endOfStream,
+      boolean pushEnabled) {
+    String path = XUrl.getRequestPath(headers.path().toString());
+    RouteTrie.Match<MethodDispatch> routeMatch = xctx.getRouteTable().get().match(path);
+    if (routeMatch != null) {
+      MethodDispatch dispatch = routeMatch.getValue();
+      RouteHandler handler = xctx.handler(dispatch, dispatch.handler(headers.method()));
+      if (handler == null) {
+        // Answer straight away, rather than collect a body that no handler will read.
+        reject(ctx, streamId, HttpResponseStatus.METHOD_NOT_ALLOWED, !endOfStream);
+        return;
       }
+      XrpcRequest request =
+          new XrpcRequest(headers, routeMatch.getVariables(), ctx.channel(), streamId);
+      request.setDeadline(xctx.deadline(headers));
+      if (pushEnabled) {
+        request.enablePush();
+      }
+      StreamState state =
+          new StreamState(
+              request,
+              handler,
+              xctx.maxPayloadBytes(dispatch, handler),
+              xctx.asyncTimeoutMillis(dispatch));
+      if (rejectEarly(ctx, streamId, state, endOfStream)) {
+        return;
+      }
+      if (startStream(ctx, streamId, state, endOfStream)) {
+        return;
+      }
+      if (endOfStream) {
+        executeHandler(ctx, streamId, state);
+      } else {
+        // The handler runs once the rest of the body arrives in onDataRead.
+        streams.put(streamId, state);
+      }
+      return;
     }
     // No Valid Route
     ByteBuf buf = ctx.channel().alloc().directBuffer();
@@ -190,13 +637,59 @@ public final class Http2Handler extends Http2ConnectionHandler implements Http2F
       boolean exclusive) {}
 
   @Override
-  public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {}
+  public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+    StreamState state = streams.remove(streamId);
+    if (state != null) {
+      state.abort(new IOException("Stream " + streamId + " reset with error " + errorCode));
+    }
+    ResponseBodyWriter writer = bodyWriters.remove(streamId);
+    if (writer != null) {
+      writer.abort();
+    }
+    cancelRequest(streamId);
+  }
 
   @Override
   public void onSettingsAckRead(ChannelHandlerContext ctx) {}
 
   @Override
-  public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) {}
+  public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) {
+    // The connection window isn't a setting, so it is opened once the preface has been exchanged.
+    if (connectionWindowSize < initialConnectionWindowSize) {
+      growConnectionWindow(initialConnectionWindowSize - connectionWindowSize);
+    }
+  }
+
+  /**
+   * Account for request data taking up the connection's receive window, and grow the window if the
+   * client is filling it while the server keeps up. The server keeps up unless it has stopped
+   * reading, to let a slow {@link BodyListener} catch up.
+   */
+  private void tuneConnectionWindow(ChannelHandlerContext ctx, int bytes) {
+    Http2Stream connectionStream = connection().connectionStream();
+    if (decoder().flowController().windowSize(connectionStream) <= 0) {
+      xctx.getHttp2InboundWindowExhaustedMeter().mark();
+    }
+
+    receivedSinceGrowth += bytes;
+    if (receivedSinceGrowth >= connectionWindowSize
+        && connectionWindowSize < maxConnectionWindowSize
+        && ctx.channel().config().isAutoRead()) {
+      growConnectionWindow(
+          Math.min(connectionWindowSize, maxConnectionWindowSize - connectionWindowSize));
+      xctx.getHttp2WindowGrowthMeter().mark();
+    }
+  }
+
+  private void growConnectionWindow(int delta) {
+    try {
+      decoder().flowController().incrementWindowSize(connection().connectionStream(), delta);
+      connectionWindowSize += delta;
+      receivedSinceGrowth = 0;
+    } catch (Http2Exception e) {
+      log.warn("Error growing the connection window", e);
+    }
+  }
 
   @Override
   public void onPingRead(ChannelHandlerContext ctx, ByteBuf data) {}
@@ -212,14 +705,92 @@ public final class Http2Handler extends Http2ConnectionHandler implements Http2F
       Http2Headers headers,
       int padding) {}
 
+  /**
+   * A client that goes away with an error abandons its requests. One that goes away gracefully
+   * still reads the responses to the requests it has sent.
+   */
   @Override
   public void onGoAwayRead(
-      ChannelHandlerContext ctx, int lastStreamId, long errorCode, ByteBuf debugData) {}
+      ChannelHandlerContext ctx, int lastStreamId, long errorCode, ByteBuf debugData) {
+    if (errorCode != Http2Error.NO_ERROR.code()) {
+      abortStreams(new IOException("Client went away with error " + errorCode));
+      cancelRequests();
+    }
+  }
 
   @Override
   public void onWindowUpdateRead(
       ChannelHandlerContext ctx, int streamId, int windowSizeIncrement) {}
 
+  /**
+   * A request that is waiting for the rest of its body. Each stream has its own, so that the
+   * streams of a connection can interleave their frames.
+   */
+  private static final class StreamState {
+    private final XrpcRequest request;
+    /** The handler for the request's method. */
+    private final RouteHandler handler;
+    /** The largest body to accept, or -1 for no limit. */
+    private final int maxPayloadBytes;
+    /** How long the handler has to respond, if it is an {@link AsyncHandler}. */
+    private final long timeoutMillis;
+    /** The listener the body is streamed to, or null if the handler takes the whole body. */
+    private BodyListener listener;
+    /** The body received so far for a handler that takes the whole body, or null if none has. */
+    private CompositeByteBuf body;
+
+    private long received;
+
+    StreamState(
+        XrpcRequest request, RouteHandler handler, int maxPayloadBytes, long timeoutMillis) {
+      this.request = request;
+      this.handler = handler;
+      this.maxPayloadBytes = maxPayloadBytes;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Returns whether a body of the given size is within the limit. */
+    boolean withinLimit(long bytes) {
+      return maxPayloadBytes < 0 || bytes <= maxPayloadBytes;
+    }
+
+    /** Returns whether the body is still within its limit after receiving the given bytes. */
+    boolean receive(int bytes) {
+      received += bytes;
+      return withinLimit(received);
+    }
+
+    /** Add a frame of the body, which is kept rather than copied. */
+    void append(ChannelHandlerContext ctx, ByteBuf data) {
+      if (!data.isReadable()) {
+        return;
+      }
+      if (body == null) {
+        body = ctx.alloc().compositeBuffer(UrlRouter.MAX_BODY_COMPONENTS);
+      }
+      body.addComponent(true, data.retain());
+    }
+
+    void releaseBody() {
+      if (body != null) {
+        body.release();
+        body = null;
+      }
+    }
+
+    /**
+     * Tell the listener, if there is one, that the rest of the body won't arrive, and cancel the
+     * request.
+     */
+    void abort(Throwable cause) {
+      request.cancel();
+      releaseBody();
+      if (listener != null) {
+        listener.onAbort(cause);
+      }
+    }
+  }
+
   @Override
   public void onUnknownFrame(
       ChannelHandlerContext ctx, byte frameType, int streamId, Http2Flags flags, ByteBuf payload) {}
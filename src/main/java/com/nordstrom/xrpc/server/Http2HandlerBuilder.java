@@ -1,18 +1,44 @@
 package com.nordstrom.xrpc.server;
 
+import com.google.common.base.Preconditions;
+import com.nordstrom.xrpc.XConfig;
 import io.netty.handler.codec.http2.*;
-import io.netty.handler.logging.LogLevel;
 
 public final class Http2HandlerBuilder
     extends AbstractHttp2ConnectionHandlerBuilder<Http2Handler, Http2HandlerBuilder> {
 
-  private final Http2FrameLogger logger = new Http2FrameLogger(LogLevel.INFO, Http2Handler.class);
   private final XrpcChannelContext xctx;
+  private final int connectionWindowSize;
+  private final int maxConnectionWindowSize;
 
   public Http2HandlerBuilder(XrpcChannelContext xctx) {
+    this(xctx, new XConfig());
+  }
+
+  /**
+   * Build handlers with the HTTP/2 settings and connection window from the given config. Each
+   * builder traces the frames of one connection, so it must only build one handler.
+   */
+  public Http2HandlerBuilder(XrpcChannelContext xctx, XConfig config) {
+    Preconditions.checkArgument(
+        config.http2ConnectionWindowSize() >= Http2CodecUtil.DEFAULT_WINDOW_SIZE,
+        "http2_connection_window_size must be at least %s",
+        Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+    Preconditions.checkArgument(
+        config.http2MaxConnectionWindowSize() >= config.http2ConnectionWindowSize(),
+        "http2_max_connection_window_size must be at least http2_connection_window_size");
     this.xctx = xctx;
+    this.connectionWindowSize = config.http2ConnectionWindowSize();
+    this.maxConnectionWindowSize = config.http2MaxConnectionWindowSize();
 
-    frameLogger(logger);
+    frameLogger(new Http2FrameTracer(xctx.getFrameTracing()));
+    initialSettings(
+        new Http2Settings()
+            .maxConcurrentStreams(config.http2MaxConcurrentStreams())
+            .initialWindowSize(config.http2InitialWindowSize())
+            .headerTableSize(config.http2HeaderTableSize())
+            .maxFrameSize(config.http2MaxFrameSize())
+            .maxHeaderListSize(config.http2MaxHeaderListSize()));
   }
 
   @Override
@@ -25,7 +51,9 @@ public final class Http2HandlerBuilder
       Http2ConnectionDecoder decoder,
       Http2ConnectionEncoder encoder,
       Http2Settings initialSettings) {
-    Http2Handler handler = new Http2Handler(xctx, decoder, encoder, initialSettings);
+    Http2Handler handler =
+        new Http2Handler(
+            xctx, decoder, encoder, initialSettings, connectionWindowSize, maxConnectionWindowSize);
     frameListener(handler);
     return handler;
   }
@@ -1,43 +1,105 @@
 package com.nordstrom.xrpc.server;
 
+import com.nordstrom.xrpc.XConfig;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.util.AsciiString;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 @ChannelHandler.Sharable
 public class Http2OrHttpHandler extends ApplicationProtocolNegotiationHandler {
-  private static final int MAX_PAYLOAD_SIZE =
-      1 * 1024 * 1024; //TODO(JR): This should be configurable
-  private final UrlRouter router;
+  /** The names of the handlers that only serve HTTP/1.x, behind the codec. */
+  private static final String[] HTTP1_HANDLERS = {"keepAlive", "pipelining", "routingFilter"};
+
   private final XrpcChannelContext xctx;
+  private final XConfig config;
 
-  protected Http2OrHttpHandler(UrlRouter router, XrpcChannelContext xctx) {
+  protected Http2OrHttpHandler(XrpcChannelContext xctx, XConfig config) {
     super(ApplicationProtocolNames.HTTP_1_1);
-    this.router = router;
     this.xctx = xctx;
+    this.config = config;
   }
 
   @Override
   protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+    configurePipeline(ctx.pipeline(), protocol, false);
+  }
+
+  /**
+   * Add the handlers that serve the given protocol to the end of the pipeline.
+   *
+   * @param upgradable whether an HTTP/1.1 client may upgrade the connection to cleartext HTTP/2
+   */
+  void configurePipeline(ChannelPipeline cp, String protocol, boolean upgradable) {
     if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
-      ChannelPipeline cp = ctx.pipeline();
-      cp.addLast("codec", new Http2HandlerBuilder(xctx).build());
+      cp.addLast("codec", new Http2HandlerBuilder(xctx, config).build());
       return;
     }
 
     if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
-      ChannelPipeline cp = ctx.pipeline();
-      cp.addLast("codec", new HttpServerCodec());
-      cp.addLast("aggregator", new HttpObjectAggregator(MAX_PAYLOAD_SIZE));
+      HttpServerCodec codec = new HttpServerCodec();
+      cp.addLast("codec", codec);
+      if (upgradable) {
+        // Only requests asking to upgrade are collected, up to the usual body limit.
+        cp.addLast(
+            "upgrade",
+            new HttpServerUpgradeHandler(codec, this::newUpgradeCodec, xctx.getMaxPayloadBytes()));
+      }
+      // Bodies are collected or streamed by the router, which also answers Expect once it knows
+      // the route and its body limit.
+      cp.addLast(
+          "keepAlive",
+          new KeepAliveHandler(
+              xctx,
+              config.maxRequestsPerConnection(),
+              config.keepAliveTimeout(),
+              TimeUnit.SECONDS));
+      cp.addLast("pipelining", new HttpPipeliningHandler(config.maxPipelinedRequests()));
       //cp.addLast("authHandler", new NoOpHandler()); // TODO(JR): OAuth2.0 Impl needed
-      cp.addLast("routingFilter", router);
+      cp.addLast("routingFilter", new UrlRouter(xctx));
       return;
     }
 
     throw new IllegalStateException("unknown protocol: " + protocol);
   }
+
+  /** Returns how to upgrade to the given protocol, or null if it isn't h2c. */
+  private HttpServerUpgradeHandler.UpgradeCodec newUpgradeCodec(CharSequence protocol) {
+    if (!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+      return null;
+    }
+
+    Http2ServerUpgradeCodec http2 =
+        new Http2ServerUpgradeCodec("codec", new Http2HandlerBuilder(xctx, config).build());
+    return new HttpServerUpgradeHandler.UpgradeCodec() {
+      @Override
+      public Collection<CharSequence> requiredUpgradeHeaders() {
+        return http2.requiredUpgradeHeaders();
+      }
+
+      @Override
+      public boolean prepareUpgradeResponse(
+          ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, HttpHeaders upgradeHeaders) {
+        return http2.prepareUpgradeResponse(ctx, upgradeRequest, upgradeHeaders);
+      }
+
+      @Override
+      public void upgradeTo(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest) {
+        for (String name : HTTP1_HANDLERS) {
+          ctx.pipeline().remove(name);
+        }
+        http2.upgradeTo(ctx, upgradeRequest);
+      }
+    };
+  }
 }
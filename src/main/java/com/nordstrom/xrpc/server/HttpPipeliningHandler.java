@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.channels.ClosedChannelException;
+import java.util.PriorityQueue;
+import lombok.Getter;
+
+/**
+ * Lets HTTP/1.1 clients pipeline requests on one connection. Each request is numbered as it is
+ * read, and handed on as a {@link SequencedRequest}. Responses are written back as {@link
+ * SequencedResponse}s carrying the same number, in any order; they are held here until every
+ * earlier response has been written, so the client receives them in request order.
+ *
+ * <p>Once the maximum number of requests are in flight, reads are paused until responses catch up.
+ *
+ * <p>One instance per connection; sits between the keep-alive handler and the router.
+ */
+final class HttpPipeliningHandler extends ChannelDuplexHandler {
+  /** The most requests to have in flight before pausing reads. */
+  private final int maxInFlight;
+
+  /** Responses that are waiting for earlier ones to be written. */
+  private final PriorityQueue<Pending> held = new PriorityQueue<>();
+
+  /** The number to give the next request. */
+  private int readSequence;
+  /** The number of the request whose response is being written. */
+  private int writeSequence;
+  /** Messages held, for ordering responses to the same request. */
+  private long heldCount;
+
+  private boolean readsPaused;
+
+  HttpPipeliningHandler(int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+    this.maxInFlight = maxInFlight;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest) {
+      msg = new SequencedRequest((HttpRequest) msg, readSequence++);
+      if (readSequence - writeSequence >= maxInFlight && !readsPaused) {
+        readsPaused = true;
+        AutoRead.pause(ctx.channel(), AutoRead.Reason.PIPELINE_FULL);
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (!(msg instanceof SequencedResponse)) {
+      ctx.write(msg, promise);
+      return;
+    }
+
+    SequencedResponse response = (SequencedResponse) msg;
+    if (response.getSequence() != writeSequence) {
+      held.add(new Pending(response, promise, heldCount++));
+      return;
+    }
+
+    writeInOrder(ctx, response, promise);
+    // Writing the head of the line may have released responses that were held behind it.
+    while (!held.isEmpty() && held.peek().response.getSequence() == writeSequence) {
+      Pending next = held.poll();
+      writeInOrder(ctx, next.response, next.promise);
+    }
+
+    if (readsPaused && readSequence - writeSequence < maxInFlight) {
+      readsPaused = false;
+      AutoRead.resume(ctx.channel(), AutoRead.Reason.PIPELINE_FULL);
+    }
+  }
+
+  /** Returns the number of messages held back until earlier responses have been written. */
+  int held() {
+    return held.size();
+  }
+
+  private void writeInOrder(
+      ChannelHandlerContext ctx, SequencedResponse response, ChannelPromise promise) {
+    ctx.write(response.getMessage(), promise);
+    // An interim response, like 100 Continue, doesn't complete the exchange.
+    if (response.getMessage() instanceof LastHttpContent
+        && !KeepAliveHandler.isInformational(response.getMessage())) {
+      writeSequence++;
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    failHeld();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    failHeld();
+    super.channelInactive(ctx);
+  }
+
+  private void failHeld() {
+    while (!held.isEmpty()) {
+      Pending pending = held.poll();
+      ReferenceCountUtil.release(pending.response.getMessage());
+      pending.promise.tryFailure(new ClosedChannelException());
+    }
+  }
+
+  /** A request, numbered in the order it was read from the connection. */
+  static final class SequencedRequest {
+    @Getter private final HttpRequest request;
+    @Getter private final int sequence;
+
+    SequencedRequest(HttpRequest request, int sequence) {
+      this.request = request;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Part or all of the response to a {@link SequencedRequest}. The response to a request is
+   * complete once its {@link LastHttpContent} is written.
+   */
+  static final class SequencedResponse {
+    @Getter private final HttpObject message;
+    @Getter private final int sequence;
+
+    SequencedResponse(HttpObject message, int sequence) {
+      this.message = message;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final class Pending implements Comparable<Pending> {
+    private final SequencedResponse response;
+    private final ChannelPromise promise;
+    private final long order;
+
+    Pending(SequencedResponse response, ChannelPromise promise, long order) {
+      this.response = response;
+      this.promise = promise;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(Pending other) {
+      int bySequence = Integer.compare(response.getSequence(), other.response.getSequence());
+      return bySequence != 0 ? bySequence : Long.compare(order, other.order);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps HTTP/1.x connections open between requests. A connection is kept alive unless the client
+ * asks to close it (an HTTP/1.1 {@code Connection: close}, or an HTTP/1.0 request without {@code
+ * Connection: keep-alive}), or it has served the maximum number of requests. Once every request has
+ * been answered, a connection that is to be closed is closed; one that is kept alive is closed if
+ * no new request arrives within the idle timeout. A response may also close the connection by
+ * saying so. Requests pipelined after one that closes the connection are dropped.
+ *
+ * <p>One instance per connection; sits between the HTTP codec and the pipelining handler.
+ */
+final class KeepAliveHandler extends ChannelDuplexHandler {
+  private final XrpcChannelContext xctx;
+  /** The most requests to serve on this connection, or zero for no limit. */
+  private final int maxRequests;
+  /** How long to wait for a new request once the connection is idle, or zero to wait forever. */
+  private final long idleTimeoutNanos;
+
+  /** Requests received on this connection. */
+  private int requests;
+  /** How to answer each request that hasn't been answered yet, in request order. */
+  private final ArrayDeque<Mode> pending = new ArrayDeque<>();
+  /** Whether a request has asked to close the connection once it is answered. */
+  private boolean closing;
+  /** Whether the body of a request that arrived after the closing one is being dropped. */
+  private boolean discarding;
+
+  private ScheduledFuture<?> idleTimeout;
+
+  KeepAliveHandler(
+      XrpcChannelContext xctx, int maxRequests, long idleTimeout, TimeUnit idleTimeoutUnit) {
+    this.xctx = xctx;
+    this.maxRequests = maxRequests;
+    this.idleTimeoutNanos = idleTimeoutUnit.toNanos(idleTimeout);
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    scheduleIdleTimeout(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    cancelIdleTimeout();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    cancelIdleTimeout();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest) {
+      // The client may have pipelined requests after the one that closes the connection; those
+      // are never answered.
+      if (closing) {
+        discarding = true;
+        ReferenceCountUtil.release(msg);
+        return;
+      }
+
+      HttpRequest request = (HttpRequest) msg;
+      cancelIdleTimeout();
+      requests++;
+
+      xctx.getHttp1RequestMeter().mark();
+      if (requests > 1) {
+        xctx.getReusedConnectionMeter().mark();
+      }
+
+      if (!HttpUtil.isKeepAlive(request) || (maxRequests > 0 && requests >= maxRequests)) {
+        closing = true;
+        pending.add(Mode.CLOSE);
+      } else if (request.protocolVersion().equals(HttpVersion.HTTP_1_0)) {
+        pending.add(Mode.KEEP_ALIVE_HTTP_10);
+      } else {
+        pending.add(Mode.KEEP_ALIVE);
+      }
+    } else if (discarding && msg instanceof HttpContent) {
+      ReferenceCountUtil.release(msg);
+      return;
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    // A 100 Continue is followed by the real response, which decides the connection's fate.
+    if (isInformational(msg)) {
+      super.write(ctx, msg, promise);
+      return;
+    }
+
+    Mode mode = pending.peek();
+    if (msg instanceof HttpResponse && mode != null) {
+      HttpResponse response = (HttpResponse) msg;
+      // The router closes the connection itself when it can't read the rest of a request.
+      boolean closeRequested =
+          response.headers().contains(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE, true);
+      if (closeRequested && mode != Mode.CLOSE) {
+        pending.poll();
+        pending.addFirst(Mode.CLOSE);
+        mode = Mode.CLOSE;
+        closing = true;
+      }
+      if (mode == Mode.CLOSE) {
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+      } else if (mode == Mode.KEEP_ALIVE_HTTP_10) {
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+      }
+      // The client can only find the end of a kept-alive response from its framing.
+      if (msg instanceof FullHttpResponse
+          && !HttpUtil.isContentLengthSet(response)
+          && !HttpUtil.isTransferEncodingChunked(response)) {
+        HttpUtil.setContentLength(response, ((FullHttpResponse) msg).content().readableBytes());
+      }
+    }
+
+    if (msg instanceof LastHttpContent && mode != null) {
+      pending.poll();
+      if (mode == Mode.CLOSE) {
+        promise = promise.unvoid();
+        promise.addListener(ChannelFutureListener.CLOSE);
+      } else if (pending.isEmpty()) {
+        scheduleIdleTimeout(ctx);
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  static boolean isInformational(Object msg) {
+    return msg instanceof HttpResponse
+        && ((HttpResponse) msg).status().codeClass() == HttpStatusClass.INFORMATIONAL;
+  }
+
+  private void scheduleIdleTimeout(ChannelHandlerContext ctx) {
+    if (idleTimeoutNanos <= 0 || idleTimeout != null) {
+      return;
+    }
+    idleTimeout =
+        ctx.executor()
+            .schedule(
+                () -> {
+                  idleTimeout = null;
+                  if (pending.isEmpty() && ctx.channel().isActive()) {
+                    xctx.getKeepAliveTimeoutMeter().mark();
+                    ctx.close();
+                  }
+                },
+                idleTimeoutNanos,
+                TimeUnit.NANOSECONDS);
+  }
+
+  private void cancelIdleTimeout() {
+    if (idleTimeout != null) {
+      idleTimeout.cancel(false);
+      idleTimeout = null;
+    }
+  }
+
+  /** How a response ends the exchange. */
+  private enum Mode {
+    KEEP_ALIVE,
+    /** HTTP/1.0 only keeps the connection alive if the response says so. */
+    KEEP_ALIVE_HTTP_10,
+    CLOSE
+  }
+}
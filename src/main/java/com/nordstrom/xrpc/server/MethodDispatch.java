@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.server.http.XHttpMethod;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.AsciiString;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The handlers for a single route, compiled into a table indexed by request method. Standard
+ * methods are resolved to an array slot without allocating; slots with no handler of their own hold
+ * the route's {@link XHttpMethod#ANY} handler, so dispatch is a single array load. Non-standard
+ * methods are looked up in a side map.
+ */
+public final class MethodDispatch {
+  /** The standard methods, in slot order. */
+  private static final XHttpMethod[] KNOWN_METHODS = {
+    XHttpMethod.OPTIONS,
+    XHttpMethod.GET,
+    XHttpMethod.HEAD,
+    XHttpMethod.POST,
+    XHttpMethod.PUT,
+    XHttpMethod.PATCH,
+    XHttpMethod.DELETE,
+    XHttpMethod.TRACE,
+    XHttpMethod.CONNECT
+  };
+
+  private final RouteHandler[] handlers;
+  private final RouteHandler any;
+  private final ImmutableMap<String, RouteHandler> custom;
+  private final RouteOptions options;
+
+  private MethodDispatch(
+      RouteHandler[] handlers,
+      RouteHandler any,
+      ImmutableMap<String, RouteHandler> custom,
+      RouteOptions options) {
+    this.handlers = handlers;
+    this.any = any;
+    this.custom = custom;
+    this.options = options;
+  }
+
+  /**
+   * Compile the handlers registered for a route. If a method was registered more than once, the
+   * first registration wins.
+   *
+   * @param options the settings of the route, which apply to all of its handlers
+   */
+  public static MethodDispatch compile(
+      List<ImmutableMap<XHttpMethod, RouteHandler>> handlerMaps, RouteOptions options) {
+    Preconditions.checkNotNull(options);
+    RouteHandler[] handlers = new RouteHandler[KNOWN_METHODS.length];
+    RouteHandler any = null;
+    Map<String, RouteHandler> custom = new HashMap<>();
+
+    for (ImmutableMap<XHttpMethod, RouteHandler> handlerMap : handlerMaps) {
+      for (Map.Entry<XHttpMethod, RouteHandler> entry : handlerMap.entrySet()) {
+        XHttpMethod method = entry.getKey();
+        int slot = slot(method.asciiName());
+        if (slot >= 0) {
+          if (handlers[slot] == null) {
+            handlers[slot] = entry.getValue();
+          }
+        } else if (XHttpMethod.ANY.equals(method)) {
+          if (any == null) {
+            any = entry.getValue();
+          }
+        } else {
+          custom.putIfAbsent(method.name(), entry.getValue());
+        }
+      }
+    }
+
+    for (int i = 0; i < handlers.length; i++) {
+      if (handlers[i] == null) {
+        handlers[i] = any;
+      }
+    }
+    return new MethodDispatch(handlers, any, ImmutableMap.copyOf(custom), options);
+  }
+
+  /** Returns the settings of this route. */
+  public RouteOptions options() {
+    return options;
+  }
+
+  /** @return the handler for the given method, or null if this route doesn't accept it */
+  public RouteHandler handler(HttpMethod method) {
+    return handler(method.asciiName());
+  }
+
+  /** @return the handler for the given method name, or null if this route doesn't accept it */
+  public RouteHandler handler(CharSequence method) {
+    int slot = slot(method);
+    if (slot >= 0) {
+      return handlers[slot];
+    }
+    if (!custom.isEmpty()) {
+      RouteHandler handler = custom.get(method.toString());
+      if (handler != null) {
+        return handler;
+      }
+    }
+    return any;
+  }
+
+  /** @return the slot for a standard method name, or -1 for any other method */
+  private static int slot(CharSequence method) {
+    // Narrow by length first; at most two standard methods share a length.
+    switch (method.length()) {
+      case 3:
+        return slotOf(method, 1, 4);
+      case 4:
+        return slotOf(method, 2, 3);
+      case 5:
+        return slotOf(method, 5, 7);
+      case 6:
+        return slotOf(method, 6, 6);
+      case 7:
+        return slotOf(method, 0, 8);
+      default:
+        return -1;
+    }
+  }
+
+  private static int slotOf(CharSequence method, int first, int second) {
+    if (AsciiString.contentEquals(method, KNOWN_METHODS[first].asciiName())) {
+      return first;
+    }
+    if (AsciiString.contentEquals(method, KNOWN_METHODS[second].asciiName())) {
+      return second;
+    }
+    return -1;
+  }
+}
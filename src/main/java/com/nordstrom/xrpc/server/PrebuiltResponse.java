@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import lombok.Getter;
+
+/**
+ * A response whose headers are built ahead of time, as {@link Http2Headers}. On HTTP/2 they are
+ * written as they are, with no conversion, and the body is written straight after them. Build the
+ * headers once, with lower-case {@link io.netty.util.AsciiString} names and values, and share them
+ * between responses; they are never changed.
+ *
+ * <p>The headers must include {@code :status}, and must leave out connection-specific headers like
+ * {@code Connection}, which HTTP/2 forbids. Anything set on {@link #headers()} is sent as well,
+ * after the prebuilt headers, at the cost of copying them. On HTTP/1.x, or if the body may be
+ * compressed, the response is turned into an ordinary {@link FullHttpResponse} first, so handlers
+ * can return one whichever protocol the client speaks.
+ */
+public class PrebuiltResponse extends DefaultFullHttpResponse {
+  @Getter private final Http2Headers prebuiltHeaders;
+
+  public PrebuiltResponse(Http2Headers headers, ByteBuf content) {
+    super(HttpVersion.HTTP_1_1, status(headers), content);
+    this.prebuiltHeaders = headers;
+  }
+
+  private static HttpResponseStatus status(Http2Headers headers) {
+    Preconditions.checkArgument(headers.status() != null, "headers must include :status");
+    return HttpResponseStatus.parseLine(headers.status());
+  }
+
+  /** Returns the headers to write to an HTTP/2 stream. */
+  Http2Headers http2Headers() {
+    if (headers().isEmpty()) {
+      return prebuiltHeaders;
+    }
+
+    Http2Headers merged = new DefaultHttp2Headers(false, prebuiltHeaders.size() + headers().size());
+    merged.set(prebuiltHeaders);
+    HeaderConversion.addHttp1(headers(), merged);
+    return merged;
+  }
+
+  /** Returns an ordinary response with the same status, headers and body, which it takes over. */
+  FullHttpResponse toHttp1() {
+    FullHttpResponse response = new DefaultFullHttpResponse(protocolVersion(), status(), content());
+    HeaderConversion.addHttp2(prebuiltHeaders, response.headers());
+    response.headers().add(headers());
+    return response;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Copies the body of a {@link StreamingResponse} to the connection, a chunk at a time, for as long
+ * as the connection can take it. Subclasses say when the connection can take more, and how to write
+ * it: as HTTP/1.x content, or as HTTP/2 DATA frames.
+ *
+ * <p>All methods are called on the connection's event loop.
+ */
+@Slf4j
+abstract class ResponseBodyWriter {
+  private final ChannelHandlerContext ctx;
+  private final ChunkedInput<ByteBuf> body;
+  private boolean done;
+
+  ResponseBodyWriter(ChannelHandlerContext ctx, StreamingResponse response) {
+    this.ctx = ctx;
+    this.body = response.getBody();
+    response.onResume(() -> ctx.executor().execute(this::write));
+  }
+
+  /** Returns whether the connection can take another chunk without buffering it. */
+  abstract boolean isWritable();
+
+  /** Write a chunk of the body, which is the last one if last is set. */
+  abstract ChannelFuture writeChunk(ByteBuf chunk, boolean last);
+
+  /** Flush the chunk just written. */
+  abstract void flush();
+
+  /** Give up on a body which couldn't be read. The response can't be finished properly. */
+  abstract void fail(Exception cause);
+
+  /** Called once the whole body has been written. */
+  void finished() {}
+
+  /** Write as much of the body as the connection will take now. */
+  void write() {
+    if (done) {
+      return;
+    }
+
+    try {
+      while (isWritable()) {
+        ByteBuf chunk = body.readChunk(ctx.alloc());
+        boolean last = body.isEndOfInput();
+        if (chunk == null && !last) {
+          // Nothing to send until the body resumes the transfer.
+          break;
+        }
+        ChannelFuture written = writeChunk(chunk == null ? Unpooled.EMPTY_BUFFER : chunk, last);
+        // Writes only count against the connection's writability once they are flushed past any
+        // encryption, so each chunk is flushed as it goes.
+        flush();
+        if (last) {
+          done = true;
+          closeBody();
+          finished();
+          break;
+        }
+        if (!isWritable()) {
+          // A change in writability can be missed while this is writing, so carry on once the
+          // chunk that filled the connection has gone as well.
+          written.addListener(
+              future -> {
+                if (future.isSuccess()) {
+                  ctx.executor().execute(this::write);
+                }
+              });
+        }
+      }
+    } catch (Exception e) {
+      log.error("Error reading response body", e);
+      abort();
+      fail(e);
+    }
+  }
+
+  /** Stop writing the body, if it isn't finished already. */
+  void abort() {
+    if (!done) {
+      done = true;
+      closeBody();
+    }
+  }
+
+  private void closeBody() {
+    try {
+      body.close();
+    } catch (Exception e) {
+      log.warn("Error closing response body", e);
+    }
+  }
+}
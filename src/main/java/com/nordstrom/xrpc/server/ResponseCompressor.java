@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AsciiString;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compresses response bodies for clients that accept it, with gzip or deflate. Only whole bodies of
+ * at least a minimum size, whose content type is on the compressible list, are compressed; streamed
+ * bodies and bodies that already have a {@code Content-Encoding} are sent as they are.
+ *
+ * <p>A response marked cacheable, by carrying an {@code ETag} and not {@code Cache-Control:
+ * no-store}, may have its compressed body cached, keyed by request target, ETag and encoding, so
+ * that sending the same response again doesn't compress it again. The handler is responsible for
+ * changing the ETag whenever the body changes.
+ *
+ * <p>Instances are thread safe, and shared by all connections.
+ */
+@Slf4j
+public final class ResponseCompressor {
+  /** Compresses nothing. */
+  static final ResponseCompressor DISABLED =
+      new ResponseCompressor(0, Integer.MAX_VALUE, ImmutableList.of(), 0);
+
+  private static final AsciiString[] ENCODINGS = {HttpHeaderValues.GZIP, HttpHeaderValues.DEFLATE};
+  /** A gzip member header: deflate, no name or timestamp, unknown operating system. */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private final int level;
+  private final int minSize;
+  /** Lower-case prefixes of the media types to compress. */
+  private final ImmutableList<String> contentTypes;
+  /** Compressed bodies by encoding, ETag and request target, or null if caching is disabled. */
+  private final Cache<String, byte[]> cache;
+
+  /**
+   * @param level the deflate level, from 1 (fastest) to 9 (smallest), or zero to disable
+   *     compression
+   * @param minSize the smallest body to compress, in bytes
+   * @param contentTypes prefixes of the media types to compress, e.g. {@code text/}
+   * @param cacheBytes the most compressed bytes to cache, or zero to disable caching
+   */
+  public ResponseCompressor(int level, int minSize, List<String> contentTypes, long cacheBytes) {
+    Preconditions.checkArgument(level >= 0 && level <= 9, "level must be from 0 to 9");
+    this.level = level;
+    this.minSize = minSize;
+    ImmutableList.Builder<String> types = ImmutableList.builder();
+    for (String type : contentTypes) {
+      types.add(type.toLowerCase(Locale.ROOT));
+    }
+    this.contentTypes = types.build();
+    this.cache =
+        cacheBytes > 0
+            ? CacheBuilder.newBuilder()
+                .maximumWeight(cacheBytes)
+                .<String, byte[]>weigher((key, value) -> value.length)
+                .build()
+            : null;
+  }
+
+  /**
+   * Returns the response to send to a client which accepts the given encodings: either the response
+   * itself, or a compressed copy of it, in which case the original is released.
+   *
+   * @param acceptEncoding the request's {@code Accept-Encoding} header, or null
+   * @param target the request target, which identifies cached bodies along with the ETag
+   */
+  FullHttpResponse compress(
+      FullHttpResponse response,
+      CharSequence acceptEncoding,
+      String target,
+      ByteBufAllocator alloc) {
+    if (response instanceof PrebuiltResponse) {
+      if (level == 0 || response.content().readableBytes() < minSize) {
+        return response;
+      }
+      // Compressing changes the headers, which are shared, so it works on a copy of them.
+      response = ((PrebuiltResponse) response).toHttp1();
+    }
+
+    HttpHeaders headers = response.headers();
+    if (level == 0
+        || response.content().readableBytes() < minSize
+        || headers.contains(HttpHeaderNames.CONTENT_ENCODING)
+        || !isCompressible(headers.get(HttpHeaderNames.CONTENT_TYPE))) {
+      return response;
+    }
+
+    // The body depends on the request's encodings from now on, whatever this client accepts.
+    headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    AsciiString encoding = chooseEncoding(acceptEncoding);
+    if (encoding == null) {
+      return response;
+    }
+
+    String etag = headers.get(HttpHeaderNames.ETAG);
+    boolean cacheable =
+        cache != null
+            && etag != null
+            && !headers.containsValue(
+                HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE, true);
+    String key = cacheable ? encoding + " " + etag + " " + target : null;
+    byte[] cached = cacheable ? cache.getIfPresent(key) : null;
+
+    ByteBuf compressed;
+    if (cached != null) {
+      compressed = Unpooled.wrappedBuffer(cached);
+    } else {
+      try {
+        compressed = compress(response.content(), encoding, alloc);
+      } catch (IOException e) {
+        log.warn("Error compressing response; sending it uncompressed", e);
+        return response;
+      }
+      if (cacheable) {
+        byte[] bytes = new byte[compressed.readableBytes()];
+        compressed.getBytes(compressed.readerIndex(), bytes);
+        cache.put(key, bytes);
+      }
+    }
+
+    FullHttpResponse result = response.replace(compressed);
+    response.release();
+    result.headers().set(HttpHeaderNames.CONTENT_ENCODING, encoding);
+    result.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes());
+    // The compressed body is a different representation, so it can't share a strong validator.
+    if (etag != null && !etag.startsWith("W/")) {
+      result.headers().set(HttpHeaderNames.ETAG, "W/" + etag);
+    }
+    return result;
+  }
+
+  private boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase(Locale.ROOT);
+    for (String prefix : contentTypes) {
+      if (type.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the preferred encoding that the client accepts, or null if it accepts neither. A client
+   * may refuse an encoding with {@code q=0}; {@code *} stands for any encoding not named.
+   */
+  static AsciiString chooseEncoding(CharSequence acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+
+    float[] quality = new float[ENCODINGS.length];
+    float any = -1;
+    for (String part : acceptEncoding.toString().split(",")) {
+      int semicolon = part.indexOf(';');
+      String coding = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+      float q = semicolon < 0 ? 1 : parseQuality(part.substring(semicolon + 1));
+      if (coding.equals("*")) {
+        any = q;
+        continue;
+      }
+      for (int i = 0; i < ENCODINGS.length; i++) {
+        if (ENCODINGS[i].contentEqualsIgnoreCase(coding)) {
+          quality[i] = q > 0 ? q : -1;
+        }
+      }
+    }
+
+    AsciiString best = null;
+    float bestQuality = 0;
+    for (int i = 0; i < ENCODINGS.length; i++) {
+      float q = quality[i] == 0 ? any : quality[i];
+      if (q > bestQuality) {
+        best = ENCODINGS[i];
+        bestQuality = q;
+      }
+    }
+    return best;
+  }
+
+  /** Returns the value of a {@code q=} parameter, or 1 if there isn't a valid one. */
+  private static float parseQuality(String parameters) {
+    String parameter = parameters.trim();
+    if (!parameter.startsWith("q=")) {
+      return 1;
+    }
+    try {
+      return Float.parseFloat(parameter.substring(2));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  private ByteBuf compress(ByteBuf content, AsciiString encoding, ByteBufAllocator alloc)
+      throws IOException {
+    boolean gzip = HttpHeaderValues.GZIP.equals(encoding);
+    ByteBuf compressed = alloc.buffer(content.readableBytes() / 2);
+    // gzip wraps raw deflate data in its own header and trailer; deflate means the zlib format.
+    Deflater deflater = new Deflater(level, gzip);
+    try {
+      if (gzip) {
+        compressed.writeBytes(GZIP_HEADER);
+      }
+      try (OutputStream out =
+          new DeflaterOutputStream(new ByteBufOutputStream(compressed), deflater)) {
+        content.getBytes(content.readerIndex(), out, content.readableBytes());
+      }
+      if (gzip) {
+        CRC32 crc = new CRC32();
+        crc.update(content.nioBuffer());
+        compressed.writeIntLE((int) crc.getValue());
+        compressed.writeIntLE(content.readableBytes());
+      }
+    } catch (IOException | RuntimeException e) {
+      compressed.release();
+      throw e;
+    } finally {
+      deflater.end();
+    }
+    return compressed;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import lombok.EqualsAndHashCode;
+
+/**
+ * What a route calls for one of its methods: an ordinary {@link Handler}, a {@link
+ * StreamingHandler} or an {@link AsyncHandler}. The handler types are unrelated, so the routers
+ * switch on {@link #kind()} to decide how to call it.
+ */
+@EqualsAndHashCode
+public final class RouteHandler {
+  /** The kinds of handler a route can call. */
+  public enum Kind {
+    /** A {@link Handler}, which is given the whole request. */
+    ORDINARY,
+    /** A {@link StreamingHandler}, which is given the request body as it arrives. */
+    STREAMING,
+    /** An {@link AsyncHandler}, which is given the whole request and responds later. */
+    ASYNC
+  }
+
+  private final Kind kind;
+  private final Object handler;
+
+  private RouteHandler(Kind kind, Object handler) {
+    this.kind = kind;
+    this.handler = Preconditions.checkNotNull(handler);
+  }
+
+  /** Returns a route handler which calls the given ordinary handler. */
+  public static RouteHandler of(Handler handler) {
+    return new RouteHandler(Kind.ORDINARY, handler);
+  }
+
+  /** Returns a route handler which streams request bodies to the given handler. */
+  public static RouteHandler streaming(StreamingHandler handler) {
+    return new RouteHandler(Kind.STREAMING, handler);
+  }
+
+  /** Returns a route handler which calls the given asynchronous handler. */
+  public static RouteHandler async(AsyncHandler handler) {
+    return new RouteHandler(Kind.ASYNC, handler);
+  }
+
+  /** Returns the kind of handler this calls. */
+  public Kind kind() {
+    return kind;
+  }
+
+  /** @throws IllegalStateException if this is not an {@link Kind#ORDINARY} handler */
+  public Handler handler() {
+    Preconditions.checkState(kind == Kind.ORDINARY, "Not an ordinary handler: %s", kind);
+    return (Handler) handler;
+  }
+
+  /** @throws IllegalStateException if this is not a {@link Kind#STREAMING} handler */
+  public StreamingHandler streamingHandler() {
+    Preconditions.checkState(kind == Kind.STREAMING, "Not a streaming handler: %s", kind);
+    return (StreamingHandler) handler;
+  }
+
+  /** @throws IllegalStateException if this is not an {@link Kind#ASYNC} handler */
+  public AsyncHandler asyncHandler() {
+    Preconditions.checkState(kind == Kind.ASYNC, "Not an asynchronous handler: %s", kind);
+    return (AsyncHandler) handler;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+
+/**
+ * The settings of a route, which apply to every method registered for it. A route is given its
+ * options once, separately from its handlers, so registering a handler never changes how the
+ * route's other handlers are served. Routes without options of their own use {@link #DEFAULT},
+ * which leaves every setting to the server.
+ *
+ * <pre>{@code
+ * router.setRouteOptions(
+ *     "/upload", RouteOptions.builder().maxPayloadBytes(64 * 1024 * 1024).build());
+ * }</pre>
+ */
+public final class RouteOptions {
+  /** The value of {@link #getMaxPayloadBytes()} for a route without a limit of its own. */
+  public static final int DEFAULT_MAX_PAYLOAD = -1;
+
+  /** The value of {@link #getAsyncTimeoutMillis()} for a route without a timeout of its own. */
+  public static final long DEFAULT_TIMEOUT = -1;
+
+  /** Options which leave every setting to the server. */
+  public static final RouteOptions DEFAULT = builder().build();
+
+  /**
+   * The largest request body to accept, or {@link #DEFAULT_MAX_PAYLOAD} to leave that to the
+   * server. A route's own limit also applies to its {@link StreamingHandler}s, which otherwise have
+   * none.
+   */
+  @Getter private final int maxPayloadBytes;
+
+  /**
+   * How long the route's {@link AsyncHandler}s have to respond, in milliseconds, or {@link
+   * #DEFAULT_TIMEOUT} to leave that to the server.
+   */
+  @Getter private final long asyncTimeoutMillis;
+
+  /**
+   * Where the route's ordinary handlers run. {@link StreamingHandler}s and {@link AsyncHandler}s
+   * always start on the event loop.
+   */
+  @Getter private final Execution execution;
+
+  private RouteOptions(int maxPayloadBytes, long asyncTimeoutMillis, Execution execution) {
+    this.maxPayloadBytes = maxPayloadBytes;
+    this.asyncTimeoutMillis = asyncTimeoutMillis;
+    this.execution = execution;
+  }
+
+  /** Returns a new builder, starting from the defaults. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Builds {@link RouteOptions}. Builders are not thread safe. */
+  public static final class Builder {
+    private int maxPayloadBytes = DEFAULT_MAX_PAYLOAD;
+    private long asyncTimeoutMillis = DEFAULT_TIMEOUT;
+    private Execution execution = Execution.INLINE;
+
+    private Builder() {}
+
+    /** Limit the size of the route's request bodies, replacing the server's limit. */
+    public Builder maxPayloadBytes(int maxPayloadBytes) {
+      Preconditions.checkArgument(maxPayloadBytes >= 0, "maxPayloadBytes must not be negative");
+      this.maxPayloadBytes = maxPayloadBytes;
+      return this;
+    }
+
+    /** Limit how long the route's asynchronous handlers have, replacing the server's timeout. */
+    public Builder asyncTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+      this.asyncTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /** Choose where the route's ordinary handlers run. */
+    public Builder execution(Execution execution) {
+      this.execution = Preconditions.checkNotNull(execution);
+      return this;
+    }
+
+    public RouteOptions build() {
+      return new RouteOptions(maxPayloadBytes, asyncTimeoutMillis, execution);
+    }
+  }
+}
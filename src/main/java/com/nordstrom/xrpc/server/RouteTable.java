@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Meter;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.nordstrom.xrpc.server.http.Route;
+import com.nordstrom.xrpc.server.http.RouteTrie;
+import com.nordstrom.xrpc.server.http.XHttpMethod;
+import io.netty.handler.codec.http.HttpMethod;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * The compiled routes that requests are dispatched against. A table is never modified once built;
+ * changing the routes means building and publishing a new table, which request threads pick up
+ * without locking. Tables are built with a {@link Builder}, which compiles all of its routes in one
+ * pass.
+ *
+ * <p>A table may optionally keep a bounded cache of recent matches, keyed by the raw request path,
+ * so that repeated requests for the same concrete URL skip the trie. The cache belongs to the
+ * table, so replacing the table discards it.
+ */
+public final class RouteTable {
+  private static final RouteTable EMPTY = builder().build(0, null, null);
+
+  /** The routes in this table, ordered by their path pattern. */
+  @Getter
+  private final ImmutableSortedMap<Route, List<ImmutableMap<XHttpMethod, RouteHandler>>> routes;
+
+  /** The options of the routes that have their own. */
+  private final ImmutableMap<Route, RouteOptions> options;
+
+  private final RouteTrie<MethodDispatch> trie;
+  /** Recent matches by path, or null if caching is disabled. */
+  private final Cache<String, RouteTrie.Match<MethodDispatch>> cache;
+
+  private final Meter cacheHits;
+  private final Meter cacheMisses;
+
+  /**
+   * Compile a table from the given routes.
+   *
+   * @param cacheSize the maximum number of matches to cache, or zero to disable caching
+   * @param cacheHits marked for each lookup served from the cache
+   * @param cacheMisses marked for each lookup that had to search the trie
+   */
+  private RouteTable(
+      ImmutableSortedMap<Route, List<ImmutableMap<XHttpMethod, RouteHandler>>> routes,
+      ImmutableMap<Route, RouteOptions> options,
+      int cacheSize,
+      Meter cacheHits,
+      Meter cacheMisses) {
+    this.routes = routes;
+    this.options = options;
+    // Later path patterns take precedence over earlier ones.
+    this.trie =
+        RouteTrie.build(
+            Maps.transformEntries(
+                routes.descendingMap(),
+                (route, handlers) ->
+                    MethodDispatch.compile(
+                        handlers, options.getOrDefault(route, RouteOptions.DEFAULT))));
+    this.cache = cacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(cacheSize).build() : null;
+    this.cacheHits = cacheHits;
+    this.cacheMisses = cacheMisses;
+  }
+
+  /** Returns a table with no routes. */
+  static RouteTable empty() {
+    return EMPTY;
+  }
+
+  /** Returns a new, empty builder. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns a new builder holding all of the routes in this table. */
+  public Builder toBuilder() {
+    Builder builder = new Builder();
+    for (Map.Entry<Route, List<ImmutableMap<XHttpMethod, RouteHandler>>> entry :
+        routes.entrySet()) {
+      String route = entry.getKey().toString();
+      builder.routes.put(
+          route, new Builder.Entry(entry.getKey(), new ArrayList<>(entry.getValue())));
+      RouteOptions routeOptions = options.get(entry.getKey());
+      if (routeOptions != null) {
+        builder.options.put(route, routeOptions);
+      }
+    }
+    return builder;
+  }
+
+  /** @return the highest-precedence route matching the given path, or null if no route matches */
+  public RouteTrie.Match<MethodDispatch> match(String path) {
+    if (cache == null || path == null) {
+      return trie.match(path);
+    }
+
+    RouteTrie.Match<MethodDispatch> match = cache.getIfPresent(path);
+    if (match != null) {
+      cacheHits.mark();
+      return match;
+    }
+
+    cacheMisses.mark();
+    match = trie.match(path);
+    // Only cache hits; otherwise a scan of unknown paths would evict the hot entries.
+    if (match != null) {
+      cache.put(path, match);
+    }
+    return match;
+  }
+
+  /**
+   * Collects routes to compile into a {@link RouteTable}. Adding a route is constant time; all of
+   * the sorting and compilation happens once, when the table is built. Builders are not thread
+   * safe.
+   */
+  public static final class Builder {
+    /** Routes by path pattern, in the order they were first added. */
+    private final Map<String, Entry> routes = new LinkedHashMap<>();
+    /** The options of the routes that have been given them, by path pattern. */
+    private final Map<String, RouteOptions> options = new HashMap<>();
+
+    private Builder() {}
+
+    /** Add a route which handles any HTTP method. */
+    public Builder addRoute(String route, Handler handler) {
+      return addRoute(route, handler, XHttpMethod.ANY);
+    }
+
+    /**
+     * Add a route for a single HTTP method. If a method is added more than once for the same route,
+     * the first handler added wins.
+     */
+    public Builder addRoute(String route, Handler handler, HttpMethod method) {
+      Preconditions.checkState(handler != null);
+      return addRoute(route, RouteHandler.of(handler), method);
+    }
+
+    /**
+     * Add a route for a single HTTP method, which streams request bodies to the given handler as
+     * they arrive. Methods are shared with {@link #addRoute(String, Handler, HttpMethod)}:
+     * whichever handler is added first for a method wins.
+     */
+    public Builder addStreamingRoute(String route, StreamingHandler handler, HttpMethod method) {
+      Preconditions.checkState(handler != null);
+      return addRoute(route, RouteHandler.streaming(handler), method);
+    }
+
+    /**
+     * Add a route for a single HTTP method, whose handler responds asynchronously. Methods are
+     * shared with {@link #addRoute(String, Handler, HttpMethod)}: whichever handler is added first
+     * for a method wins.
+     */
+    public Builder addAsyncRoute(String route, AsyncHandler handler, HttpMethod method) {
+      Preconditions.checkState(handler != null);
+      return addRoute(route, RouteHandler.async(handler), method);
+    }
+
+    private Builder addRoute(String route, RouteHandler handler, HttpMethod method) {
+      Preconditions.checkState(method != null);
+
+      Entry entry = routes.get(route);
+      if (entry == null) {
+        entry = new Entry(Route.build(route), new ArrayList<>());
+        routes.put(route, entry);
+      }
+      entry.handlers.add(ImmutableMap.of(new XHttpMethod(method.name()), handler));
+      return this;
+    }
+
+    /**
+     * Set the options of a route, which apply to every method registered for it, whether before or
+     * after. Replaces any options the route already had; routes that are never given options use
+     * {@link RouteOptions#DEFAULT}.
+     */
+    public Builder setRouteOptions(String route, RouteOptions options) {
+      Preconditions.checkState(route != null);
+      Preconditions.checkState(options != null);
+      this.options.put(route, options);
+      return this;
+    }
+
+    /** Returns a copy of this builder, which can be changed independently. */
+    Builder copy() {
+      Builder copy = new Builder();
+      for (Map.Entry<String, Entry> entry : routes.entrySet()) {
+        Entry value = entry.getValue();
+        copy.routes.put(entry.getKey(), new Entry(value.route, new ArrayList<>(value.handlers)));
+      }
+      copy.options.putAll(options);
+      return copy;
+    }
+
+    /** Compile the routes added so far into a table. */
+    RouteTable build(int cacheSize, Meter cacheHits, Meter cacheMisses) {
+      ImmutableSortedMap.Builder<Route, List<ImmutableMap<XHttpMethod, RouteHandler>>>
+          sortedRoutes = new ImmutableSortedMap.Builder<>(Ordering.usingToString());
+      ImmutableMap.Builder<Route, RouteOptions> routeOptions = ImmutableMap.builder();
+      for (Map.Entry<String, Entry> entry : routes.entrySet()) {
+        Route route = entry.getValue().route;
+        sortedRoutes.put(route, ImmutableList.copyOf(entry.getValue().handlers));
+        RouteOptions options = this.options.get(entry.getKey());
+        if (options != null) {
+          routeOptions.put(route, options);
+        }
+      }
+      return new RouteTable(
+          sortedRoutes.build(), routeOptions.build(), cacheSize, cacheHits, cacheMisses);
+    }
+
+    private static final class Entry {
+      private final Route route;
+      private final List<ImmutableMap<XHttpMethod, RouteHandler>> handlers;
+
+      Entry(Route route, List<ImmutableMap<XHttpMethod, RouteHandler>> handlers) {
+        this.route = route;
+        this.handlers = handlers;
+      }
+    }
+  }
+}
@@ -23,11 +23,12 @@ import com.codahale.metrics.health.HealthCheck;
 import com.codahale.metrics.health.HealthCheckRegistry;
 import com.codahale.metrics.json.MetricsModule;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nordstrom.xrpc.XConfig;
 import com.nordstrom.xrpc.logging.ExceptionLogger;
@@ -52,11 +53,13 @@ import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import lombok.Getter;
@@ -69,7 +72,6 @@ public class Router {
   private final String workerNameFormat;
   private final int bossThreadCount;
   private final int workerThreadCount;
-  private final int MAX_PAYLOAD_SIZE;
   private final MetricRegistry metricRegistry = new MetricRegistry();
   final Slf4jReporter slf4jReporter =
       Slf4jReporter.forRegistry(metricRegistry)
@@ -84,6 +86,7 @@ public class Router {
           .convertRatesTo(TimeUnit.SECONDS)
           .convertDurationsTo(TimeUnit.MILLISECONDS)
           .build();
+  /** Null when serving cleartext. */
   private final Tls tls;
   @Getter private Channel channel;
   private EventLoopGroup bossGroup;
@@ -91,30 +94,109 @@ public class Router {
   private Class<? extends ServerChannel> channelClass;
 
   private final XrpcChannelContext ctx;
+  /** Runs offloaded handlers, or null if there are no handler threads. */
+  private final ListeningExecutorService handlerExecutor;
+
+  /** All routes added so far; guarded by this. */
+  private RouteTable.Builder routes = RouteTable.builder();
+  /** Whether routes has changed since it was last published; guarded by this. */
+  private boolean routesChanged;
 
   public Router(XConfig config) {
-    this(config, 1 * 1024 * 1024);
+    this(config, config.maxPayloadBytes());
   }
 
+  /**
+   * Construct a router that accepts request bodies of up to maxPayload bytes, overriding the
+   * configured limit. Routes may set their own limits.
+   */
   public Router(XConfig config, int maxPayload) {
     this.config = config;
     this.workerNameFormat = config.workerNameFormat();
     this.bossThreadCount = config.bossThreadCount();
     this.workerThreadCount = config.workerThreadCount();
-    this.tls = new Tls(config.cert(), config.key());
-    this.MAX_PAYLOAD_SIZE = maxPayload;
+    this.tls = config.cleartext() ? null : new Tls(config.cert(), config.key());
+
+    Meter http1Requests = metricRegistry.meter("http1.requests");
+    Meter reusedConnections = metricRegistry.meter("http1.reusedConnectionRequests");
+    metricRegistry.register(
+        "http1.connectionReuseRatio",
+        new RatioGauge() {
+          @Override
+          protected Ratio getRatio() {
+            return Ratio.of(reusedConnections.getCount(), http1Requests.getCount());
+          }
+        });
 
-    this.ctx = XrpcChannelContext.builder().requestMeter(metricRegistry.meter("requests")).build();
+    this.handlerExecutor = handlerExecutor(config);
+    this.ctx =
+        XrpcChannelContext.builder()
+            .requestMeter(metricRegistry.meter("requests"))
+            .http1RequestMeter(http1Requests)
+            .reusedConnectionMeter(reusedConnections)
+            .keepAliveTimeoutMeter(metricRegistry.meter("http1.keepAliveTimeouts"))
+            .http2StreamMeter(metricRegistry.meter("http2.streams"))
+            .http2ActiveStreams(metricRegistry.counter("http2.activeStreams"))
+            .http2StreamsPerConnection(metricRegistry.histogram("http2.streamsPerConnection"))
+            .http2InboundWindowExhaustedMeter(metricRegistry.meter("http2.inboundWindowExhausted"))
+            .http2OutboundWindowExhaustedMeter(
+                metricRegistry.meter("http2.outboundWindowExhausted"))
+            .http2WindowGrowthMeter(metricRegistry.meter("http2.connectionWindowGrowths"))
+            .maxPayloadBytes(maxPayload)
+            .asyncTimeoutMillis(config.asyncHandlerTimeoutMillis())
+            .deadlineHeader(config.deadlineHeader())
+            .expiredRequestMeter(metricRegistry.meter("requests.expired"))
+            .handlerExecutor(handlerExecutor)
+            .handlerRejectedMeter(metricRegistry.meter("handlers.rejected"))
+            .frameTracing(
+                new FrameTracing(
+                    new FrameTracing.Settings(
+                        config.http2FrameTraceSampleRate(),
+                        EnumSet.allOf(FrameTracing.FrameType.class),
+                        config.http2FrameTraceRingSize()),
+                    config.http2FrameTraceConnections()))
+            .compressor(
+                new ResponseCompressor(
+                    config.compressionLevel(),
+                    config.compressionMinSize(),
+                    config.compressibleContentTypes(),
+                    config.compressionCacheBytes()))
+            .build();
 
     configResponseCodeMeters();
   }
 
+  /**
+   * Returns the executor for offloaded handlers, or null if it has no threads. A pool has its queue
+   * length and busy threads as gauges.
+   */
+  private ListeningExecutorService handlerExecutor(XConfig config) {
+    int threads = config.handlerThreadCount();
+    if (threads == 0) {
+      return null;
+    }
+
+    if (config.handlerVirtualThreads()) {
+      ExecutorService virtual = HandlerExecutors.virtual();
+      if (virtual != null) {
+        log.info("Offloaded handlers run on virtual threads");
+        return MoreExecutors.listeningDecorator(virtual);
+      }
+      log.warn("This JDK has no virtual threads; offloaded handlers run on {} threads", threads);
+    }
+
+    ThreadPoolExecutor executor = HandlerExecutors.pooled(threads, config.handlerQueueSize());
+    metricRegistry.register("handlers.queued", (Gauge<Integer>) () -> executor.getQueue().size());
+    metricRegistry.register("handlers.active", (Gauge<Integer>) executor::getActiveCount);
+    return MoreExecutors.listeningDecorator(executor);
+  }
+
   private static ThreadFactory threadFactory(String nameFormat) {
     return new ThreadFactoryBuilder().setNameFormat(nameFormat).build();
   }
 
   private void configResponseCodeMeters() {
-    final Map<HttpResponseStatus, String> meterNamesByStatusCode = new ConcurrentHashMap<>(6);
+    final Map<HttpResponseStatus, String> meterNamesByStatusCode = new ConcurrentHashMap<>(7);
 
     // Create the proper metrics containers
     final String NAME_PREFIX = "responseCodes.";
@@ -123,8 +205,17 @@ public class Router {
     meterNamesByStatusCode.put(HttpResponseStatus.NO_CONTENT, NAME_PREFIX + "noContent");
     meterNamesByStatusCode.put(HttpResponseStatus.BAD_REQUEST, NAME_PREFIX + "badRequest");
     meterNamesByStatusCode.put(HttpResponseStatus.NOT_FOUND, NAME_PREFIX + "notFound");
+    meterNamesByStatusCode.put(
+        HttpResponseStatus.METHOD_NOT_ALLOWED, NAME_PREFIX + "methodNotAllowed");
+    meterNamesByStatusCode.put(
+        HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, NAME_PREFIX + "requestEntityTooLarge");
+    meterNamesByStatusCode.put(
+        HttpResponseStatus.EXPECTATION_FAILED, NAME_PREFIX + "expectationFailed");
     meterNamesByStatusCode.put(
         HttpResponseStatus.INTERNAL_SERVER_ERROR, NAME_PREFIX + "serverError");
+    meterNamesByStatusCode.put(
+        HttpResponseStatus.SERVICE_UNAVAILABLE, NAME_PREFIX + "serviceUnavailable");
+    meterNamesByStatusCode.put(HttpResponseStatus.GATEWAY_TIMEOUT, NAME_PREFIX + "gatewayTimeout");
 
     for (Map.Entry<HttpResponseStatus, String> entry : meterNamesByStatusCode.entrySet()) {
       ctx.getMetersByStatusCode().put(entry.getKey(), metricRegistry.meter(entry.getValue()));
@@ -156,51 +247,112 @@ public class Router {
     addRoute(s, handler, XHttpMethod.ANY);
   }
 
-  public void addRoute(String route, Handler handler, HttpMethod method) {
-    Preconditions.checkState(method != null);
-    Preconditions.checkState(handler != null);
-
-    ImmutableMap<XHttpMethod, Handler> handlerMap =
-        new ImmutableMap.Builder<XHttpMethod, Handler>()
-            .put(new XHttpMethod(method.name()), handler)
-            .build();
-
-    Route _route = Route.build(route);
-    Optional<ImmutableSortedMap<Route, List<ImmutableMap<XHttpMethod, Handler>>>> routesOptional =
-        Optional.ofNullable(ctx.getRoutes().get());
-
-    if (routesOptional.isPresent()) {
+  /**
+   * Add a route. Routes added before the server starts are compiled together when it starts; routes
+   * added while it is serving are published immediately, which recompiles the whole table. To
+   * change many routes on a running server, prefer {@link #setRoutes(RouteTable.Builder)}.
+   */
+  public synchronized void addRoute(String route, Handler handler, HttpMethod method) {
+    routes.addRoute(route, handler, method);
+    routesChanged = true;
+    if (channel != null) {
+      publishRoutes();
+    }
+  }
 
-      if (routesOptional.get().containsKey(_route)) {
-        ImmutableSortedMap<Route, List<ImmutableMap<XHttpMethod, Handler>>> _routes =
-            routesOptional.get();
-        _routes.get(_route).add(handlerMap);
-        ctx.getRoutes().set(_routes);
+  /**
+   * Add a route which streams request bodies to its handler as they arrive. Routes are published as
+   * with {@link #addRoute(String, Handler, HttpMethod)}.
+   */
+  public synchronized void addStreamingRoute(
+      String route, StreamingHandler handler, HttpMethod method) {
+    routes.addStreamingRoute(route, handler, method);
+    routesChanged = true;
+    if (channel != null) {
+      publishRoutes();
+    }
+  }
 
-      } else {
-        ImmutableSortedMap.Builder<Route, List<ImmutableMap<XHttpMethod, Handler>>> routeMap =
-            new ImmutableSortedMap.Builder<Route, List<ImmutableMap<XHttpMethod, Handler>>>(
-                    Ordering.usingToString())
-                .put(Route.build(route), Lists.newArrayList(handlerMap));
+  /**
+   * Add a route whose handler responds asynchronously. Routes are published as with {@link
+   * #addRoute(String, Handler, HttpMethod)}.
+   */
+  public synchronized void addAsyncRoute(String route, AsyncHandler handler, HttpMethod method) {
+    routes.addAsyncRoute(route, handler, method);
+    routesChanged = true;
+    if (channel != null) {
+      publishRoutes();
+    }
+  }
 
-        routesOptional.map(value -> routeMap.putAll(value.descendingMap()));
+  /**
+   * Set the options of a route, which apply to every method registered for it. See {@link
+   * RouteTable.Builder#setRouteOptions(String, RouteOptions)}.
+   */
+  public synchronized void setRouteOptions(String route, RouteOptions options) {
+    routes.setRouteOptions(route, options);
+    routesChanged = true;
+    if (channel != null) {
+      publishRoutes();
+    }
+  }
 
-        ctx.getRoutes().set(routeMap.build());
-      }
-    } else {
-      ImmutableSortedMap.Builder<Route, List<ImmutableMap<XHttpMethod, Handler>>> routeMap =
-          new ImmutableSortedMap.Builder<Route, List<ImmutableMap<XHttpMethod, Handler>>>(
-                  Ordering.usingToString())
-              .put(Route.build(route), Lists.newArrayList(handlerMap));
+  /**
+   * Atomically replace all routes with those in the given builder. Requests already in flight
+   * finish against the old routes. Note that this also replaces the admin routes; to keep them,
+   * start from {@code getRouteTable().toBuilder()}.
+   */
+  public synchronized void setRoutes(RouteTable.Builder builder) {
+    routes = builder.copy();
+    publishRoutes();
+  }
 
-      ctx.getRoutes().set(routeMap.build());
+  /** @return the routes currently being served, including any added since the server started */
+  public synchronized RouteTable getRouteTable() {
+    if (routesChanged) {
+      publishRoutes();
     }
+    return ctx.getRouteTable().get();
   }
 
+  /**
+   * @deprecated use {@link #getRouteTable()}; the routes returned here leave out any handlers that
+   *     are not ordinary {@link Handler}s
+   */
+  @Deprecated
   public AtomicReference<ImmutableSortedMap<Route, List<ImmutableMap<XHttpMethod, Handler>>>>
       getRoutes() {
 
-    return ctx.getRoutes();
+    return new AtomicReference<>(
+        ImmutableSortedMap.copyOfSorted(
+            Maps.transformValues(getRouteTable().getRoutes(), Router::ordinaryHandlers)));
+  }
+
+  /** Returns the ordinary handlers among the given ones. */
+  private static List<ImmutableMap<XHttpMethod, Handler>> ordinaryHandlers(
+      List<ImmutableMap<XHttpMethod, RouteHandler>> handlerMaps) {
+    ImmutableList.Builder<ImmutableMap<XHttpMethod, Handler>> ordinary = ImmutableList.builder();
+    for (ImmutableMap<XHttpMethod, RouteHandler> handlerMap : handlerMaps) {
+      ordinary.add(
+          ImmutableMap.copyOf(
+              Maps.transformValues(
+                  Maps.filterValues(
+                      handlerMap, handler -> handler.kind() == RouteHandler.Kind.ORDINARY),
+                  RouteHandler::handler)));
+    }
+    return ordinary.build();
+  }
+
+  /** Compile the pending routes and swap them in for new requests. */
+  private void publishRoutes() {
+    // Publishing a new table also discards the old table's match cache.
+    ctx.getRouteTable()
+        .set(
+            routes.build(
+                config.routeCacheSize(),
+                metricRegistry.meter("routeCache.hits"),
+                metricRegistry.meter("routeCache.misses")));
+    routesChanged = false;
   }
 
   public MetricRegistry getMetricRegistry() {
@@ -220,6 +372,10 @@ public class Router {
         HttpMethod.GET);
     addRoute(
         "/metrics", AdminHandlers.metricsHandler(metricRegistry, metricsMapper), HttpMethod.GET);
+    Handler frameTracingHandler =
+        AdminHandlers.frameTracingHandler(ctx.getFrameTracing(), new ObjectMapper());
+    addRoute("/admin/http2-frames", frameTracingHandler, HttpMethod.GET);
+    addRoute("/admin/http2-frames", frameTracingHandler, HttpMethod.POST);
   }
 
   public void listenAndServe() throws IOException {
@@ -231,9 +387,11 @@ public class Router {
             metricRegistry,
             config.rateLimit()); // RateLimit incomming connections in terms of req / second
 
+    // Compile everything registered before startup in one pass.
+    getRouteTable();
+
     ServerBootstrap b = new ServerBootstrap();
-    UrlRouter router = new UrlRouter(ctx);
-    Http2OrHttpHandler h1h2 = new Http2OrHttpHandler(router, ctx);
+    Http2OrHttpHandler h1h2 = new Http2OrHttpHandler(ctx, config);
 
     if (Epoll.isAvailable()) {
       log.info("Using Epoll");
@@ -270,10 +428,16 @@ public class Router {
             ChannelPipeline cp = ch.pipeline();
             cp.addLast("serverConnectionLimiter", globalConnectionLimiter);
             cp.addLast("serverRateLimiter", rateLimiter);
-            cp.addLast(
-                "encryptionHandler", tls.getEncryptionHandler(ch.alloc())); // Add Config for Certs
             //cp.addLast("messageLogger", new MessageLogger()); // TODO(JR): Do not think we need this
-            cp.addLast("codec", h1h2);
+            if (tls == null) {
+              // Without TLS there is no ALPN, so the protocol is chosen from the first bytes read.
+              cp.addLast("protocolDetector", new CleartextHttp2OrHttpHandler(h1h2));
+            } else {
+              cp.addLast(
+                  "encryptionHandler",
+                  tls.getEncryptionHandler(ch.alloc())); // Add Config for Certs
+              cp.addLast("codec", h1h2);
+            }
             cp.addLast(
                 "idleDisconnectHandler",
                 new IdleDisconnectHandler(
@@ -303,10 +467,17 @@ public class Router {
       throw new IOException("Failed to bind", future.cause());
     }
 
-    channel = future.channel();
+    synchronized (this) {
+      channel = future.channel();
+    }
+    // Pick up any routes added while binding.
+    getRouteTable();
   }
 
   public void shutdown() {
+    if (handlerExecutor != null) {
+      handlerExecutor.shutdown();
+    }
     if (channel == null || !channel.isOpen()) {
       return;
     }
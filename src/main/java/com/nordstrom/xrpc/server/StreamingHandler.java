@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import java.io.IOException;
+
+/**
+ * A handler for a route which receives its request body in pieces, as they arrive, instead of all
+ * at once. Use this for bodies too large to buffer, or to start work before the whole body is in.
+ * Register it with {@link Router#addStreamingRoute}:
+ *
+ * <pre>{@code
+ * router.addStreamingRoute("/upload", request -> new BodyListener() { ... }, HttpMethod.POST);
+ * }</pre>
+ *
+ * <p>For HTTP/1.1 requests, {@link XrpcRequest#getH1Request()} has an empty body.
+ */
+@FunctionalInterface
+public interface StreamingHandler {
+  /**
+   * Called when the request headers arrive, before any of the body.
+   *
+   * @return the listener to receive the body
+   */
+  BodyListener onRequest(XrpcRequest request) throws IOException;
+}
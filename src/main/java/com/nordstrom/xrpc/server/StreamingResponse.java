@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedInput;
+import lombok.Getter;
+
+/**
+ * A response whose body is written a chunk at a time, as the client takes it, instead of being held
+ * in memory. Return one from a handler to send a large or incrementally produced body. The body is
+ * any {@link ChunkedInput}, like Netty's {@link io.netty.handler.stream.ChunkedStream} or {@link
+ * io.netty.handler.stream.ChunkedNioFile}.
+ *
+ * <p>Chunks are read from the body only while the connection can take them: while the socket's
+ * write buffer is below its high water mark on HTTP/1.x, and while the stream has flow control
+ * window on HTTP/2. Without a Content-Length, HTTP/1.1 responses are sent with chunked transfer
+ * encoding, and HTTP/1.0 responses end by closing the connection.
+ *
+ * <p>A body which produces data over time can return null from {@link
+ * ChunkedInput#readChunk(io.netty.buffer.ByteBufAllocator)} while it has nothing to send, and call
+ * {@link #resumeTransfer()} once it has. The body is closed once it has been written, or if the
+ * connection is lost first.
+ */
+public class StreamingResponse extends DefaultHttpResponse {
+  @Getter private final ChunkedInput<ByteBuf> body;
+
+  /** Called to resume writing, once the body is being written. */
+  private volatile Runnable resume;
+
+  public StreamingResponse(HttpResponseStatus status, ChunkedInput<ByteBuf> body) {
+    super(HttpVersion.HTTP_1_1, status);
+    this.body = body;
+  }
+
+  /**
+   * Resume writing a body that had no chunk ready. This may be called from any thread, and does
+   * nothing if the body isn't being written yet or is finished.
+   */
+  public void resumeTransfer() {
+    Runnable resume = this.resume;
+    if (resume != null) {
+      resume.run();
+    }
+  }
+
+  void onResume(Runnable resume) {
+    this.resume = resume;
+  }
+}
@@ -3,84 +3,540 @@ package com.nordstrom.xrpc.server;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
 
-import com.google.common.collect.ImmutableMap;
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.FutureCallback;
+import com.nordstrom.xrpc.Deadline;
 import com.nordstrom.xrpc.client.XUrl;
-import com.nordstrom.xrpc.server.http.Route;
-import com.nordstrom.xrpc.server.http.XHttpMethod;
+import com.nordstrom.xrpc.server.http.PathVariables;
+import com.nordstrom.xrpc.server.http.RouteTrie;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
-import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.*;
-import java.util.Map;
-import java.util.Optional;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
 
-@ChannelHandler.Sharable
+/**
+ * Dispatches HTTP/1.x requests to the handler for their route. An ordinary {@link Handler} is
+ * called with the whole request once its body has arrived, which is collected here up to a maximum
+ * size. A {@link StreamingHandler} is called as soon as the headers arrive, and is handed the body
+ * piece by piece as it is read. An {@link AsyncHandler} is called like an ordinary handler, and its
+ * response written whenever it is ready.
+ *
+ * <p>The body of a {@link StreamingResponse} is written as the client takes it. While one is being
+ * written, no further requests are read.
+ *
+ * <p>One instance per connection.
+ */
+@Slf4j
 public class UrlRouter extends ChannelDuplexHandler {
+  /** The most buffers a collected body is composed of before they are copied together. */
+  static final int MAX_BODY_COMPONENTS = 1024;
+
   private final XrpcChannelContext xctx;
 
-  public UrlRouter(XrpcChannelContext ctx) {
+  /** The request whose body is being read, or null between requests. */
+  private HttpRequest request;
+  /** The pipelining sequence of the request, or -1 if requests aren't sequenced. */
+  private int sequence;
+  /** The largest body to accept for the request, or -1 for no limit. */
+  private int maxPayloadBytes;
+  /** The body bytes received so far. */
+  private long received;
+  /** Whether the client is waiting to be told to continue before it sends the body. */
+  private boolean continueExpected;
+  /** When the client stops waiting for the response, or null if it didn't say. */
+  private Deadline deadline;
+
+  private PathVariables variables;
+  /** The ordinary or asynchronous handler the body is being collected for. */
+  private RouteHandler handler;
+  /** How long the handler has to respond, if it is an {@link AsyncHandler}. */
+  private long timeoutMillis;
+  /** The body collected so far, or null if none has arrived. */
+  private CompositeByteBuf body;
+  /** The listener the body is being streamed to. */
+  private BodyListener listener;
+  /** The request whose body is being streamed to the listener. */
+  private XrpcRequest streamedRequest;
+  /** The requests whose asynchronous handlers haven't yet responded. */
+  private final List<XrpcRequest> handling = new ArrayList<>();
+
+  /** The streamed response bodies still to be written, the one being written first. */
+  private final ArrayDeque<ResponseBodyWriter> bodyWriters = new ArrayDeque<>();
 
+  public UrlRouter(XrpcChannelContext ctx) {
     this.xctx = ctx;
   }
 
   @Override
   public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-    xctx.getRequestMeter().mark();
-
-    if (msg instanceof HttpRequest) {
-      FullHttpRequest request = (FullHttpRequest) msg;
-      String path = XUrl.getPath(request.uri());
-      for (Route route : xctx.getRoutes().get().descendingKeySet()) {
-        Optional<Map<String, String>> groups = Optional.ofNullable(route.groups(path));
-        if (groups.isPresent()) {
-          XrpcRequest xrpcRequest = new XrpcRequest(request, groups.get(), ctx.channel());
-
-          HttpResponse resp;
-          Optional<ImmutableMap<XHttpMethod, Handler>> handlerMapOptional =
-              xctx.getRoutes()
-                  .get()
-                  .get(route)
-                  .stream()
-                  .filter(
-                      m -> m.keySet().stream().anyMatch(mx -> mx.compareTo(request.method()) == 0))
-                  .findFirst();
-
-          if (handlerMapOptional.isPresent()) {
-            resp =
-                handlerMapOptional
-                    .get()
-                    .get(handlerMapOptional.get().keySet().asList().get(0))
-                    .handle(xrpcRequest);
-          } else {
-            resp =
-                xctx.getRoutes()
-                    .get()
-                    .get(route)
-                    .stream()
-                    .filter(mx -> mx.containsKey(XHttpMethod.ANY))
-                    .findFirst()
-                    .get()
-                    .get(XHttpMethod.ANY)
-                    .handle(xrpcRequest);
+    // Pipelined requests are numbered, and their responses must carry the same number.
+    int sequence = -1;
+    if (msg instanceof HttpPipeliningHandler.SequencedRequest) {
+      HttpPipeliningHandler.SequencedRequest sequenced =
+          (HttpPipeliningHandler.SequencedRequest) msg;
+      sequence = sequenced.getSequence();
+      msg = sequenced.getRequest();
+    }
+
+    try {
+      // A FullHttpRequest is both the head and the whole body.
+      if (msg instanceof HttpRequest) {
+        xctx.getRequestMeter().mark();
+        onRequest(ctx, (HttpRequest) msg, sequence);
+      }
+      if (msg instanceof HttpContent && request != null) {
+        onContent(ctx, (HttpContent) msg);
+      }
+    } finally {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  private void onRequest(ChannelHandlerContext ctx, HttpRequest request, int sequence) {
+    this.request = request;
+    this.sequence = sequence;
+    this.received = 0;
+    this.continueExpected =
+        HttpUtil.is100ContinueExpected(request) && !(request instanceof FullHttpRequest);
+    this.deadline = xctx.deadline(request.headers());
+
+    if (isUnsupportedExpectation(request)) {
+      reject(ctx, HttpResponseStatus.EXPECTATION_FAILED);
+      return;
+    }
+
+    String path = XUrl.getRequestPath(request.uri());
+    RouteTrie.Match<MethodDispatch> match = xctx.getRouteTable().get().match(path);
+    if (match == null) {
+      reject(ctx, HttpResponseStatus.NOT_FOUND);
+      return;
+    }
+
+    RouteHandler handler =
+        xctx.handler(match.getValue(), match.getValue().handler(request.method()));
+    if (handler == null) {
+      reject(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED);
+      return;
+    }
+
+    maxPayloadBytes = xctx.maxPayloadBytes(match.getValue(), handler);
+    if (maxPayloadBytes >= 0 && HttpUtil.getContentLength(request, -1L) > maxPayloadBytes) {
+      reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    if (handler.kind() == RouteHandler.Kind.STREAMING) {
+      FullHttpRequest head =
+          new DefaultFullHttpRequest(
+              request.protocolVersion(),
+              request.method(),
+              request.uri(),
+              Unpooled.EMPTY_BUFFER,
+              request.headers(),
+              EmptyHttpHeaders.INSTANCE);
+      streamedRequest = new XrpcRequest(head, match.getVariables(), ctx.channel());
+      streamedRequest.setDeadline(deadline);
+      if (xctx.expired(streamedRequest)) {
+        reject(ctx, HttpResponseStatus.GATEWAY_TIMEOUT);
+        return;
+      }
+      try {
+        listener = handler.streamingHandler().onRequest(streamedRequest);
+      } catch (Exception e) {
+        log.error("Error in handling Route", e);
+        reject(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        return;
+      }
+    } else {
+      this.handler = handler;
+      this.timeoutMillis = xctx.asyncTimeoutMillis(match.getValue());
+      this.variables = match.getVariables();
+    }
+
+    if (continueExpected) {
+      continueExpected = false;
+      ctx.writeAndFlush(
+          sequenced(
+              new DefaultFullHttpResponse(
+                  HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER),
+              sequence));
+    }
+  }
+
+  /** Returns whether the request expects something other than to be told to continue. */
+  private static boolean isUnsupportedExpectation(HttpRequest request) {
+    String expect = request.headers().get(HttpHeaderNames.EXPECT);
+    return expect != null
+        && !request.protocolVersion().equals(HttpVersion.HTTP_1_0)
+        && !HttpHeaderValues.CONTINUE.contentEqualsIgnoreCase(expect);
+  }
+
+  /** Returns whether the body received so far, including the given content, is within the limit. */
+  private boolean withinLimit(HttpContent content) {
+    received += content.content().readableBytes();
+    return maxPayloadBytes < 0 || received <= maxPayloadBytes;
+  }
+
+  private void onContent(ChannelHandlerContext ctx, HttpContent content) {
+    boolean last = content instanceof LastHttpContent;
+    if (listener != null) {
+      streamContent(ctx, content, last);
+    } else if (handler != null) {
+      collectContent(ctx, content, last);
+    }
+
+    if (last) {
+      finishRequest(ctx);
+    }
+  }
+
+  private void streamContent(ChannelHandlerContext ctx, HttpContent content, boolean last) {
+    if (!withinLimit(content)) {
+      listener.onAbort(
+          new TooLongFrameException("Request body is larger than " + maxPayloadBytes + " bytes"));
+      reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    HttpResponse response;
+    try {
+      if (content.content().isReadable()) {
+        listener.onData(content.content());
+      }
+      if (!last) {
+        return;
+      }
+      response = listener.onComplete();
+    } catch (Exception e) {
+      log.error("Error in handling Route", e);
+      listener.onAbort(e);
+      response = emptyResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+    }
+    respond(ctx, response);
+  }
+
+  private void collectContent(ChannelHandlerContext ctx, HttpContent content, boolean last) {
+    // Skip the copy for a request that arrived whole.
+    if (last && body == null && content instanceof FullHttpRequest) {
+      dispatch(ctx, (FullHttpRequest) content);
+      return;
+    }
+
+    if (!withinLimit(content)) {
+      reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+    if (content.content().isReadable()) {
+      if (body == null) {
+        body = ctx.alloc().compositeBuffer(MAX_BODY_COMPONENTS);
+      }
+      body.addComponent(true, content.content().retain());
+    }
+
+    if (last) {
+      FullHttpRequest full =
+          new DefaultFullHttpRequest(
+              request.protocolVersion(),
+              request.method(),
+              request.uri(),
+              body == null ? Unpooled.EMPTY_BUFFER : body,
+              request.headers(),
+              ((LastHttpContent) content).trailingHeaders());
+      body = null;
+      try {
+        dispatch(ctx, full);
+      } finally {
+        full.release();
+      }
+    }
+  }
+
+  private void dispatch(ChannelHandlerContext ctx, FullHttpRequest request) {
+    XrpcRequest xrpcRequest = new XrpcRequest(request, variables, ctx.channel());
+    xrpcRequest.setDeadline(deadline);
+    if (xctx.expired(xrpcRequest)) {
+      // Nobody is waiting for the response, so the handler is spared the work.
+      respond(ctx, emptyResponse(HttpResponseStatus.GATEWAY_TIMEOUT));
+      return;
+    }
+    if (handler.kind() == RouteHandler.Kind.ASYNC) {
+      dispatchAsync(ctx, request, xrpcRequest);
+      return;
+    }
+
+    HttpResponse resp;
+    try {
+      resp = handler.handler().handle(xrpcRequest);
+    } catch (Exception e) {
+      // Every request must be answered, or a kept-alive connection would stall behind it.
+      log.error("Error in handling Route", e);
+      resp = emptyResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+    }
+    respond(ctx, resp);
+  }
+
+  /**
+   * Start an asynchronous handler, and answer the request once it responds. Meanwhile, the requests
+   * after it are read and handled, and the pipelining handler keeps their responses in order.
+   */
+  private void dispatchAsync(
+      ChannelHandlerContext ctx, FullHttpRequest request, XrpcRequest xrpcRequest) {
+    AsyncHandler handler = this.handler.asyncHandler();
+    this.handler = null;
+    // These are replaced by the next request, which may arrive before the response is ready.
+    HttpRequest head = this.request;
+    int sequence = this.sequence;
+    // The body is the handler's until it responds.
+    request.retain();
+    handling.add(xrpcRequest);
+    AsyncDispatch.execute(
+        ctx,
+        handler,
+        xrpcRequest,
+        timeoutMillis,
+        new FutureCallback<HttpResponse>() {
+          @Override
+          public void onSuccess(HttpResponse response) {
+            handling.remove(xrpcRequest);
+            request.release();
+            write(ctx, response, head, sequence);
           }
 
-          xctx.getMetersByStatusCode().get(resp.status()).mark();
+          @Override
+          public void onFailure(Throwable cause) {
+            handling.remove(xrpcRequest);
+            request.release();
+            if (!xrpcRequest.isCancelled()) {
+              write(ctx, emptyResponse(AsyncDispatch.failureStatus(cause)), head, sequence);
+            }
+          }
+        });
+  }
+
+  /**
+   * Answer the request before its body has been read. The connection is closed after a 413, rather
+   * than reading a body that is too large, and after any answer to a client that hasn't yet been
+   * told whether to send its body, as the request's end can't be found.
+   */
+  private void reject(ChannelHandlerContext ctx, HttpResponseStatus status) {
+    FullHttpResponse response = emptyResponse(status);
+    boolean hasBody =
+        HttpUtil.getContentLength(request, 0L) > 0 || HttpUtil.isTransferEncodingChunked(request);
+    if (status.equals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE)
+        || (continueExpected && hasBody)) {
+      response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+    }
+    respond(ctx, response);
+  }
+
+  /** Answer the request. Any of its body still to arrive is dropped. */
+  private void respond(ChannelHandlerContext ctx, HttpResponse response) {
+    handler = null;
+    listener = null;
+    streamedRequest = null;
+    releaseBody();
+    write(ctx, response, request, sequence);
+  }
+
+  private void finishRequest(ChannelHandlerContext ctx) {
+    request = null;
+    variables = null;
+    deadline = null;
+    // A listener that paused the body shouldn't stall the requests after it.
+    AutoRead.resume(ctx.channel(), AutoRead.Reason.REQUEST_BODY);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    if (listener != null) {
+      listener.onAbort(new ClosedChannelException());
+      listener = null;
+    }
+    cancelRequests();
+    releaseBody();
+    abortBodyWriters();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    releaseBody();
+    abortBodyWriters();
+  }
+
+  /** Cancel the requests that are still being handled, as their client has gone. */
+  private void cancelRequests() {
+    if (streamedRequest != null) {
+      streamedRequest.cancel();
+      streamedRequest = null;
+    }
+    // Cancelling a request completes its handler's future, which takes it off the list.
+    for (XrpcRequest request : new ArrayList<>(handling)) {
+      request.cancel();
+    }
+    handling.clear();
+  }
+
+  private void abortBodyWriters() {
+    for (ResponseBodyWriter writer : bodyWriters) {
+      writer.abort();
+    }
+    bodyWriters.clear();
+  }
+
+  private void releaseBody() {
+    if (body != null) {
+      body.release();
+      body = null;
+    }
+  }
+
+  private static FullHttpResponse emptyResponse(HttpResponseStatus status) {
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+    response.headers().set(CONTENT_TYPE, "text/plain");
+    response.headers().setInt(CONTENT_LENGTH, 0);
+    return response;
+  }
+
+  /** Write the response to the given request, which carries the given pipelining sequence. */
+  private void write(
+      ChannelHandlerContext ctx, HttpResponse response, HttpRequest request, int sequence) {
+    Meter meter = xctx.getMetersByStatusCode().get(response.status());
+    if (meter != null) {
+      meter.mark();
+    }
 
-          ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
-          ctx.fireChannelRead(msg);
-          return;
-        }
+    if (response instanceof StreamingResponse) {
+      writeStreaming(ctx, (StreamingResponse) response, request, sequence);
+    } else {
+      if (response instanceof FullHttpResponse && request != null) {
+        response =
+            xctx.getCompressor()
+                .compress(
+                    (FullHttpResponse) response,
+                    request.headers().get(HttpHeaderNames.ACCEPT_ENCODING),
+                    request.uri(),
+                    ctx.alloc());
       }
-      // No matching route.
-      FullHttpResponse response =
-          new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
-      response.headers().set(CONTENT_TYPE, "text/plain");
-      response.headers().setInt(CONTENT_LENGTH, 0);
-      ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-      xctx.getMetersByStatusCode().get(HttpResponseStatus.NOT_FOUND).mark();
-    }
-    ctx.fireChannelRead(msg);
+      if (response instanceof PrebuiltResponse) {
+        response = ((PrebuiltResponse) response).toHttp1();
+      }
+      ctx.writeAndFlush(sequenced(response, sequence));
+    }
+  }
+
+  private void writeStreaming(
+      ChannelHandlerContext ctx, StreamingResponse response, HttpRequest request, int sequence) {
+    if (!HttpUtil.isContentLengthSet(response)) {
+      if (request.protocolVersion().equals(HttpVersion.HTTP_1_0)) {
+        // HTTP/1.0 has no chunked encoding, so the body ends when the connection does.
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+      } else {
+        HttpUtil.setTransferEncodingChunked(response, true);
+      }
+    }
+
+    // Behind a pipelining handler, the head is held back until the responses before it have been
+    // written, and so would every chunk read meanwhile. So none are read until the head has gone.
+    ChannelFuture headWritten = ctx.write(sequenced(response, sequence));
+    ResponseBodyWriter writer =
+        new ResponseBodyWriter(ctx, response) {
+          @Override
+          boolean isWritable() {
+            // Only the body at the head of the queue is written; the others wait their turn.
+            return bodyWriters.peek() == this && headWritten.isDone() && ctx.channel().isWritable();
+          }
+
+          @Override
+          ChannelFuture writeChunk(ByteBuf chunk, boolean last) {
+            HttpContent content =
+                last ? new DefaultLastHttpContent(chunk) : new DefaultHttpContent(chunk);
+            return ctx.write(sequenced(content, sequence));
+          }
+
+          @Override
+          void flush() {
+            ctx.flush();
+          }
+
+          @Override
+          void fail(Exception cause) {
+            // The status line has gone, so the client can only learn of the failure this way.
+            ctx.close();
+          }
+
+          @Override
+          void finished() {
+            bodyFinished(ctx, this);
+          }
+        };
+
+    // Bodies are written one at a time, in response order, and no more requests are read until
+    // they have been.
+    bodyWriters.add(writer);
+    if (bodyWriters.size() == 1) {
+      AutoRead.pause(ctx.channel(), AutoRead.Reason.RESPONSE_BODY);
+    }
+    headWritten.addListener(
+        future -> {
+          if (future.isSuccess()) {
+            writer.write();
+          }
+        });
+    // The head goes out even if the body has nothing to send yet.
+    ctx.flush();
+  }
+
+  private void bodyFinished(ChannelHandlerContext ctx, ResponseBodyWriter writer) {
+    boolean head = bodyWriters.peek() == writer;
+    bodyWriters.remove(writer);
+    if (!head) {
+      return;
+    }
+    ResponseBodyWriter next = bodyWriters.peek();
+    if (next != null) {
+      next.write();
+    } else {
+      AutoRead.resume(ctx.channel(), AutoRead.Reason.RESPONSE_BODY);
+    }
+  }
+
+  private static Object sequenced(HttpObject message, int sequence) {
+    return sequence < 0 ? message : new HttpPipeliningHandler.SequencedResponse(message, sequence);
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (ctx.channel().isWritable() && !bodyWriters.isEmpty()) {
+      bodyWriters.peek().write();
+    }
+    super.channelWritabilityChanged(ctx);
   }
 
   @Override
@@ -1,13 +1,18 @@
 package com.nordstrom.xrpc.server;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSortedMap;
-import com.nordstrom.xrpc.server.http.Route;
-import com.nordstrom.xrpc.server.http.XHttpMethod;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.nordstrom.xrpc.Deadline;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import java.util.List;
+import io.netty.handler.codec.http2.Http2Headers;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import lombok.Builder;
 import lombok.Getter;
@@ -16,13 +21,142 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 @Builder
 public class XrpcChannelContext {
+  /** The default for {@link #getMaxPayloadBytes()}. */
+  static final int DEFAULT_MAX_PAYLOAD_BYTES = 1024 * 1024;
+
   @Getter private Meter requestMeter;
 
+  /** Requests received over HTTP/1.x. */
+  @Getter private Meter http1RequestMeter;
+  /** HTTP/1.x requests that reused a connection which had already served a request. */
+  @Getter private Meter reusedConnectionMeter;
+  /** Kept-alive HTTP/1.x connections closed for sitting idle between requests. */
+  @Getter private Meter keepAliveTimeoutMeter;
+
+  // The HTTP/2 metrics are only registered if the router supplies them.
+  /** Streams opened on HTTP/2 connections. */
+  @Builder.Default @Getter private Meter http2StreamMeter = new Meter();
+  /** The HTTP/2 streams open now, across all connections. */
+  @Builder.Default @Getter private Counter http2ActiveStreams = new Counter();
+  /** The number of streams each HTTP/2 connection opened, recorded when it closes. */
+  @Builder.Default @Getter
+  private Histogram http2StreamsPerConnection = new Histogram(new ExponentiallyDecayingReservoir());
+  /** Times a client used up a connection's receive window, and had to wait for the server. */
+  @Builder.Default @Getter private Meter http2InboundWindowExhaustedMeter = new Meter();
+  /** Times a response stream ran out of send window, and had to wait for the client. */
+  @Builder.Default @Getter private Meter http2OutboundWindowExhaustedMeter = new Meter();
+  /** Times a connection's receive window grew, because the client was filling it. */
+  @Builder.Default @Getter private Meter http2WindowGrowthMeter = new Meter();
+
   @Getter
   private final ConcurrentHashMap<HttpResponseStatus, Meter> metersByStatusCode =
       new ConcurrentHashMap<>(6);
 
+  /** The largest request body to collect for a route which doesn't set its own limit. */
+  @Builder.Default @Getter private int maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+
+  /**
+   * How long an {@link AsyncHandler} on a route without a timeout of its own has to respond, in
+   * milliseconds, or zero for no limit.
+   */
+  @Builder.Default @Getter private long asyncTimeoutMillis = 0;
+
+  /**
+   * Runs the ordinary handlers of routes that offload them, or null to run every handler on the
+   * event loops.
+   */
+  @Getter private ListeningExecutorService handlerExecutor;
+  /** Offloaded requests turned away because the handler executor's queue was full. */
+  @Builder.Default @Getter private Meter handlerRejectedMeter = new Meter();
+
+  /**
+   * The header clients send their deadlines in, or null to ignore deadlines. See {@link Deadline}.
+   */
+  @Getter private String deadlineHeader;
+  /** Requests answered with 504 without being handled, as their deadline had already passed. */
+  @Builder.Default @Getter private Meter expiredRequestMeter = new Meter();
+
+  /** Traces HTTP/2 frames; traces nothing unless configured. */
+  @Builder.Default @Getter private FrameTracing frameTracing = FrameTracing.off();
+
+  /** Compresses response bodies; compresses nothing unless configured. */
+  @Builder.Default @Getter private ResponseCompressor compressor = ResponseCompressor.DISABLED;
+
+  /** The routes being served. Replaced, never modified, when the routes change. */
   @Getter
-  private final AtomicReference<ImmutableSortedMap<Route, List<ImmutableMap<XHttpMethod, Handler>>>>
-      routes = new AtomicReference<>();
+  private final AtomicReference<RouteTable> routeTable = new AtomicReference<>(RouteTable.empty());
+
+  /**
+   * Returns the largest request body to accept for the given handler of a route, or -1 for no
+   * limit. A route's own limit always applies; otherwise bodies collected for ordinary handlers are
+   * limited to {@link #getMaxPayloadBytes()}, and bodies streamed to a {@link StreamingHandler} are
+   * not limited.
+   */
+  int maxPayloadBytes(MethodDispatch route, RouteHandler handler) {
+    if (route.options().getMaxPayloadBytes() != RouteOptions.DEFAULT_MAX_PAYLOAD) {
+      return route.options().getMaxPayloadBytes();
+    }
+    return handler.kind() == RouteHandler.Kind.STREAMING ? -1 : maxPayloadBytes;
+  }
+
+  /**
+   * Returns how long an {@link AsyncHandler} of the given route has to respond, in milliseconds, or
+   * zero for no limit.
+   */
+  long asyncTimeoutMillis(MethodDispatch route) {
+    if (route.options().getAsyncTimeoutMillis() != RouteOptions.DEFAULT_TIMEOUT) {
+      return route.options().getAsyncTimeoutMillis();
+    }
+    return asyncTimeoutMillis;
+  }
+
+  /**
+   * Returns what to call for the given handler of a route: the handler itself, or, if the route
+   * offloads its ordinary handlers, an {@link AsyncHandler} that runs it on the handler executor.
+   */
+  RouteHandler handler(MethodDispatch route, RouteHandler routeHandler) {
+    if (routeHandler == null
+        || handlerExecutor == null
+        || route.options().getExecution() != Execution.OFFLOAD
+        || routeHandler.kind() != RouteHandler.Kind.ORDINARY) {
+      return routeHandler;
+    }
+    Handler handler = routeHandler.handler();
+    return RouteHandler.async(
+        request -> {
+          try {
+            return handlerExecutor.submit(
+                () -> {
+                  // Nobody is waiting for a request whose deadline passed while it was queued.
+                  if (expired(request)) {
+                    throw new TimeoutException("Deadline passed before the handler started");
+                  }
+                  return handler.handle(request);
+                });
+          } catch (RejectedExecutionException e) {
+            handlerRejectedMeter.mark();
+            return Futures.immediateFailedFuture(e);
+          }
+        });
+  }
+
+  /** Returns the deadline of an HTTP/1.x request, or null if it has none. */
+  Deadline deadline(HttpHeaders headers) {
+    return deadlineHeader == null ? null : Deadline.parse(headers.get(deadlineHeader));
+  }
+
+  /** Returns the deadline of an HTTP/2 request, or null if it has none. */
+  Deadline deadline(Http2Headers headers) {
+    return deadlineHeader == null ? null : Deadline.parse(headers.get(deadlineHeader));
+  }
+
+  /** Returns whether the request's deadline has passed, counting it if so. */
+  boolean expired(XrpcRequest request) {
+    Deadline deadline = request.getDeadline();
+    if (deadline == null || !deadline.isExpired()) {
+      return false;
+    }
+    expiredRequestMeter.mark();
+    return true;
+  }
 }
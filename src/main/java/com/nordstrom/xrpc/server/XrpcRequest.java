@@ -16,17 +16,30 @@
 
 package com.nordstrom.xrpc.server;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nordstrom.xrpc.Deadline;
+import com.nordstrom.xrpc.server.http.PathVariables;
+import com.nordstrom.xrpc.server.http.QueryParameters;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.codec.http2.HttpConversionUtil;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -40,27 +53,50 @@ public class XrpcRequest {
   @Getter private final Channel upstreamChannel;
   @Getter private final ByteBufAllocator alloc;
   /** The variables captured from the route path. */
-  private final Map<String, String> groups;
+  @Getter private final PathVariables variables;
 
   private final int streamId;
 
+  /** The query parameters, indexed on first use. */
+  private QueryParameters query;
+
+  /**
+   * The body of an HTTP/2 request, as the frames it arrived in. It is released once the handler
+   * responds.
+   */
   @Setter private ByteBuf data;
 
-  public XrpcRequest(FullHttpRequest request, Map<String, String> groups, Channel channel) {
+  /** Whether the client accepts pushed responses to this request. */
+  private boolean pushEnabled;
+  /** The paths of the responses to push, in the order they were asked for. */
+  private List<String> pushes = ImmutableList.of();
+
+  /**
+   * When the client stops waiting for the response, or null if it didn't say. Calls made on the
+   * request's behalf should finish by then, by passing it on with {@link
+   * com.nordstrom.xrpc.client.Call#deadline(Deadline)}.
+   */
+  @Getter private Deadline deadline;
+
+  /** Whether the client has abandoned the request. */
+  private volatile boolean cancelled;
+  /** Completes once the request is cancelled, or null if nobody has asked. Guarded by this. */
+  private SettableFuture<Void> cancellation;
+
+  public XrpcRequest(FullHttpRequest request, PathVariables variables, Channel channel) {
     this.h1Request = request;
     this.h2Headers = null;
-    this.groups = groups;
+    this.variables = variables;
     this.upstreamChannel = channel;
     this.alloc = channel.alloc();
     this.eventLoop = channel.eventLoop();
     this.streamId = -1;
   }
 
-  public XrpcRequest(
-      Http2Headers headers, Map<String, String> groups, Channel channel, int streamId) {
+  public XrpcRequest(Http2Headers headers, PathVariables variables, Channel channel, int streamId) {
     this.h1Request = null;
     this.h2Headers = headers;
-    this.groups = groups;
+    this.variables = variables;
     this.upstreamChannel = channel;
     this.alloc = channel.alloc();
     this.eventLoop = channel.eventLoop();
@@ -69,7 +105,133 @@ public class XrpcRequest {
 
   /** Returns the variable with the given name, or null if that variable doesn't exist. */
   public String variable(String name) {
-    return groups.get(name);
+    return variables.get(name);
+  }
+
+  /**
+   * Returns the variable at the given index in the route's path pattern. This skips the name lookup
+   * in {@link #variable(String)}.
+   */
+  public String variable(int index) {
+    return variables.get(index);
+  }
+
+  /**
+   * Returns the query parameters of the request target. They are parsed the first time this is
+   * called, and values are only decoded when read.
+   */
+  public QueryParameters getQuery() {
+    // Racing threads would each build an equal, immutable instance, so this needs no lock.
+    QueryParameters query = this.query;
+    if (query == null) {
+      String target = h1Request != null ? h1Request.uri() : h2Headers.path().toString();
+      query = QueryParameters.parse(target);
+      this.query = query;
+    }
+    return query;
+  }
+
+  /**
+   * Stop reading the request body until {@link #resumeBody()} is called, so that a {@link
+   * BodyListener} can keep up. Reads are paused for the whole connection, which on HTTP/2 includes
+   * the other streams sharing it. Reads resume by themselves once the request is complete.
+   */
+  public void pauseBody() {
+    AutoRead.pause(upstreamChannel, AutoRead.Reason.REQUEST_BODY);
+  }
+
+  /** Resume reading a body paused with {@link #pauseBody()}. This may be called from any thread. */
+  public void resumeBody() {
+    AutoRead.resume(upstreamChannel, AutoRead.Reason.REQUEST_BODY);
+  }
+
+  /**
+   * Push the response to a GET of the given path to the client along with the response to this
+   * request, saving it the round trip of asking for a resource it is about to need. The pushed
+   * request is served through the route table like any other, with this request's scheme, authority
+   * and accepted encodings.
+   *
+   * <p>Pushes are promised to the client when this request's response is written, and only if that
+   * response is successful. Paths that no GET route serves are skipped, as are any that would take
+   * the client over its limit of concurrent streams.
+   *
+   * @param path the path and query to push, such as {@code /styles/main.css}
+   * @return false if nothing can be pushed to the client, because this request isn't HTTP/2 or the
+   *     client has disabled push
+   */
+  public boolean push(String path) {
+    Preconditions.checkArgument(path.startsWith("/"), "path must start with /: %s", path);
+    if (!pushEnabled) {
+      return false;
+    }
+    if (pushes.isEmpty()) {
+      pushes = new ArrayList<>();
+    }
+    pushes.add(path);
+    return true;
+  }
+
+  /** Set when the client stops waiting for the response. */
+  void setDeadline(Deadline deadline) {
+    this.deadline = deadline;
+  }
+
+  /** Allow the handler to push responses, for an HTTP/2 client that accepts them. */
+  void enablePush() {
+    pushEnabled = true;
+  }
+
+  /** Returns the paths the handler asked to push, in the order it asked. */
+  List<String> pushes() {
+    return pushes;
+  }
+
+  /**
+   * Returns whether the client has abandoned the request, by resetting its stream, going away with
+   * an error or closing the connection, so that nobody will read the response. A handler still
+   * working on the request may stop early, though its response is dropped either way.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Returns a future that completes once the request is cancelled, as described in {@link
+   * #isCancelled()}. Its listeners run on the event loop, and must not block. Cancelling the future
+   * itself has no effect on the request.
+   *
+   * <p>The future of an {@link AsyncHandler}, and the task of an offloaded handler, are cancelled
+   * along with the request. Calls the handler makes to other services on the request's behalf can
+   * be cancelled with it too, with {@link com.nordstrom.xrpc.client.Call#cancelOn}.
+   */
+  public ListenableFuture<Void> getCancellation() {
+    SettableFuture<Void> cancellation;
+    synchronized (this) {
+      if (this.cancellation == null) {
+        this.cancellation = SettableFuture.create();
+        if (cancelled) {
+          this.cancellation.set(null);
+        }
+      }
+      cancellation = this.cancellation;
+    }
+    return Futures.nonCancellationPropagating(cancellation);
+  }
+
+  /** Cancel the request, as the client has abandoned it. Only the first call has any effect. */
+  void cancel() {
+    SettableFuture<Void> cancellation;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      cancellation = this.cancellation;
+    }
+    // Listeners run outside the lock, as they may call back into the request.
+    if (cancellation != null) {
+      cancellation.set(null);
+    }
   }
 
   /** Create a convenience function to prevent direct access to the Allocator */
@@ -82,20 +244,27 @@ public class XrpcRequest {
     return MoreExecutors.listeningDecorator(eventLoop);
   }
 
+  /**
+   * Returns the request as HTTP/1.x. The body of an HTTP/2 request is shared rather than copied,
+   * and is only valid until the handler returns, or for an {@link AsyncHandler} until its future
+   * completes; a handler that uses it later, including in its response, must retain it.
+   */
   public FullHttpRequest getHttpRequest() {
     if (h1Request != null) {
       return h1Request;
     }
 
     if (h2Headers != null) {
+      // Fake out a full HTTP request.
+      FullHttpRequest synthesizedRequest =
+          new DefaultFullHttpRequest(
+              HttpVersion.HTTP_1_1,
+              HttpMethod.valueOf(h2Headers.method().toString()),
+              h2Headers.path().toString(),
+              data == null ? Unpooled.EMPTY_BUFFER : data.duplicate(),
+              true);
       try {
-        // Fake out a full HTTP request.
-        FullHttpRequest synthesizedRequest =
-            HttpConversionUtil.toFullHttpRequest(0, h2Headers, alloc, true);
-        if (data != null) {
-          synthesizedRequest.replace(data);
-        }
-
+        HttpConversionUtil.addHttp2ToHttpHeaders(streamId, h2Headers, synthesizedRequest, false);
         return synthesizedRequest;
       } catch (Http2Exception e) {
         // TODO(JR): Do something more meaningful with this exception
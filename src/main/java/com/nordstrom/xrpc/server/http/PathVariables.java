@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server.http;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The variables a {@link Route} captured from a path. Values are held as offsets into the original
+ * path, and are only copied out into Strings when read. Variables can be read by name, or by their
+ * index in the route's path pattern (see {@link Route#variableIndex(String)}).
+ *
+ * <p>Instances are immutable, and safe to share between requests for the same path.
+ */
+public final class PathVariables {
+  private static final int[] NO_OFFSETS = new int[0];
+
+  /** Variables for a route without any. */
+  public static final PathVariables EMPTY = new PathVariables(null, null, NO_OFFSETS);
+
+  private final Route route;
+  private final String path;
+  /** Start and end offset in path of each variable, by index. */
+  private final int[] offsets;
+
+  PathVariables(Route route, String path, int[] offsets) {
+    this.route = route;
+    this.path = path;
+    this.offsets = offsets;
+  }
+
+  /** @return the number of variables captured */
+  public int size() {
+    return offsets.length / 2;
+  }
+
+  /**
+   * @return the variable at the given index in the route's path pattern, or null if it didn't
+   *     participate in the match
+   */
+  public String get(int index) {
+    int start = offsets[index * 2];
+    if (start < 0) {
+      return null;
+    }
+    return path.substring(start, offsets[index * 2 + 1]);
+  }
+
+  /** @return the variable with the given name, or null if that variable doesn't exist */
+  public String get(String name) {
+    if (offsets.length == 0) {
+      return null;
+    }
+    int index = route.variableIndex(name);
+    return index < 0 ? null : get(index);
+  }
+
+  /** @return all variables, keyed by name */
+  public Map<String, String> toMap() {
+    if (offsets.length == 0) {
+      return Collections.emptyMap();
+    }
+
+    Map<String, String> groups = new HashMap<>();
+    for (int i = 0; i < size(); i++) {
+      groups.put(route.variableName(i), get(i));
+    }
+    return groups;
+  }
+}
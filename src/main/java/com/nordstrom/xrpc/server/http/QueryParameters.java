@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server.http;
+
+import com.nordstrom.xrpc.client.XUrl;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The query parameters of a request target. Parsing only records where each name and value lie in
+ * the original target; names and values are percent-decoded when they are read, and only if they
+ * contain an escape. The typed accessors parse numbers straight from the target.
+ *
+ * <p>A parameter without a value ({@code ?debug}) has the empty string as its value. Parameters
+ * whose values are malformed percent-encodings are returned undecoded.
+ *
+ * <p>Instances are immutable.
+ */
+public final class QueryParameters {
+  private static final int[] NO_OFFSETS = new int[0];
+
+  /** A target without a query. */
+  public static final QueryParameters EMPTY = new QueryParameters("", NO_OFFSETS, 0);
+
+  private final String target;
+  /** Name start, name end, value start and value end in target of each parameter. */
+  private final int[] offsets;
+
+  private final int size;
+
+  private QueryParameters(String target, int[] offsets, int size) {
+    this.target = target;
+    this.offsets = offsets;
+    this.size = size;
+  }
+
+  /** Index the query of the given request target, e.g. {@code /people?name=bob&age=42}. */
+  public static QueryParameters parse(String target) {
+    int start = target.indexOf('?');
+    if (start < 0) {
+      return EMPTY;
+    }
+    start++;
+    int end = target.indexOf('#', start);
+    if (end < 0) {
+      end = target.length();
+    }
+
+    int pieces = 1;
+    for (int i = start; i < end; i++) {
+      if (target.charAt(i) == '&') {
+        pieces++;
+      }
+    }
+
+    int[] offsets = new int[pieces * 4];
+    int size = 0;
+    int pieceStart = start;
+    while (pieceStart <= end) {
+      int pieceEnd = target.indexOf('&', pieceStart);
+      if (pieceEnd < 0 || pieceEnd > end) {
+        pieceEnd = end;
+      }
+      if (pieceEnd > pieceStart) {
+        int equals = target.indexOf('=', pieceStart);
+        if (equals < 0 || equals > pieceEnd) {
+          equals = pieceEnd;
+        }
+        offsets[size * 4] = pieceStart;
+        offsets[size * 4 + 1] = equals;
+        offsets[size * 4 + 2] = Math.min(equals + 1, pieceEnd);
+        offsets[size * 4 + 3] = pieceEnd;
+        size++;
+      }
+      pieceStart = pieceEnd + 1;
+    }
+    return size == 0 ? EMPTY : new QueryParameters(target, offsets, size);
+  }
+
+  /** @return the number of parameters, counting repeated names once for each occurrence */
+  public int size() {
+    return size;
+  }
+
+  /** @return whether a parameter with the given name is present */
+  public boolean contains(String name) {
+    return indexOf(name) >= 0;
+  }
+
+  /** @return the first value of the named parameter, or null if it is not present */
+  public String get(String name) {
+    int index = indexOf(name);
+    return index < 0 ? null : decode(offsets[index * 4 + 2], offsets[index * 4 + 3]);
+  }
+
+  /** @return every value of the named parameter, in order, or an empty list if it is absent */
+  public List<String> getAll(String name) {
+    List<String> values = null;
+    for (int i = 0; i < size; i++) {
+      if (nameEquals(i, name)) {
+        if (values == null) {
+          values = new ArrayList<>(2);
+        }
+        values.add(decode(offsets[i * 4 + 2], offsets[i * 4 + 3]));
+      }
+    }
+    return values == null ? Collections.emptyList() : values;
+  }
+
+  /**
+   * @return the first value of the named parameter as an int, or defaultValue if it is not present
+   * @throws NumberFormatException if the value is not an int
+   */
+  public int getInt(String name, int defaultValue) {
+    int index = indexOf(name);
+    if (index < 0) {
+      return defaultValue;
+    }
+    long value = parseLong(index);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Value of " + name + " is out of range for an int");
+    }
+    return (int) value;
+  }
+
+  /**
+   * @return the first value of the named parameter as a long, or defaultValue if it is not present
+   * @throws NumberFormatException if the value is not a long
+   */
+  public long getLong(String name, long defaultValue) {
+    int index = indexOf(name);
+    return index < 0 ? defaultValue : parseLong(index);
+  }
+
+  /**
+   * @return whether the first value of the named parameter is "true", ignoring case, or
+   *     defaultValue if it is not present. A parameter without a value, like {@code ?debug}, counts
+   *     as true.
+   */
+  public boolean getBoolean(String name, boolean defaultValue) {
+    int index = indexOf(name);
+    if (index < 0) {
+      return defaultValue;
+    }
+    int start = offsets[index * 4 + 2];
+    int end = offsets[index * 4 + 3];
+    if (start == end) {
+      return true;
+    }
+    if (needsDecoding(start, end)) {
+      return Boolean.parseBoolean(decode(start, end));
+    }
+    return end - start == 4 && target.regionMatches(true, start, "true", 0, 4);
+  }
+
+  /** @return all parameters, keyed by name in the order they first appear */
+  public Map<String, List<String>> toMap() {
+    if (size == 0) {
+      return Collections.emptyMap();
+    }
+
+    Map<String, List<String>> parameters = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      parameters
+          .computeIfAbsent(decode(offsets[i * 4], offsets[i * 4 + 1]), k -> new ArrayList<>(2))
+          .add(decode(offsets[i * 4 + 2], offsets[i * 4 + 3]));
+    }
+    return parameters;
+  }
+
+  private int indexOf(String name) {
+    for (int i = 0; i < size; i++) {
+      if (nameEquals(i, name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean nameEquals(int index, String name) {
+    int start = offsets[index * 4];
+    int end = offsets[index * 4 + 1];
+    if (needsDecoding(start, end)) {
+      return name.equals(decode(start, end));
+    }
+    return end - start == name.length() && target.regionMatches(start, name, 0, name.length());
+  }
+
+  private long parseLong(int index) {
+    int start = offsets[index * 4 + 2];
+    int end = offsets[index * 4 + 3];
+    if (needsDecoding(start, end)) {
+      return Long.parseLong(decode(start, end));
+    }
+
+    int i = start;
+    boolean negative = i < end && target.charAt(i) == '-';
+    if (negative) {
+      i++;
+    }
+    if (i == end) {
+      throw new NumberFormatException("Not a number: " + target.substring(start, end));
+    }
+    // Accumulate negatively, so that Long.MIN_VALUE doesn't overflow.
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long result = 0;
+    for (; i < end; i++) {
+      int digit = target.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || result < limit / 10 || result * 10 < limit + digit) {
+        throw new NumberFormatException("Not a long: " + target.substring(start, end));
+      }
+      result = result * 10 - digit;
+    }
+    return negative ? result : -result;
+  }
+
+  private boolean needsDecoding(int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = target.charAt(i);
+      if (c == '%' || c == '+') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String decode(int start, int end) {
+    String decoded = XUrl.decodeComponent(target, start, end, true);
+    return decoded == null ? target.substring(start, end) : decoded;
+  }
+}
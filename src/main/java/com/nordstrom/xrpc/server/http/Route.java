@@ -17,8 +17,6 @@
 package com.nordstrom.xrpc.server.http;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -35,7 +33,7 @@ public class Route {
    * Pattern to extract a variable from a URL path. This captures the variable name and any
    * associated regular expression.
    */
-  private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\{(\\w+)(?::([^\\{\\}]+))?\\}");
+  static final Pattern VARIABLE_PATTERN = Pattern.compile("\\{(\\w+)(?::([^\\{\\}]+))?\\}");
 
   /**
    * Compiled pattern that matches a path, and extracts named groups for each named wildcard
@@ -43,11 +41,17 @@ public class Route {
    */
   private final Pattern pathPattern;
 
+  /** A matcher for pathPattern, reused by each thread so that matching doesn't allocate. */
+  private final ThreadLocal<Matcher> pathMatcher;
+
+  /** Variable names, in the order they appear in the path; a variable's index here is its slot. */
   private final List<String> keywords;
+
   private final String originalPath;
 
   private Route(Pattern pathPattern, List<String> keywords, String originalPath) {
     this.pathPattern = pathPattern;
+    this.pathMatcher = ThreadLocal.withInitial(() -> pathPattern.matcher(""));
     this.keywords = keywords;
     this.originalPath = originalPath;
   }
@@ -93,7 +97,28 @@ public class Route {
 
   /** @return true if this route matches the given URL path */
   public boolean matches(String path) {
-    return pathPattern.matcher(path).matches();
+    return pathMatcher.get().reset(path).matches();
+  }
+
+  /**
+   * @return the variables this captured from the given path, if any; or null if this route doesn't
+   *     match the path
+   */
+  public PathVariables variables(String path) {
+    Matcher matcher = pathMatcher.get().reset(path);
+    if (!matcher.matches()) {
+      return null;
+    }
+    if (keywords.isEmpty()) {
+      return PathVariables.EMPTY;
+    }
+
+    int[] offsets = new int[keywords.size() * 2];
+    for (int i = 0; i < keywords.size(); i++) {
+      offsets[i * 2] = matcher.start(keywords.get(i));
+      offsets[i * 2 + 1] = matcher.end(keywords.get(i));
+    }
+    return new PathVariables(this, path, offsets);
   }
 
   /**
@@ -101,20 +126,32 @@ public class Route {
    *     match the path
    */
   public Map<String, String> groups(String path) {
-    Matcher matcher = pathPattern.matcher(path);
-    if (matcher.matches()) {
-      if (matcher.groupCount() == 0) {
-        return Collections.emptyMap();
-      }
+    PathVariables variables = variables(path);
+    return variables == null ? null : variables.toMap();
+  }
+
+  /** @return the number of variables in this route's path pattern */
+  public int variableCount() {
+    return keywords.size();
+  }
 
-      Map<String, String> groups = new HashMap<>();
-      for (String keyword : keywords) {
-        groups.put(keyword, matcher.group(keyword));
+  /** @return the name of the variable at the given index in this route's path pattern */
+  public String variableName(int index) {
+    return keywords.get(index);
+  }
+
+  /**
+   * @return the index of the named variable in this route's path pattern, or -1 if there is no such
+   *     variable
+   */
+  public int variableIndex(String name) {
+    // Routes have few variables; a scan beats hashing.
+    for (int i = 0; i < keywords.size(); i++) {
+      if (keywords.get(i).equals(name)) {
+        return i;
       }
-      return groups;
-    } else {
-      return null;
     }
+    return -1;
   }
 
   @Override
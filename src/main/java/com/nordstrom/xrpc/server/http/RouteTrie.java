@@ -0,0 +1,542 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.Getter;
+
+/**
+ * A segment radix tree compiled from a set of {@link Route}s, each associated with a value of type
+ * T. Lookup walks the request path one '/'-delimited segment at a time, so its cost scales with the
+ * depth of the path rather than with the number of registered routes.
+ *
+ * <p>Each route segment compiles to one of three node kinds: a literal segment (matched by exact
+ * comparison), a "{identifier}" segment (matched by any non-empty segment), or a segment containing
+ * "{identifier:regex}" variables (matched by a regular expression run against that segment only).
+ * Routes whose variable regex may span a '/' can't be split into segments; these are matched with
+ * the full route pattern at the deepest node their literal prefix reaches.
+ *
+ * <p>When more than one route matches a path, the one given first to {@link #build(Map)} wins. This
+ * gives the same precedence as the linear scan over {@code descendingKeySet()} that the trie
+ * replaces.
+ */
+public final class RouteTrie<T> {
+  private static final RouteTrie<?> EMPTY = new RouteTrie<>(new Node<>());
+
+  private final Node<T> root;
+
+  private RouteTrie(Node<T> root) {
+    this.root = root;
+  }
+
+  /** Returns a trie with no routes, which never matches. */
+  @SuppressWarnings("unchecked")
+  public static <T> RouteTrie<T> empty() {
+    return (RouteTrie<T>) EMPTY;
+  }
+
+  /**
+   * Build a trie from the given routes. Iteration order of the map is precedence order: if more
+   * than one route matches a path, the earliest one wins.
+   */
+  public static <T> RouteTrie<T> build(Map<Route, T> routes) {
+    Node<T> root = new Node<>();
+    int rank = 0;
+    for (Map.Entry<Route, T> entry : routes.entrySet()) {
+      Route route = entry.getKey();
+      String pathPattern = route.toString();
+      root.insert(
+          new Terminal<>(route, entry.getValue(), rank++, pathPattern.endsWith("/")),
+          Segment.parse(pathPattern),
+          0);
+    }
+    root.freeze();
+    return new RouteTrie<>(root);
+  }
+
+  /**
+   * @return the highest-precedence route matching the given path along with its value and captured
+   *     variables, or null if no route matches
+   */
+  public Match<T> match(String path) {
+    if (path == null) {
+      return null;
+    }
+
+    Terminal<T> best = visit(root, path, 0, null);
+    return best == null ? null : best.match(path);
+  }
+
+  /**
+   * Search the subtree under node for a route matching path, given that segments before start have
+   * already matched.
+   *
+   * @param start the offset of the next segment in path, or path.length() + 1 if there are none
+   * @param best the best match found so far, or null if there is none
+   * @return the best match found in this subtree, or best if there is none better
+   */
+  private static <T> Terminal<T> visit(Node<T> node, String path, int start, Terminal<T> best) {
+    if (node.minRank >= rank(best)) {
+      return best;
+    }
+
+    if (node.residuals != null) {
+      for (Terminal<T> residual : node.residuals) {
+        if (residual.rank >= rank(best)) {
+          break;
+        }
+        if (residual.route.matches(path)) {
+          best = residual;
+          break;
+        }
+      }
+    }
+
+    int length = path.length();
+    Terminal<T> terminal = node.terminal;
+    if (terminal != null && terminal.rank < rank(best)) {
+      // Routes are allowed to match with a trailing slash, unless they already end in one.
+      if (start > length || (start == length && !terminal.endsWithSlash)) {
+        best = terminal;
+      }
+    }
+
+    if (start > length) {
+      return best;
+    }
+
+    int end = segmentEnd(path, start);
+    Node<T> literal = node.literal(path, start, end);
+    if (literal != null) {
+      best = visit(literal, path, end + 1, best);
+    }
+    if (node.patternNodes != null) {
+      for (Node<T> child : node.patternNodes) {
+        if (child.minRank >= rank(best)) {
+          break;
+        }
+        if (child.segment.matcher(path, start, end).matches()) {
+          best = visit(child, path, end + 1, best);
+        }
+      }
+    }
+    if (node.wildcard != null && end > start) {
+      best = visit(node.wildcard, path, end + 1, best);
+    }
+    return best;
+  }
+
+  private static int rank(Terminal<?> terminal) {
+    return terminal == null ? Integer.MAX_VALUE : terminal.rank;
+  }
+
+  private static int segmentEnd(String path, int start) {
+    int end = path.indexOf('/', start);
+    return end < 0 ? path.length() : end;
+  }
+
+  /** The result of a successful {@link #match(String)}. */
+  public static final class Match<T> {
+    /** The route that matched. */
+    @Getter private final Route route;
+    /** The value associated with the matched route. */
+    @Getter private final T value;
+    /** The variables captured from the path. */
+    @Getter private final PathVariables variables;
+
+    Match(Route route, T value, PathVariables variables) {
+      this.route = route;
+      this.value = value;
+      this.variables = variables;
+    }
+  }
+
+  /** A route along with its value, stored at the node where its last segment ends. */
+  private static final class Terminal<T> {
+    private final Route route;
+    private final T value;
+    private final int rank;
+    private final boolean endsWithSlash;
+    /** Compiled segments, or null if this route is matched with its full pattern. */
+    private List<Segment> segments;
+    /** The match for every path, if this route has no variables. */
+    private final Match<T> constantMatch;
+
+    Terminal(Route route, T value, int rank, boolean endsWithSlash) {
+      this.route = route;
+      this.value = value;
+      this.rank = rank;
+      this.endsWithSlash = endsWithSlash;
+      this.constantMatch =
+          route.variableCount() == 0 ? new Match<>(route, value, PathVariables.EMPTY) : null;
+    }
+
+    /**
+     * Capture this route's variables from a path it's known to match. Routes with variables still
+     * allocate their offsets, a {@link PathVariables} and a {@link Match}: these are kept by the
+     * request, which may outlive the next match on this thread, so they can't be reused.
+     */
+    Match<T> match(String path) {
+      if (constantMatch != null) {
+        return constantMatch;
+      }
+      if (segments == null) {
+        return new Match<>(route, value, route.variables(path));
+      }
+
+      int[] offsets = new int[route.variableCount() * 2];
+      int start = 0;
+      for (Segment segment : segments) {
+        int end = segmentEnd(path, start);
+        if (segment.kind == Segment.Kind.VARIABLE) {
+          offsets[segment.slot * 2] = start;
+          offsets[segment.slot * 2 + 1] = end;
+        } else if (segment.kind == Segment.Kind.PATTERN) {
+          Matcher matcher = segment.matcher(path, start, end);
+          matcher.matches();
+          for (int i = 0; i < segment.names.size(); i++) {
+            String name = segment.names.get(i);
+            offsets[(segment.slot + i) * 2] = matcher.start(name);
+            offsets[(segment.slot + i) * 2 + 1] = matcher.end(name);
+          }
+        }
+        start = end + 1;
+      }
+      return new Match<>(route, value, new PathVariables(route, path, offsets));
+    }
+  }
+
+  private static final class Node<T> {
+    private final Map<String, Node<T>> literals = new HashMap<>();
+    /** Children for segments with custom regular expressions, keyed by their route source. */
+    private final Map<String, Node<T>> patterns = new LinkedHashMap<>();
+
+    private Node<T> wildcard;
+    /** The segment this node matches, if this is a pattern node. */
+    private Segment segment;
+
+    private Terminal<T> terminal;
+    private List<Terminal<T>> residuals;
+    /** Lowest rank of any route in this subtree, used to prune the search. */
+    private int minRank = Integer.MAX_VALUE;
+
+    // Open-addressed literal table, built by freeze().
+    private String[] literalKeys;
+    private int[] literalHashes;
+    private Node<T>[] literalNodes;
+    private Node<T>[] patternNodes;
+
+    void insert(Terminal<T> terminal, List<Segment> segments, int depth) {
+      if (depth == segments.size()) {
+        terminal.segments = segments;
+        // Routes that compile to the same segments match the same paths; keep the winner.
+        if (this.terminal == null || terminal.rank < this.terminal.rank) {
+          this.terminal = terminal;
+        }
+        return;
+      }
+
+      Segment segment = segments.get(depth);
+      switch (segment.kind) {
+        case LITERAL:
+          literals
+              .computeIfAbsent(segment.source, k -> new Node<>())
+              .insert(terminal, segments, depth + 1);
+          break;
+        case VARIABLE:
+          if (wildcard == null) {
+            wildcard = new Node<>();
+          }
+          wildcard.insert(terminal, segments, depth + 1);
+          break;
+        case PATTERN:
+          Node<T> child = patterns.get(segment.source);
+          if (child == null) {
+            child = new Node<>();
+            child.segment = segment;
+            patterns.put(segment.source, child);
+          }
+          child.insert(terminal, segments, depth + 1);
+          break;
+        default:
+          // The rest of the route can't be split into segments; match it as a whole from here.
+          if (residuals == null) {
+            residuals = new ArrayList<>();
+          }
+          residuals.add(terminal);
+          break;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    void freeze() {
+      if (terminal != null) {
+        minRank = terminal.rank;
+      }
+      if (residuals != null) {
+        residuals.sort((a, b) -> Integer.compare(a.rank, b.rank));
+        minRank = Math.min(minRank, residuals.get(0).rank);
+      }
+      if (wildcard != null) {
+        wildcard.freeze();
+        minRank = Math.min(minRank, wildcard.minRank);
+      }
+      if (!patterns.isEmpty()) {
+        List<Node<T>> children = new ArrayList<>(patterns.values());
+        for (Node<T> child : children) {
+          child.freeze();
+          minRank = Math.min(minRank, child.minRank);
+        }
+        // Try the most likely winners first so that the rest can be pruned.
+        children.sort((a, b) -> Integer.compare(a.minRank, b.minRank));
+        patternNodes = children.toArray(newNodes(children.size()));
+      }
+      if (!literals.isEmpty()) {
+        int capacity = Integer.highestOneBit(literals.size() * 2 - 1) << 1;
+        literalKeys = new String[capacity];
+        literalHashes = new int[capacity];
+        literalNodes = newNodes(capacity);
+        for (Map.Entry<String, Node<T>> entry : literals.entrySet()) {
+          Node<T> child = entry.getValue();
+          child.freeze();
+          minRank = Math.min(minRank, child.minRank);
+
+          String key = entry.getKey();
+          int hash = key.hashCode();
+          int i = spread(hash) & (capacity - 1);
+          while (literalKeys[i] != null) {
+            i = (i + 1) & (capacity - 1);
+          }
+          literalKeys[i] = key;
+          literalHashes[i] = hash;
+          literalNodes[i] = child;
+        }
+      }
+    }
+
+    /** Finds the literal child for path[start, end) without allocating a substring. */
+    Node<T> literal(String path, int start, int end) {
+      if (literalKeys == null) {
+        return null;
+      }
+
+      // Same as String.hashCode(), over the region.
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + path.charAt(i);
+      }
+
+      int mask = literalKeys.length - 1;
+      for (int i = spread(hash) & mask; literalKeys[i] != null; i = (i + 1) & mask) {
+        String key = literalKeys[i];
+        if (literalHashes[i] == hash
+            && key.length() == end - start
+            && path.regionMatches(start, key, 0, key.length())) {
+          return literalNodes[i];
+        }
+      }
+      return null;
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+
+    /** Returns an array of nodes; arrays of a generic type can't be created directly. */
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T>[] newNodes(int length) {
+      return (Node<T>[]) new Node<?>[length];
+    }
+  }
+
+  /** One '/'-delimited segment of a route's path pattern. */
+  static final class Segment {
+    enum Kind {
+      /** Plain text, matched exactly. */
+      LITERAL,
+      /** A lone "{identifier}", matched by any non-empty segment. */
+      VARIABLE,
+      /** Text and variables that can be matched against a single segment with a regex. */
+      PATTERN,
+      /** Variables whose regex may match a '/', so the route must be matched as a whole. */
+      UNSAFE
+    }
+
+    private static final String DEFAULT_VARIABLE_REGEX = "[^/]+";
+
+    private final Kind kind;
+    private final String source;
+    private final List<String> names;
+    /** The route's variable index for the first of names. */
+    private final int slot;
+
+    /** A matcher for the pattern, reused by each thread so that matching doesn't allocate. */
+    private final ThreadLocal<Matcher> matcher;
+
+    private Segment(Kind kind, String source, List<String> names, int slot, Pattern pattern) {
+      this.kind = kind;
+      this.source = source;
+      this.names = names;
+      this.slot = slot;
+      this.matcher = pattern == null ? null : ThreadLocal.withInitial(() -> pattern.matcher(""));
+    }
+
+    /** @return this thread's matcher for this segment's pattern, reset to path[start, end) */
+    Matcher matcher(String path, int start, int end) {
+      return matcher.get().reset(path).region(start, end);
+    }
+
+    /**
+     * Split a path pattern into segments. Parsing stops after the first UNSAFE segment, since
+     * nothing after it can be compiled into the trie.
+     */
+    static List<Segment> parse(String pathPattern) {
+      // Find the spans of every variable, so that slashes inside their regexes are skipped.
+      List<int[]> spans = new ArrayList<>();
+      Matcher variableMatcher = Route.VARIABLE_PATTERN.matcher(pathPattern);
+      while (variableMatcher.find()) {
+        spans.add(new int[] {variableMatcher.start(), variableMatcher.end()});
+      }
+
+      List<Segment> segments = new ArrayList<>();
+      int segmentStart = 0;
+      int span = 0;
+      int slot = 0;
+      for (int i = 0; i <= pathPattern.length(); i++) {
+        if (span < spans.size() && i == spans.get(span)[0]) {
+          i = spans.get(span++)[1] - 1;
+          continue;
+        }
+        if (i == pathPattern.length() || pathPattern.charAt(i) == '/') {
+          Segment segment = compile(pathPattern.substring(segmentStart, i), slot);
+          segments.add(segment);
+          slot += segment.names.size();
+          if (segment.kind == Kind.UNSAFE) {
+            break;
+          }
+          segmentStart = i + 1;
+        }
+      }
+      return segments;
+    }
+
+    private static Segment compile(String source, int slot) {
+      Matcher variableMatcher = Route.VARIABLE_PATTERN.matcher(source);
+      if (!variableMatcher.find()) {
+        return new Segment(Kind.LITERAL, source, Collections.emptyList(), slot, null);
+      }
+
+      String regex = variableMatcher.group(2);
+      if (variableMatcher.start() == 0
+          && variableMatcher.end() == source.length()
+          && (regex == null || DEFAULT_VARIABLE_REGEX.equals(regex))) {
+        return new Segment(
+            Kind.VARIABLE, source, Collections.singletonList(variableMatcher.group(1)), slot, null);
+      }
+
+      // Same construction as Route.build, scoped to this segment.
+      List<String> names = new ArrayList<>();
+      StringBuilder segmentRegex = new StringBuilder();
+      int prevEnd = 0;
+      variableMatcher.reset();
+      while (variableMatcher.find()) {
+        regex = variableMatcher.group(2);
+        if (regex == null) {
+          regex = DEFAULT_VARIABLE_REGEX;
+        } else if (!isSegmentSafe(regex)) {
+          return new Segment(Kind.UNSAFE, source, Collections.emptyList(), slot, null);
+        }
+        names.add(variableMatcher.group(1));
+        segmentRegex.append(Pattern.quote(source.substring(prevEnd, variableMatcher.start())));
+        segmentRegex
+            .append("(?<")
+            .append(variableMatcher.group(1))
+            .append('>')
+            .append(regex)
+            .append(')');
+        prevEnd = variableMatcher.end();
+      }
+      segmentRegex.append(Pattern.quote(source.substring(prevEnd)));
+      return new Segment(
+          Kind.PATTERN, source, names, slot, Pattern.compile(segmentRegex.toString()));
+    }
+
+    /**
+     * Conservatively checks that a variable's regex can never match a '/'. Only character classes
+     * and escapes known to exclude '/' are accepted; anything else (".", negated classes, "\S", and
+     * so on) is treated as unsafe.
+     */
+    static boolean isSegmentSafe(String regex) {
+      boolean inClass = false;
+      for (int i = 0; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\') {
+          if (++i == regex.length() || !isSafeEscape(regex.charAt(i))) {
+            return false;
+          }
+          continue;
+        }
+        if (c == '/') {
+          return false;
+        }
+        if (inClass) {
+          if (c == '[' || (c == '&' && i + 1 < regex.length() && regex.charAt(i + 1) == '&')) {
+            return false;
+          } else if (c == ']') {
+            inClass = false;
+          } else if (c == '-' && i + 1 < regex.length() && regex.charAt(i + 1) != ']') {
+            // A range; reject it if it spans '/'.
+            char low = regex.charAt(i - 1);
+            char high = regex.charAt(i + 1);
+            if (high == '\\' || (low <= '/' && '/' <= high)) {
+              return false;
+            }
+          }
+        } else if (c == '.') {
+          return false;
+        } else if (c == '[') {
+          if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+            return false;
+          }
+          inClass = true;
+        }
+      }
+      return !inClass;
+    }
+
+    private static boolean isSafeEscape(char c) {
+      switch (c) {
+        case 'd':
+        case 'w':
+        case 's':
+        case 'b':
+        case 'B':
+          return true;
+        default:
+          // Escaped punctuation is a literal, other than an escaped slash.
+          return !Character.isLetterOrDigit(c) && c != '/';
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.nordstrom.xrpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class DeadlineTest {
+  @Test
+  void parsesEachUnit() {
+    assertEquals(2, Deadline.parse("2H").remaining(TimeUnit.HOURS), 1);
+    assertEquals(3, Deadline.parse("3M").remaining(TimeUnit.MINUTES), 1);
+    assertEquals(4, Deadline.parse("4S").remaining(TimeUnit.SECONDS), 1);
+    assertEquals(5000, Deadline.parse("5000m").remaining(TimeUnit.MILLISECONDS), 100);
+    assertEquals(6000, Deadline.parse("6000000u").remaining(TimeUnit.MILLISECONDS), 100);
+    assertEquals(70, Deadline.parse("70000000n").remaining(TimeUnit.MILLISECONDS), 10);
+  }
+
+  @Test
+  void ignoresMalformedTimeouts() {
+    assertNull(Deadline.parse(null));
+    assertNull(Deadline.parse(""));
+    assertNull(Deadline.parse("m"));
+    assertNull(Deadline.parse("10"));
+    assertNull(Deadline.parse("10x"));
+    assertNull(Deadline.parse("-10m"));
+    assertNull(Deadline.parse("123456789m"), "more than 8 digits");
+  }
+
+  @Test
+  void expiresOnceTheTimeoutPasses() {
+    assertTrue(Deadline.parse("0n").isExpired());
+    assertTrue(Deadline.after(-1, TimeUnit.SECONDS).isExpired());
+    assertFalse(Deadline.parse("99999999H").isExpired(), "the longest timeout doesn't overflow");
+  }
+
+  @Test
+  void writesTimeLeftInFinestUnitThatFits() {
+    assertTrue(Deadline.after(50, TimeUnit.MILLISECONDS).toTimeout().endsWith("n"));
+    assertTrue(Deadline.after(50, TimeUnit.SECONDS).toTimeout().endsWith("u"));
+    assertTrue(Deadline.after(50, TimeUnit.HOURS).toTimeout().endsWith("S"));
+    assertEquals("0n", Deadline.after(-1, TimeUnit.SECONDS).toTimeout());
+  }
+
+  @Test
+  void choosesEarlierDeadline() {
+    Deadline soon = Deadline.after(1, TimeUnit.SECONDS);
+    Deadline later = Deadline.after(1, TimeUnit.HOURS);
+    assertSame(soon, soon.min(later));
+    assertSame(soon, later.min(soon));
+    assertSame(later, later.min(null));
+  }
+}
@@ -28,6 +28,17 @@ class XUrlTest {
     assertEquals("/foo/v1", XUrl.getPath(url1));
   }
 
+  @Test
+  void getRequestPath() {
+    assertEquals("/foo/v1", XUrl.getRequestPath("/foo/v1?foo=bar"));
+    assertEquals("/foo/v1", XUrl.getRequestPath("/foo/v1#top"));
+    assertEquals("/foo/v1", XUrl.getRequestPath(url1));
+    assertEquals("/foo v1", XUrl.getRequestPath("/foo%20v1"));
+    assertEquals("/a+b", XUrl.getRequestPath("/a+b"));
+    assertEquals("", XUrl.getRequestPath("https://api.nordstrom.com"));
+    assertNull(XUrl.getRequestPath("/foo%2"));
+  }
+
   @Test
   void stripUrlParameters() {
     assertEquals("https://api.nordstrom.com/foo/v1", XUrl.stripUrlParameters(url1));
@@ -0,0 +1,47 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class AsyncHandlerTest {
+  @Test
+  void fromCompletionStage_answersTimedOutStageWithGatewayTimeout() throws Exception {
+    CompletableFuture<HttpResponse> upstream = new CompletableFuture<>();
+    AsyncHandler handler =
+        AsyncHandler.fromCompletionStage(request -> upstream.thenApply(response -> response));
+
+    ListenableFuture<HttpResponse> response = handler.handleAsync(null);
+    upstream.completeExceptionally(new TimeoutException("Upstream took too long"));
+
+    ExecutionException failure = assertThrows(ExecutionException.class, response::get);
+    assertTrue(failure.getCause() instanceof TimeoutException);
+    assertEquals(
+        HttpResponseStatus.GATEWAY_TIMEOUT, AsyncDispatch.failureStatus(failure.getCause()));
+  }
+
+  @Test
+  void failureStatus_looksThroughWrappedFailures() {
+    assertEquals(
+        HttpResponseStatus.GATEWAY_TIMEOUT,
+        AsyncDispatch.failureStatus(new CompletionException(new TimeoutException())));
+    assertEquals(
+        HttpResponseStatus.SERVICE_UNAVAILABLE,
+        AsyncDispatch.failureStatus(
+            new ExecutionException(new CompletionException(new RejectedExecutionException()))));
+    assertEquals(
+        HttpResponseStatus.INTERNAL_SERVER_ERROR,
+        AsyncDispatch.failureStatus(new CompletionException(new IllegalStateException())));
+    assertEquals(
+        HttpResponseStatus.INTERNAL_SERVER_ERROR,
+        AsyncDispatch.failureStatus(new CompletionException(null)));
+  }
+}
@@ -0,0 +1,77 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codahale.metrics.Meter;
+import com.nordstrom.xrpc.XConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CleartextHttp2OrHttpHandlerTest {
+  private EmbeddedChannel channel;
+
+  @BeforeEach
+  void setUp() {
+    XrpcChannelContext xctx =
+        XrpcChannelContext.builder()
+            .requestMeter(new Meter())
+            .http1RequestMeter(new Meter())
+            .reusedConnectionMeter(new Meter())
+            .keepAliveTimeoutMeter(new Meter())
+            .build();
+    Http2OrHttpHandler protocols = new Http2OrHttpHandler(xctx, new XConfig());
+    channel = new EmbeddedChannel(new CleartextHttp2OrHttpHandler(protocols));
+  }
+
+  private static ByteBuf ascii(String data) {
+    return Unpooled.copiedBuffer(data, CharsetUtil.US_ASCII);
+  }
+
+  private String readOutbound() {
+    ByteBuf written = channel.readOutbound();
+    String data = written.toString(CharsetUtil.US_ASCII);
+    written.release();
+    return data;
+  }
+
+  @Test
+  void servesHttp2WithPriorKnowledge() {
+    ByteBuf preface = Http2CodecUtil.connectionPrefaceBuf();
+    channel.writeInbound(preface.readRetainedSlice(10));
+    assertNull(channel.pipeline().get("codec"), "waits for the whole preface");
+
+    channel.writeInbound(preface);
+    assertTrue(channel.pipeline().get("codec") instanceof Http2Handler);
+    assertNull(channel.pipeline().get(CleartextHttp2OrHttpHandler.class));
+  }
+
+  @Test
+  void servesHttp1() {
+    channel.writeInbound(ascii("GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+    assertTrue(channel.pipeline().get("codec") instanceof HttpServerCodec);
+    assertNull(channel.pipeline().get(CleartextHttp2OrHttpHandler.class));
+    assertTrue(readOutbound().startsWith("HTTP/1.1 404 Not Found"));
+  }
+
+  @Test
+  void upgradesHttp1ToHttp2() {
+    channel.writeInbound(
+        ascii(
+            "GET /missing HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Connection: Upgrade, HTTP2-Settings\r\n"
+                + "Upgrade: h2c\r\n"
+                + "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n\r\n"));
+
+    assertTrue(readOutbound().startsWith("HTTP/1.1 101 Switching Protocols"));
+    assertTrue(channel.pipeline().get("codec") instanceof Http2Handler);
+    assertNull(channel.pipeline().get("routingFilter"), "the HTTP/1 handlers are gone");
+    assertNull(channel.pipeline().get("keepAlive"));
+  }
+}
@@ -0,0 +1,56 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.junit.jupiter.api.Test;
+
+class HandlerExecutorsTest {
+  @Test
+  void poolRejectsTasksBeyondItsQueue() throws Exception {
+    ThreadPoolExecutor pool = HandlerExecutors.pooled(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      pool.execute(() -> awaitQuietly(release));
+      pool.execute(() -> {});
+      assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> {}));
+    } finally {
+      release.countDown();
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void runsOnVirtualThreadsWhereTheJdkHasThem() throws Exception {
+    boolean jdkHasVirtualThreads;
+    try {
+      Thread.class.getMethod("ofVirtual");
+      jdkHasVirtualThreads = true;
+    } catch (NoSuchMethodException e) {
+      jdkHasVirtualThreads = false;
+    }
+
+    ExecutorService virtual = HandlerExecutors.virtual();
+    assertEquals(jdkHasVirtualThreads, virtual != null);
+    if (virtual != null) {
+      try {
+        Thread thread = virtual.submit(Thread::currentThread).get();
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+        assertTrue(thread.getName().startsWith("xrpc-handler-"), thread.getName());
+      } finally {
+        virtual.shutdown();
+      }
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,729 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codahale.metrics.Meter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nordstrom.xrpc.Deadline;
+import com.nordstrom.xrpc.XConfig;
+import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.CharsetUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class Http2HandlerTest {
+  private static final Http2Headers PREBUILT =
+      new DefaultHttp2Headers()
+          .status(HttpResponseStatus.OK.codeAsText())
+          .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+
+  private final List<Throwable> aborted = new ArrayList<>();
+  /** The body of the last request echoed. */
+  private ByteBuf echoed;
+  /** The response statuses, by stream. */
+  private final IntObjectMap<String> statuses = new IntObjectHashMap<>();
+  /** The response headers, by stream. */
+  private final IntObjectMap<Http2Headers> responseHeaders = new IntObjectHashMap<>();
+  /** The response bodies, by stream. */
+  private final IntObjectMap<String> bodies = new IntObjectHashMap<>();
+  /** The streams the server reset. */
+  private final List<Integer> resets = new ArrayList<>();
+
+  /** The paths of the requests the server promised to push, by promised stream. */
+  private final IntObjectMap<String> promised = new IntObjectHashMap<>();
+  /** What each call to push returned. */
+  private final List<Boolean> pushed = new ArrayList<>();
+
+  /** The responses of the asynchronous handler, in the order it was called. */
+  private final List<SettableFuture<HttpResponse>> pending = new ArrayList<>();
+
+  /** The settings the server sent. */
+  private Http2Settings serverSettings;
+  /** The increments of the connection window that the server sent. */
+  private final List<Integer> connectionWindowUpdates = new ArrayList<>();
+
+  private XrpcChannelContext xctx;
+  private EmbeddedChannel channel;
+  /** Stands in for the client's end of the connection, to write and read frames with. */
+  private EmbeddedChannel client;
+
+  private final DefaultHttp2FrameWriter writer = new DefaultHttp2FrameWriter();
+  private final DefaultHttp2FrameReader reader = new DefaultHttp2FrameReader();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    Handler echo =
+        request -> {
+          echoed = request.getHttpRequest().content();
+          return new DefaultFullHttpResponse(
+              HttpVersion.HTTP_1_1,
+              HttpResponseStatus.OK,
+              Unpooled.copiedBuffer(
+                  request.variable("name") + " " + echoed.toString(CharsetUtil.UTF_8),
+                  CharsetUtil.UTF_8));
+        };
+    StreamingHandler upload =
+        request ->
+            new BodyListener() {
+              @Override
+              public void onData(ByteBuf data) {}
+
+              @Override
+              public HttpResponse onComplete() {
+                return new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED);
+              }
+
+              @Override
+              public void onAbort(Throwable cause) {
+                aborted.add(cause);
+              }
+            };
+
+    xctx = XrpcChannelContext.builder().requestMeter(new Meter()).build();
+    xctx.getRouteTable()
+        .set(
+            RouteTable.builder()
+                .addRoute("/echo/{name}", echo, HttpMethod.POST)
+                .addRoute("/small/{name}", echo, HttpMethod.POST)
+                .setRouteOptions("/small/{name}", RouteOptions.builder().maxPayloadBytes(8).build())
+                .addStreamingRoute("/upload", upload, HttpMethod.POST)
+                .addRoute(
+                    "/prebuilt",
+                    request ->
+                        new PrebuiltResponse(
+                            PREBUILT, Unpooled.copiedBuffer("prebuilt", CharsetUtil.UTF_8)),
+                    HttpMethod.POST)
+                .addAsyncRoute(
+                    "/async",
+                    request -> {
+                      echoed = request.getHttpRequest().content();
+                      SettableFuture<HttpResponse> response = SettableFuture.create();
+                      pending.add(response);
+                      return response;
+                    },
+                    HttpMethod.POST)
+                .addRoute(
+                    "/page",
+                    request -> {
+                      pushed.add(request.push("/asset/first"));
+                      pushed.add(request.push("/missing"));
+                      pushed.add(request.push("/asset/second"));
+                      return new DefaultFullHttpResponse(
+                          HttpVersion.HTTP_1_1,
+                          HttpResponseStatus.OK,
+                          Unpooled.copiedBuffer("page", CharsetUtil.UTF_8));
+                    },
+                    HttpMethod.GET)
+                .addRoute(
+                    "/asset/{name}",
+                    request ->
+                        new DefaultFullHttpResponse(
+                            HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.OK,
+                            Unpooled.copiedBuffer(request.variable("name"), CharsetUtil.UTF_8)),
+                    HttpMethod.GET)
+                .addRoute(
+                    "/http1",
+                    request -> {
+                      FullHttpResponse response =
+                          new DefaultFullHttpResponse(
+                              HttpVersion.HTTP_1_1, HttpResponseStatus.ACCEPTED);
+                      response.headers().set("X-Custom", "custom");
+                      response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                      return response;
+                    },
+                    HttpMethod.POST)
+                .build(0, null, null));
+    connect(new XConfig());
+  }
+
+  /** Connect to a server with the given config, and exchange settings with it. */
+  private void connect(XConfig config) throws Http2Exception {
+    channel = new EmbeddedChannel(new Http2HandlerBuilder(xctx, config).build());
+    client = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    serverSettings = null;
+    connectionWindowUpdates.clear();
+
+    ChannelHandlerContext ctx = clientContext();
+    ctx.write(Http2CodecUtil.connectionPrefaceBuf());
+    writer.writeSettings(ctx, new Http2Settings(), ctx.newPromise());
+    send();
+  }
+
+  /** Returns the size of the server's receive window for the connection. */
+  private int connectionWindowSize() {
+    Http2Handler handler = channel.pipeline().get(Http2Handler.class);
+    return handler
+        .decoder()
+        .flowController()
+        .initialWindowSize(handler.connection().connectionStream());
+  }
+
+  private ChannelHandlerContext clientContext() {
+    return client.pipeline().firstContext();
+  }
+
+  /** Hand the frames written by the client to the server, and read what it writes back. */
+  private void send() throws Http2Exception {
+    client.flush();
+    for (ByteBuf frames; (frames = client.readOutbound()) != null; ) {
+      channel.writeInbound(frames);
+    }
+    channel.flush();
+    // A frame may be written in more than one buffer, so they are read as one.
+    ByteBuf frames = Unpooled.buffer();
+    for (ByteBuf written; (written = channel.readOutbound()) != null; ) {
+      frames.writeBytes(written);
+      written.release();
+    }
+    try {
+      reader.readFrame(clientContext(), frames, new ResponseCollector());
+      assertFalse(frames.isReadable(), "the server wrote whole frames");
+    } finally {
+      frames.release();
+    }
+  }
+
+  private void headers(int streamId, String path, boolean endOfStream) {
+    headers(streamId, "POST", path, endOfStream);
+  }
+
+  private void headers(int streamId, String method, String path, boolean endOfStream) {
+    Http2Headers headers =
+        new DefaultHttp2Headers().method(method).scheme("https").authority("localhost").path(path);
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeHeaders(ctx, streamId, headers, 0, endOfStream, ctx.newPromise());
+  }
+
+  private void trailers(int streamId) {
+    Http2Headers headers = new DefaultHttp2Headers().add("x-checksum", "0");
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeHeaders(ctx, streamId, headers, 0, true, ctx.newPromise());
+  }
+
+  private void data(int streamId, String data, boolean endOfStream) {
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeData(
+        ctx,
+        streamId,
+        Unpooled.copiedBuffer(data, CharsetUtil.UTF_8),
+        0,
+        endOfStream,
+        ctx.newPromise());
+  }
+
+  private final class ResponseCollector extends Http2FrameAdapter {
+    @Override
+    public void onHeadersRead(
+        ChannelHandlerContext ctx,
+        int streamId,
+        Http2Headers headers,
+        int padding,
+        boolean endOfStream) {
+      statuses.put(streamId, headers.status().toString());
+      responseHeaders.put(streamId, headers);
+      bodies.put(streamId, "");
+    }
+
+    @Override
+    public void onHeadersRead(
+        ChannelHandlerContext ctx,
+        int streamId,
+        Http2Headers headers,
+        int streamDependency,
+        short weight,
+        boolean exclusive,
+        int padding,
+        boolean endOfStream) {
+      onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+    }
+
+    @Override
+    public void onPushPromiseRead(
+        ChannelHandlerContext ctx,
+        int streamId,
+        int promisedStreamId,
+        Http2Headers headers,
+        int padding) {
+      promised.put(promisedStreamId, headers.path().toString());
+    }
+
+    @Override
+    public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+      resets.add(streamId);
+    }
+
+    @Override
+    public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) {
+      serverSettings = settings;
+    }
+
+    @Override
+    public void onWindowUpdateRead(ChannelHandlerContext ctx, int streamId, int increment) {
+      if (streamId == Http2CodecUtil.CONNECTION_STREAM_ID) {
+        connectionWindowUpdates.add(increment);
+      }
+    }
+
+    @Override
+    public int onDataRead(
+        ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream) {
+      bodies.put(streamId, bodies.get(streamId) + data.toString(CharsetUtil.UTF_8));
+      return data.readableBytes() + padding;
+    }
+  }
+
+  @Test
+  void keepsInterleavedStreamsApart() throws Exception {
+    headers(1, "/echo/first", false);
+    headers(3, "/echo/second", false);
+    headers(5, "/echo/third", false);
+    data(3, "two", true);
+    data(5, "three", true);
+    data(1, "one", true);
+    send();
+
+    assertEquals("200", statuses.get(1));
+    assertEquals("first one", bodies.get(1));
+    assertEquals("second two", bodies.get(3));
+    assertEquals("third three", bodies.get(5));
+  }
+
+  @Test
+  void collectsBodyAcrossFrames() throws Exception {
+    headers(1, "/echo/whole", false);
+    data(1, "one ", false);
+    data(1, "two ", false);
+    send();
+    assertFalse(statuses.containsKey(1), "no response until the body is complete");
+
+    data(1, "three", true);
+    send();
+    assertEquals("whole one two three", bodies.get(1));
+    assertEquals(0, echoed.refCnt(), "the body is released once handled");
+  }
+
+  @Test
+  void limitsBodyAcrossFrames() throws Exception {
+    headers(1, "/small/body", false);
+    data(1, "12345", false);
+    data(1, "6789", true);
+    send();
+
+    assertEquals("413", statuses.get(1));
+    assertNull(echoed);
+  }
+
+  @Test
+  void endsBodyWithTrailers() throws Exception {
+    headers(1, "/echo/trailed", false);
+    data(1, "body", false);
+    trailers(1);
+    send();
+
+    assertEquals("200", statuses.get(1));
+    assertEquals("trailed body", bodies.get(1));
+
+    headers(3, "/echo/next", true);
+    send();
+    assertEquals("200", statuses.get(3), "the connection is still open");
+  }
+
+  @Test
+  void endsStreamedBodyWithTrailers() throws Exception {
+    headers(1, "/upload", false);
+    data(1, "body", false);
+    trailers(1);
+    send();
+
+    assertEquals("201", statuses.get(1));
+    assertTrue(aborted.isEmpty());
+  }
+
+  @Test
+  void dropsTrailersOfAnsweredRequest() throws Exception {
+    Http2Headers headers =
+        new DefaultHttp2Headers()
+            .method("POST")
+            .scheme("https")
+            .authority("localhost")
+            .path("/small/body")
+            .add(HttpHeaderNames.EXPECT, HttpHeaderValues.CONTINUE)
+            .addLong(HttpHeaderNames.CONTENT_LENGTH, 100);
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeHeaders(ctx, 1, headers, 0, false, ctx.newPromise());
+    send();
+    assertEquals("413", statuses.get(1));
+
+    // The client ends the stream it was told not to send a body on.
+    trailers(1);
+    headers(3, "/echo/next", true);
+    send();
+    assertEquals("413", statuses.get(1));
+    assertEquals("200", statuses.get(3), "the connection is still open");
+    assertTrue(resets.isEmpty());
+  }
+
+  @Test
+  void rejectsRequestWithoutPath() throws Exception {
+    Http2Headers headers = new DefaultHttp2Headers().method("GET").scheme("https");
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeHeaders(ctx, 1, headers, 0, true, ctx.newPromise());
+    send();
+
+    assertEquals("400", statuses.get(1));
+  }
+
+  @Test
+  void rejectsWrongMethodBeforeReadingBody() throws Exception {
+    headers(1, "PUT", "/echo/wrong", false);
+    send();
+
+    assertEquals("405", statuses.get(1));
+    assertEquals(ImmutableList.of(1), resets, "the client is told to stop sending the body");
+
+    data(1, "ignored", true);
+    send();
+    assertNull(echoed);
+  }
+
+  @Test
+  void writesPrebuiltHeadersAsTheyAre() throws Exception {
+    headers(1, "/prebuilt", true);
+    headers(3, "/prebuilt", true);
+    send();
+
+    for (int streamId : new int[] {1, 3}) {
+      assertEquals("200", statuses.get(streamId));
+      assertEquals("text/plain", responseHeaders.get(streamId).get("content-type").toString());
+      assertEquals("prebuilt", bodies.get(streamId));
+    }
+    assertEquals(2, PREBUILT.size(), "the shared headers are unchanged");
+  }
+
+  @Test
+  void convertsHttp1Headers() throws Exception {
+    headers(1, "/http1", true);
+    send();
+
+    Http2Headers headers = responseHeaders.get(1);
+    assertEquals("202", headers.status().toString());
+    assertEquals("custom", headers.get("x-custom").toString());
+    assertFalse(headers.contains(HttpHeaderNames.CONNECTION), "HTTP/2 has no Connection header");
+  }
+
+  @Test
+  void sendsConfiguredSettings() throws Exception {
+    connect(
+        new XConfig(
+            ConfigFactory.parseMap(
+                ImmutableMap.of(
+                    "http2_max_concurrent_streams", 10, "http2_initial_window_size", "1 MiB"))));
+
+    assertEquals(10, (long) serverSettings.maxConcurrentStreams());
+    assertEquals(1024 * 1024, (int) serverSettings.initialWindowSize());
+  }
+
+  @Test
+  void opensConnectionWindow() {
+    assertEquals(
+        ImmutableList.of(1024 * 1024 - Http2CodecUtil.DEFAULT_WINDOW_SIZE),
+        connectionWindowUpdates);
+  }
+
+  @Test
+  void growsConnectionWindowWhileClientFillsIt() throws Exception {
+    connect(
+        new XConfig(
+            ConfigFactory.parseMap(
+                ImmutableMap.of(
+                    "http2_connection_window_size", "64 KiB",
+                    "http2_max_connection_window_size", "128 KiB"))));
+    String frame = Strings.repeat("x", 16 * 1024);
+
+    headers(1, "/upload", false);
+    for (int i = 0; i < 4; i++) {
+      data(1, frame, false);
+      send();
+    }
+    assertEquals(1, xctx.getHttp2WindowGrowthMeter().getCount());
+    assertEquals(128 * 1024, connectionWindowSize(), "the window doubled");
+
+    for (int i = 0; i < 8; i++) {
+      data(1, frame, false);
+      send();
+    }
+    assertEquals(1, xctx.getHttp2WindowGrowthMeter().getCount(), "the window is at its limit");
+    assertEquals(128 * 1024, connectionWindowSize());
+  }
+
+  @Test
+  void countsStreams() throws Exception {
+    headers(1, "/upload", false);
+    headers(3, "/upload", false);
+    send();
+    assertEquals(2, xctx.getHttp2StreamMeter().getCount());
+    assertEquals(2, xctx.getHttp2ActiveStreams().getCount());
+
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeRstStream(ctx, 1, Http2Error.CANCEL.code(), ctx.newPromise());
+    send();
+    assertEquals(1, xctx.getHttp2ActiveStreams().getCount());
+
+    channel.pipeline().fireChannelInactive();
+    assertEquals(0, xctx.getHttp2ActiveStreams().getCount());
+    assertEquals(1, xctx.getHttp2StreamsPerConnection().getCount());
+    assertEquals(2, xctx.getHttp2StreamsPerConnection().getSnapshot().getMax());
+  }
+
+  @Test
+  void abortsOnlyTheResetStream() throws Exception {
+    headers(1, "/upload", false);
+    headers(3, "/upload", false);
+    data(1, "partial", false);
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeRstStream(ctx, 1, Http2Error.CANCEL.code(), ctx.newPromise());
+    send();
+    assertEquals(1, aborted.size());
+
+    data(3, "whole", true);
+    send();
+    assertFalse(statuses.containsKey(1), "the reset stream isn't answered");
+    assertEquals("201", statuses.get(3));
+    assertEquals(1, aborted.size());
+  }
+
+  @Test
+  void abortsStreamsWhenConnectionCloses() throws Exception {
+    headers(1, "/upload", false);
+    headers(3, "/upload", false);
+    send();
+
+    // The client goes away, rather than waiting for the streams to finish after a GOAWAY.
+    channel.pipeline().fireChannelInactive();
+    assertEquals(2, aborted.size());
+  }
+
+  @Test
+  void tracesNoFramesByDefault() throws Exception {
+    headers(1, "/echo/quiet", true);
+    send();
+
+    assertEquals("200", statuses.get(1));
+    assertTrue(xctx.getFrameTracing().recentFrames().isEmpty());
+  }
+
+  @Test
+  void tracesRecentFramesOfChosenTypes() throws Exception {
+    xctx.getFrameTracing()
+        .setSettings(
+            new FrameTracing.Settings(
+                1,
+                EnumSet.of(FrameTracing.FrameType.HEADERS, FrameTracing.FrameType.RST_STREAM),
+                2));
+    headers(1, "/echo/first", true);
+    headers(3, "/echo/second", true);
+    send();
+
+    Map<String, List<String>> traced = xctx.getFrameTracing().recentFrames();
+    assertEquals(
+        ImmutableList.of(channel.id().asShortText()), ImmutableList.copyOf(traced.keySet()));
+    List<String> frames = traced.get(channel.id().asShortText());
+    assertEquals(2, frames.size(), "only the most recent frames are kept");
+    assertTrue(frames.get(0).contains("INBOUND HEADERS: streamId=3"), frames.get(0));
+    assertTrue(frames.get(1).contains("OUTBOUND HEADERS: streamId=3"), frames.get(1));
+
+    // Once tracing is off again, the connection's frames are no longer recorded.
+    xctx.getFrameTracing()
+        .setSettings(new FrameTracing.Settings(0, EnumSet.allOf(FrameTracing.FrameType.class), 2));
+    headers(5, "/echo/third", true);
+    send();
+    assertEquals(frames, xctx.getFrameTracing().recentFrames().get(channel.id().asShortText()));
+  }
+
+  @Test
+  void tracesHeadersWithoutCredentials() throws Exception {
+    xctx.getFrameTracing()
+        .setSettings(new FrameTracing.Settings(1, EnumSet.of(FrameTracing.FrameType.HEADERS), 2));
+    Http2Headers headers =
+        new DefaultHttp2Headers()
+            .method("POST")
+            .scheme("https")
+            .authority("localhost")
+            .path("/echo/secret")
+            .add(HttpHeaderNames.AUTHORIZATION, "Bearer token")
+            .add(HttpHeaderNames.COOKIE, "session=secret");
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeHeaders(ctx, 1, headers, 0, true, ctx.newPromise());
+    send();
+
+    String frame = xctx.getFrameTracing().recentFrames().get(channel.id().asShortText()).get(0);
+    assertTrue(frame.contains("INBOUND HEADERS: streamId=1"), frame);
+    assertTrue(frame.contains(":path: /echo/secret"), frame);
+    assertTrue(frame.contains("authorization: <redacted>"), frame);
+    assertTrue(frame.contains("cookie: <redacted>"), frame);
+    assertFalse(frame.contains("token") || frame.contains("session"), frame);
+  }
+
+  @Test
+  void pushesPromisedResources() throws Exception {
+    headers(1, "GET", "/page", true);
+    send();
+
+    assertEquals(ImmutableList.of(true, true, true), pushed);
+    assertEquals(
+        ImmutableMap.of(2, "/asset/first", 4, "/asset/second"), ImmutableMap.copyOf(promised));
+    assertEquals("page", bodies.get(1));
+    assertEquals("first", bodies.get(2));
+    assertEquals("second", bodies.get(4));
+  }
+
+  @Test
+  void pushesNoMoreThanTheClientsStreamLimit() throws Exception {
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeSettings(ctx, new Http2Settings().maxConcurrentStreams(1), ctx.newPromise());
+    headers(1, "GET", "/page", true);
+    send();
+
+    assertEquals(ImmutableMap.of(2, "/asset/first"), ImmutableMap.copyOf(promised));
+    assertEquals("first", bodies.get(2));
+    assertEquals("page", bodies.get(1));
+  }
+
+  @Test
+  void doesNotPushWhenClientDisablesPush() throws Exception {
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeSettings(ctx, new Http2Settings().pushEnabled(false), ctx.newPromise());
+    headers(1, "GET", "/page", true);
+    send();
+
+    assertEquals(ImmutableList.of(false, false, false), pushed);
+    assertTrue(promised.isEmpty());
+    assertEquals("page", bodies.get(1));
+  }
+
+  @Test
+  void writesAsyncResponseWhenReady() throws Exception {
+    headers(1, "/async", false);
+    data(1, "body", true);
+    send();
+    assertFalse(statuses.containsKey(1), "no response until the future completes");
+
+    pending
+        .remove(0)
+        .set(
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK, echoed.retainedDuplicate()));
+    send();
+    assertEquals("200", statuses.get(1));
+    assertEquals("body", bodies.get(1));
+    assertEquals(0, echoed.refCnt(), "the body is released once handled");
+  }
+
+  @Test
+  void cancelsAsyncHandlerForResetStream() throws Exception {
+    headers(1, "/async", false);
+    data(1, "body", true);
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeRstStream(ctx, 1, Http2Error.CANCEL.code(), ctx.newPromise());
+    send();
+    assertTrue(pending.get(0).isCancelled());
+    assertEquals(0, echoed.refCnt());
+
+    // A handler that responds anyway is ignored.
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK,
+            Unpooled.copiedBuffer("late", CharsetUtil.UTF_8));
+    assertFalse(pending.get(0).set(response));
+    response.release();
+    send();
+    assertFalse(statuses.containsKey(1));
+  }
+
+  @Test
+  void cancelsAsyncHandlersWhenClientGoesAwayWithError() throws Exception {
+    headers(1, "/async", true);
+    headers(3, "/async", true);
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeGoAway(ctx, 0, Http2Error.NO_ERROR.code(), Unpooled.EMPTY_BUFFER, ctx.newPromise());
+    send();
+    assertFalse(pending.get(0).isCancelled(), "a client going away gracefully reads responses");
+
+    writer.writeGoAway(
+        ctx, 0, Http2Error.INTERNAL_ERROR.code(), Unpooled.EMPTY_BUFFER, ctx.newPromise());
+    send();
+    assertTrue(pending.get(0).isCancelled());
+    assertTrue(pending.get(1).isCancelled());
+  }
+
+  @Test
+  void cancelsAsyncHandlersWhenConnectionCloses() throws Exception {
+    headers(1, "/async", true);
+    send();
+
+    channel.pipeline().fireChannelInactive();
+    assertTrue(pending.get(0).isCancelled());
+  }
+
+  @Test
+  void answersExpiredRequestWithoutHandlingIt() throws Exception {
+    XrpcChannelContext routes = xctx;
+    xctx =
+        XrpcChannelContext.builder()
+            .requestMeter(new Meter())
+            .deadlineHeader(Deadline.HEADER)
+            .build();
+    xctx.getRouteTable().set(routes.getRouteTable().get());
+    connect(new XConfig());
+
+    Http2Headers expired =
+        new DefaultHttp2Headers()
+            .method("POST")
+            .scheme("https")
+            .authority("localhost")
+            .path("/echo/late")
+            .set(Deadline.HEADER, "0m");
+    ChannelHandlerContext ctx = clientContext();
+    writer.writeHeaders(ctx, 1, expired, 0, false, ctx.newPromise());
+    data(1, "body", true);
+    headers(3, "/echo/prompt", true);
+    send();
+    assertEquals("504", statuses.get(1));
+    assertEquals("prompt ", bodies.get(3));
+    assertEquals(1, xctx.getExpiredRequestMeter().getCount());
+  }
+}
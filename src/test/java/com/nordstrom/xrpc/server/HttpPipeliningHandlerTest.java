@@ -0,0 +1,101 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.junit.jupiter.api.Test;
+
+class HttpPipeliningHandlerTest {
+  private static DefaultFullHttpRequest request(String uri) {
+    return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+  }
+
+  private static FullHttpResponse response(HttpResponseStatus status) {
+    return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+  }
+
+  private static void respond(EmbeddedChannel channel, int sequence, HttpObject message) {
+    channel.writeAndFlush(new HttpPipeliningHandler.SequencedResponse(message, sequence));
+  }
+
+  @Test
+  void numbersRequests() {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new HttpPipeliningHandler(16), new ChannelInboundHandlerAdapter());
+    channel.writeInbound(request("/a"), request("/b"));
+
+    HttpPipeliningHandler.SequencedRequest first = channel.readInbound();
+    HttpPipeliningHandler.SequencedRequest second = channel.readInbound();
+    assertEquals("/a", first.getRequest().uri());
+    assertEquals(0, first.getSequence());
+    assertEquals("/b", second.getRequest().uri());
+    assertEquals(1, second.getSequence());
+  }
+
+  @Test
+  void writesResponsesInRequestOrder() {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new HttpPipeliningHandler(16), new ChannelInboundHandlerAdapter());
+    channel.writeInbound(request("/a"), request("/b"), request("/c"));
+
+    respond(channel, 2, response(HttpResponseStatus.ACCEPTED));
+    respond(channel, 1, new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED));
+    respond(channel, 1, new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[] {1})));
+    assertNull(channel.readOutbound(), "nothing is written until the first response is");
+
+    respond(channel, 0, response(HttpResponseStatus.OK));
+    assertEquals(HttpResponseStatus.OK, ((FullHttpResponse) channel.readOutbound()).status());
+    assertEquals(
+        HttpResponseStatus.CREATED, ((DefaultHttpResponse) channel.readOutbound()).status());
+    assertEquals(1, ((DefaultHttpContent) channel.readOutbound()).content().readableBytes());
+    assertNull(channel.readOutbound(), "the second response isn't finished yet");
+
+    respond(channel, 1, LastHttpContent.EMPTY_LAST_CONTENT);
+    assertSame(LastHttpContent.EMPTY_LAST_CONTENT, channel.readOutbound());
+    assertEquals(HttpResponseStatus.ACCEPTED, ((FullHttpResponse) channel.readOutbound()).status());
+  }
+
+  @Test
+  void continueDoesNotCompleteResponse() {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new HttpPipeliningHandler(16), new ChannelInboundHandlerAdapter());
+    channel.writeInbound(request("/a"), request("/b"));
+
+    respond(channel, 0, response(HttpResponseStatus.CONTINUE));
+    respond(channel, 1, response(HttpResponseStatus.OK));
+    assertEquals(HttpResponseStatus.CONTINUE, ((FullHttpResponse) channel.readOutbound()).status());
+    assertNull(channel.readOutbound(), "the second response waits for the first to be final");
+
+    respond(channel, 0, response(HttpResponseStatus.CREATED));
+    assertEquals(HttpResponseStatus.CREATED, ((FullHttpResponse) channel.readOutbound()).status());
+    assertEquals(HttpResponseStatus.OK, ((FullHttpResponse) channel.readOutbound()).status());
+  }
+
+  @Test
+  void pausesReadsWhenFull() {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new HttpPipeliningHandler(2), new ChannelInboundHandlerAdapter());
+
+    channel.writeInbound(request("/a"));
+    assertTrue(channel.config().isAutoRead());
+    channel.writeInbound(request("/b"));
+    assertFalse(channel.config().isAutoRead(), "reads pause with two requests in flight");
+
+    respond(channel, 1, response(HttpResponseStatus.OK));
+    assertFalse(channel.config().isAutoRead(), "a held response doesn't free a slot");
+    respond(channel, 0, response(HttpResponseStatus.OK));
+    assertTrue(channel.config().isAutoRead());
+  }
+}
@@ -0,0 +1,164 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codahale.metrics.Meter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class KeepAliveHandlerTest {
+  private XrpcChannelContext xctx;
+
+  @BeforeEach
+  void setUp() {
+    xctx =
+        XrpcChannelContext.builder()
+            .http1RequestMeter(new Meter())
+            .reusedConnectionMeter(new Meter())
+            .keepAliveTimeoutMeter(new Meter())
+            .build();
+  }
+
+  /** Answers every request with an empty 200. */
+  private static class Responder extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ReferenceCountUtil.release(msg);
+      ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+    }
+  }
+
+  private EmbeddedChannel channel(int maxRequests, long idleTimeoutMillis) {
+    return new EmbeddedChannel(
+        new KeepAliveHandler(xctx, maxRequests, idleTimeoutMillis, TimeUnit.MILLISECONDS),
+        new Responder());
+  }
+
+  private static FullHttpResponse send(EmbeddedChannel channel, FullHttpRequest request) {
+    channel.writeInbound(request);
+    return channel.readOutbound();
+  }
+
+  private static FullHttpRequest request(HttpVersion version) {
+    return new DefaultFullHttpRequest(version, HttpMethod.GET, "/");
+  }
+
+  @Test
+  void keepsHttp11Open() {
+    EmbeddedChannel channel = channel(0, 0);
+
+    FullHttpResponse response = send(channel, request(HttpVersion.HTTP_1_1));
+    assertTrue(channel.isOpen());
+    assertFalse(response.headers().contains(HttpHeaderNames.CONNECTION));
+    assertEquals("0", response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+
+    send(channel, request(HttpVersion.HTTP_1_1));
+    assertTrue(channel.isOpen());
+    assertEquals(2, xctx.getHttp1RequestMeter().getCount());
+    assertEquals(1, xctx.getReusedConnectionMeter().getCount());
+  }
+
+  @Test
+  void closesOnConnectionClose() {
+    EmbeddedChannel channel = channel(0, 0);
+    FullHttpRequest request = request(HttpVersion.HTTP_1_1);
+    request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+
+    FullHttpResponse response = send(channel, request);
+    assertEquals("close", response.headers().get(HttpHeaderNames.CONNECTION));
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  void http10() {
+    EmbeddedChannel channel = channel(0, 0);
+    FullHttpRequest request = request(HttpVersion.HTTP_1_0);
+    request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+
+    FullHttpResponse response = send(channel, request);
+    assertEquals("keep-alive", response.headers().get(HttpHeaderNames.CONNECTION));
+    assertTrue(channel.isOpen());
+
+    // Without the header, HTTP/1.0 closes after the response.
+    send(channel, request(HttpVersion.HTTP_1_0));
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  void closesAfterMaxRequests() {
+    EmbeddedChannel channel = channel(2, 0);
+
+    send(channel, request(HttpVersion.HTTP_1_1));
+    assertTrue(channel.isOpen());
+    FullHttpResponse response = send(channel, request(HttpVersion.HTTP_1_1));
+    assertEquals("close", response.headers().get(HttpHeaderNames.CONNECTION));
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  void closesIdleConnections() throws InterruptedException {
+    EmbeddedChannel channel = channel(0, 10);
+
+    send(channel, request(HttpVersion.HTTP_1_1));
+    Thread.sleep(50);
+    channel.runPendingTasks();
+    assertFalse(channel.isOpen());
+    assertEquals(1, xctx.getKeepAliveTimeoutMeter().getCount());
+  }
+
+  @Test
+  void dropsRequestsAfterClose() {
+    FullHttpRequest closing = request(HttpVersion.HTTP_1_1);
+    closing.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+    FullHttpRequest after = request(HttpVersion.HTTP_1_1);
+
+    // Hold back the response to the closing request until the next one has arrived.
+    EmbeddedChannel held =
+        new EmbeddedChannel(
+            new KeepAliveHandler(xctx, 0, 0, TimeUnit.MILLISECONDS),
+            new ChannelInboundHandlerAdapter());
+    held.writeInbound(closing, after);
+    assertSame(closing, held.readInbound(), "the closing request is handled");
+    assertNull(held.readInbound(), "requests after it are dropped");
+    assertEquals(0, after.refCnt());
+
+    held.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+    assertFalse(held.isOpen());
+    assertEquals(1, xctx.getHttp1RequestMeter().getCount());
+  }
+
+  @Test
+  void closesWhenResponseAsks() {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(
+            new KeepAliveHandler(xctx, 0, 0, TimeUnit.MILLISECONDS),
+            new ChannelInboundHandlerAdapter() {
+              @Override
+              public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ReferenceCountUtil.release(msg);
+                FullHttpResponse response =
+                    new DefaultFullHttpResponse(
+                        HttpVersion.HTTP_1_1, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                ctx.writeAndFlush(response);
+              }
+            });
+
+    send(channel, request(HttpVersion.HTTP_1_1));
+    assertFalse(channel.isOpen());
+  }
+}
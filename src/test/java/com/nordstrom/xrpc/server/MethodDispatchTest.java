@@ -0,0 +1,52 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.server.http.XHttpMethod;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.AsciiString;
+import org.junit.jupiter.api.Test;
+
+class MethodDispatchTest {
+  private final Handler getHandler = xrpcRequest -> null;
+  private final Handler postHandler = xrpcRequest -> null;
+  private final Handler anyHandler = xrpcRequest -> null;
+  private final Handler customHandler = xrpcRequest -> null;
+
+  @Test
+  void handler() {
+    MethodDispatch dispatch =
+        MethodDispatch.compile(
+            ImmutableList.of(
+                ImmutableMap.of(XHttpMethod.GET, RouteHandler.of(getHandler)),
+                ImmutableMap.of(XHttpMethod.ANY, RouteHandler.of(anyHandler)),
+                ImmutableMap.of(new XHttpMethod("PURGE"), RouteHandler.of(customHandler)),
+                ImmutableMap.of(XHttpMethod.POST, RouteHandler.of(postHandler)),
+                ImmutableMap.of(XHttpMethod.GET, RouteHandler.of(anyHandler))),
+            RouteOptions.DEFAULT);
+
+    assertEquals(getHandler, dispatch.handler(HttpMethod.GET).handler());
+    assertEquals(postHandler, dispatch.handler(HttpMethod.POST).handler());
+    assertEquals(anyHandler, dispatch.handler(HttpMethod.DELETE).handler());
+    assertEquals(customHandler, dispatch.handler(HttpMethod.valueOf("PURGE")).handler());
+    assertEquals(anyHandler, dispatch.handler(HttpMethod.valueOf("BREW")).handler());
+
+    // HTTP/2 passes the method as a header value.
+    assertEquals(getHandler, dispatch.handler(AsciiString.of("GET")).handler());
+    assertEquals(postHandler, dispatch.handler("POST").handler());
+  }
+
+  @Test
+  void handler_noAny() {
+    MethodDispatch dispatch =
+        MethodDispatch.compile(
+            ImmutableList.of(ImmutableMap.of(XHttpMethod.GET, RouteHandler.of(getHandler))),
+            RouteOptions.DEFAULT);
+
+    assertEquals(getHandler, dispatch.handler(HttpMethod.GET).handler());
+    assertNull(dispatch.handler(HttpMethod.POST));
+    assertNull(dispatch.handler(HttpMethod.valueOf("PURGE")));
+  }
+}
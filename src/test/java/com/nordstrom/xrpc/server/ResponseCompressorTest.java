@@ -0,0 +1,137 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.CharsetUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.jupiter.api.Test;
+
+class ResponseCompressorTest {
+  private static final String BODY = Strings.repeat("{\"name\":\"value\"},", 100);
+
+  private final ResponseCompressor compressor =
+      new ResponseCompressor(6, 64, ImmutableList.of("application/json", "text/"), 1024 * 1024);
+
+  private static FullHttpResponse response(String body, String contentType) {
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK,
+            Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    return response;
+  }
+
+  private FullHttpResponse compress(FullHttpResponse response, String acceptEncoding) {
+    return compressor.compress(response, acceptEncoding, "/things", ByteBufAllocator.DEFAULT);
+  }
+
+  private static String decode(FullHttpResponse response) throws IOException {
+    InputStream in = new ByteBufInputStream(response.content(), true);
+    if (response.headers().contains(HttpHeaderNames.CONTENT_ENCODING, "gzip", true)) {
+      in = new GZIPInputStream(in);
+    } else {
+      in = new InflaterInputStream(in);
+    }
+    return new String(ByteStreams.toByteArray(in), CharsetUtil.UTF_8);
+  }
+
+  @Test
+  void choosesEncoding() {
+    assertEquals(HttpHeaderValues.GZIP, ResponseCompressor.chooseEncoding("gzip, deflate, br"));
+    assertEquals(HttpHeaderValues.DEFLATE, ResponseCompressor.chooseEncoding("deflate"));
+    assertEquals(
+        HttpHeaderValues.DEFLATE, ResponseCompressor.chooseEncoding("gzip;q=0.5, deflate;q=0.8"));
+    assertEquals(HttpHeaderValues.DEFLATE, ResponseCompressor.chooseEncoding("gzip;q=0, *"));
+    assertNull(ResponseCompressor.chooseEncoding("identity, br"));
+    assertNull(ResponseCompressor.chooseEncoding("*;q=0"));
+    assertNull(ResponseCompressor.chooseEncoding(null));
+  }
+
+  @Test
+  void compressesWithGzip() throws IOException {
+    FullHttpResponse response = compress(response(BODY, "application/json"), "gzip");
+
+    assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    assertEquals("accept-encoding", response.headers().get(HttpHeaderNames.VARY));
+    int length = response.content().readableBytes();
+    assertTrue(length < BODY.length() / 4);
+    assertEquals(length, (int) response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH));
+    assertEquals(BODY, decode(response));
+  }
+
+  @Test
+  void compressesWithDeflate() throws IOException {
+    FullHttpResponse response = compress(response(BODY, "text/plain"), "deflate");
+
+    assertEquals("deflate", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    assertEquals(BODY, decode(response));
+  }
+
+  @Test
+  void leavesIneligibleResponsesAlone() {
+    FullHttpResponse small = response("{}", "application/json");
+    assertSame(small, compress(small, "gzip"));
+    FullHttpResponse image = response(BODY, "image/png");
+    assertSame(image, compress(image, "gzip"));
+
+    FullHttpResponse unaccepted = response(BODY, "application/json");
+    assertSame(unaccepted, compress(unaccepted, null));
+    assertEquals("accept-encoding", unaccepted.headers().get(HttpHeaderNames.VARY));
+  }
+
+  @Test
+  void compressesPrebuiltResponseWithoutChangingItsHeaders() throws IOException {
+    Http2Headers prebuilt =
+        new DefaultHttp2Headers()
+            .status(HttpResponseStatus.OK.codeAsText())
+            .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+    FullHttpResponse response =
+        compress(
+            new PrebuiltResponse(prebuilt, Unpooled.copiedBuffer(BODY, CharsetUtil.UTF_8)), "gzip");
+
+    assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    assertEquals("application/json", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    assertEquals(BODY, decode(response));
+    assertEquals(2, prebuilt.size());
+
+    PrebuiltResponse small =
+        new PrebuiltResponse(prebuilt, Unpooled.copiedBuffer("{}", CharsetUtil.UTF_8));
+    assertSame(small, compress(small, "gzip"));
+  }
+
+  @Test
+  void cachesCompressedBodyByEtag() throws IOException {
+    FullHttpResponse first = response(BODY, "application/json");
+    first.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    assertEquals("W/\"v1\"", compress(first, "gzip").headers().get(HttpHeaderNames.ETAG));
+
+    // The same ETag promises the same body, so the cached form is sent without compressing this
+    // one.
+    FullHttpResponse second = response(BODY.toUpperCase(), "application/json");
+    second.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    assertEquals(BODY, decode(compress(second, "gzip")));
+
+    FullHttpResponse uncached = response(BODY.toUpperCase(), "application/json");
+    uncached.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    uncached.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+    assertEquals(BODY.toUpperCase(), decode(compress(uncached, "gzip")));
+  }
+}
@@ -0,0 +1,148 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codahale.metrics.Meter;
+import com.nordstrom.xrpc.server.http.RouteTrie;
+import io.netty.handler.codec.http.HttpMethod;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RouteTableTest {
+  private final Handler handler = xrpcRequest -> null;
+
+  private RouteTable table(int cacheSize, Meter hits, Meter misses) {
+    return RouteTable.builder()
+        .addRoute("/people/{person}", handler)
+        .build(cacheSize, hits, misses);
+  }
+
+  @Test
+  void match_cached() {
+    Meter hits = new Meter();
+    Meter misses = new Meter();
+    RouteTable table = table(10, hits, misses);
+
+    RouteTrie.Match<MethodDispatch> first = table.match("/people/jeff");
+    assertEquals("jeff", first.getVariables().get("person"));
+    assertSame(first, table.match("/people/jeff"));
+    assertEquals(1, hits.getCount());
+    assertEquals(1, misses.getCount());
+
+    // Paths that don't match aren't cached.
+    assertNull(table.match("/nope"));
+    assertNull(table.match("/nope"));
+    assertEquals(1, hits.getCount());
+    assertEquals(3, misses.getCount());
+  }
+
+  @Test
+  void match_uncached() {
+    Meter hits = new Meter();
+    Meter misses = new Meter();
+    RouteTable table = table(0, hits, misses);
+
+    assertNotSame(table.match("/people/jeff"), table.match("/people/jeff"));
+    assertEquals(0, hits.getCount());
+    assertEquals(0, misses.getCount());
+  }
+
+  @Test
+  void builder_compilesAllRoutes() {
+    Handler get = xrpcRequest -> null;
+    Handler post = xrpcRequest -> null;
+    RouteTable table =
+        RouteTable.builder()
+            .addRoute("/people", get, HttpMethod.GET)
+            .addRoute("/people", post, HttpMethod.POST)
+            .addRoute("/people/{person}", handler)
+            .build(0, null, null);
+
+    assertEquals(2, table.getRoutes().size());
+    MethodDispatch people = table.match("/people").getValue();
+    assertSame(get, people.handler(HttpMethod.GET).handler());
+    assertSame(post, people.handler(HttpMethod.POST).handler());
+    assertNull(people.handler(HttpMethod.PUT));
+    assertSame(
+        handler, table.match("/people/jeff").getValue().handler(HttpMethod.DELETE).handler());
+  }
+
+  @Test
+  void toBuilder_leavesTableUnchanged() {
+    RouteTable table = table(0, null, null);
+    RouteTable extended = table.toBuilder().addRoute("/places", handler).build(0, null, null);
+
+    assertNull(table.match("/places"));
+    assertNotNull(extended.match("/places"));
+    assertNotNull(extended.match("/people/jeff"));
+  }
+
+  @Test
+  void toBuilder_keepsRouteOptions() {
+    AsyncHandler async = xrpcRequest -> null;
+    RouteTable table =
+        RouteTable.builder()
+            .addAsyncRoute("/slow", async, HttpMethod.GET)
+            .setRouteOptions(
+                "/slow", RouteOptions.builder().asyncTimeout(5, TimeUnit.SECONDS).build())
+            .addRoute("/heavy", handler, HttpMethod.POST)
+            .setRouteOptions("/heavy", RouteOptions.builder().execution(Execution.OFFLOAD).build())
+            .build(0, null, null)
+            .toBuilder()
+            .build(0, null, null);
+
+    assertEquals(
+        RouteHandler.Kind.ASYNC, table.match("/slow").getValue().handler(HttpMethod.GET).kind());
+    RouteOptions slow = table.match("/slow").getValue().options();
+    assertEquals(5000, slow.getAsyncTimeoutMillis());
+    assertEquals(Execution.INLINE, slow.getExecution());
+    RouteOptions heavy = table.match("/heavy").getValue().options();
+    assertEquals(RouteOptions.DEFAULT_TIMEOUT, heavy.getAsyncTimeoutMillis());
+    assertEquals(Execution.OFFLOAD, heavy.getExecution());
+  }
+
+  @Test
+  void routeOptions_applyToEveryMethodWheneverTheyAreRegistered() {
+    RouteTable table =
+        RouteTable.builder()
+            .addRoute("/people", handler, HttpMethod.GET)
+            .setRouteOptions("/people", RouteOptions.builder().maxPayloadBytes(16).build())
+            .addRoute("/people", handler, HttpMethod.POST)
+            .addRoute("/places", handler, HttpMethod.POST)
+            .build(0, null, null);
+
+    MethodDispatch people = table.match("/people").getValue();
+    assertEquals(16, people.options().getMaxPayloadBytes());
+    assertEquals(handler, people.handler(HttpMethod.GET).handler());
+    assertEquals(handler, people.handler(HttpMethod.POST).handler());
+    assertEquals(RouteOptions.DEFAULT, table.match("/places").getValue().options());
+  }
+
+  @Test
+  void routeOptions_withoutHandlersAddNoRoute() {
+    RouteTable table =
+        RouteTable.builder()
+            .setRouteOptions("/people", RouteOptions.builder().maxPayloadBytes(16).build())
+            .build(0, null, null);
+
+    assertNull(table.match("/people"));
+  }
+
+  @Test
+  void addStreamingRoute_registersItsOwnKindOfHandler() {
+    StreamingHandler upload = xrpcRequest -> null;
+    MethodDispatch dispatch =
+        RouteTable.builder()
+            .addStreamingRoute("/upload", upload, HttpMethod.POST)
+            .addRoute("/upload", handler, HttpMethod.GET)
+            .build(0, null, null)
+            .match("/upload")
+            .getValue();
+
+    RouteHandler post = dispatch.handler(HttpMethod.POST);
+    assertEquals(RouteHandler.Kind.STREAMING, post.kind());
+    assertSame(upload, post.streamingHandler());
+    assertThrows(IllegalStateException.class, post::handler);
+    assertEquals(RouteHandler.Kind.ORDINARY, dispatch.handler(HttpMethod.GET).kind());
+  }
+}
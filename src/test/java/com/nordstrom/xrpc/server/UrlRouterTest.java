@@ -0,0 +1,709 @@
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nordstrom.xrpc.Deadline;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.util.CharsetUtil;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class UrlRouterTest {
+  private final List<String> chunks = new ArrayList<>();
+  private XrpcChannelContext xctx;
+  private Throwable aborted;
+  private final Feed feedBody = new Feed();
+  private StreamingResponse feed;
+  private final Feed otherFeedBody = new Feed();
+  private StreamingResponse otherFeed;
+  /** The responses of the asynchronous handler, in the order it was called. */
+  private final List<SettableFuture<HttpResponse>> pending = new ArrayList<>();
+  /** The requests the asynchronous handler was called with, in order. */
+  private final List<XrpcRequest> asyncRequests = new ArrayList<>();
+  /** Counted down once the blocking handler has started. */
+  private final CountDownLatch blocking = new CountDownLatch(1);
+  /** Completes once the blocking handler is interrupted. */
+  private final SettableFuture<Void> interrupted = SettableFuture.create();
+
+  /** A body that produces its chunks over time, ending with an empty string. */
+  private static class Feed extends ArrayDeque<String> implements ChunkedInput<ByteBuf> {
+    private boolean ended;
+
+    @Override
+    public boolean isEndOfInput() {
+      return ended;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) {
+      return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) {
+      String next = poll();
+      if (next == null) {
+        return null;
+      }
+      ended = next.isEmpty();
+      return Unpooled.copiedBuffer(next, CharsetUtil.UTF_8);
+    }
+
+    @Override
+    public long length() {
+      return -1;
+    }
+
+    @Override
+    public long progress() {
+      return 0;
+    }
+  }
+
+  @BeforeEach
+  void setUp() {
+    StreamingHandler upload =
+        request ->
+            new BodyListener() {
+              @Override
+              public void onData(ByteBuf data) {
+                chunks.add(data.toString(CharsetUtil.UTF_8));
+              }
+
+              @Override
+              public HttpResponse onComplete() {
+                return new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED);
+              }
+
+              @Override
+              public void onAbort(Throwable cause) {
+                aborted = cause;
+              }
+            };
+    Handler echo =
+        request ->
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                request.getH1Request().content().copy());
+
+    Handler download =
+        request ->
+            new StreamingResponse(
+                HttpResponseStatus.OK,
+                new ChunkedStream(
+                    new ByteArrayInputStream("0123456789".getBytes(CharsetUtil.UTF_8)), 4));
+    feed = new StreamingResponse(HttpResponseStatus.OK, feedBody);
+    otherFeed = new StreamingResponse(HttpResponseStatus.OK, otherFeedBody);
+
+    Handler threadName =
+        request ->
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(Thread.currentThread().getName(), CharsetUtil.UTF_8));
+    AsyncHandler asyncEcho =
+        request -> {
+          asyncRequests.add(request);
+          SettableFuture<HttpResponse> response = SettableFuture.create();
+          pending.add(response);
+          return response;
+        };
+
+    Handler blocker =
+        request -> {
+          blocking.countDown();
+          try {
+            Thread.sleep(Long.MAX_VALUE);
+          } catch (InterruptedException e) {
+            interrupted.set(null);
+          }
+          return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        };
+
+    RouteOptions offloaded = RouteOptions.builder().execution(Execution.OFFLOAD).build();
+    xctx = XrpcChannelContext.builder().requestMeter(new Meter()).build();
+    xctx.getRouteTable()
+        .set(
+            RouteTable.builder()
+                .addStreamingRoute("/upload", upload, HttpMethod.POST)
+                .addRoute("/echo", echo, HttpMethod.POST)
+                .addRoute("/small-echo", echo, HttpMethod.POST)
+                .setRouteOptions("/small-echo", RouteOptions.builder().maxPayloadBytes(4).build())
+                .addStreamingRoute("/small-upload", upload, HttpMethod.POST)
+                .setRouteOptions("/small-upload", RouteOptions.builder().maxPayloadBytes(4).build())
+                .addRoute("/download", download, HttpMethod.GET)
+                .addRoute("/feed", request -> feed, HttpMethod.GET)
+                .addRoute("/other-feed", request -> otherFeed, HttpMethod.GET)
+                .addRoute("/offloaded", threadName, HttpMethod.GET)
+                .setRouteOptions("/offloaded", offloaded)
+                .addRoute("/blocking", blocker, HttpMethod.GET)
+                .setRouteOptions("/blocking", offloaded)
+                .addAsyncRoute("/async", asyncEcho, HttpMethod.POST)
+                .addAsyncRoute("/slow", asyncEcho, HttpMethod.POST)
+                .setRouteOptions(
+                    "/slow", RouteOptions.builder().asyncTimeout(1, TimeUnit.MILLISECONDS).build())
+                .addRoute(
+                    "/prebuilt",
+                    request ->
+                        new PrebuiltResponse(
+                            new DefaultHttp2Headers()
+                                .status(HttpResponseStatus.OK.codeAsText())
+                                .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN),
+                            Unpooled.copiedBuffer("prebuilt", CharsetUtil.UTF_8)),
+                    HttpMethod.GET)
+                .build(0, null, null));
+  }
+
+  /** Returns a router for a server whose body limit is the given size. */
+  private UrlRouter router(int maxPayloadBytes) {
+    XrpcChannelContext limited =
+        XrpcChannelContext.builder()
+            .requestMeter(new Meter())
+            .maxPayloadBytes(maxPayloadBytes)
+            .build();
+    limited.getRouteTable().set(xctx.getRouteTable().get());
+    return new UrlRouter(limited);
+  }
+
+  private static HttpRequest post(String uri) {
+    return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri);
+  }
+
+  private static DefaultHttpContent chunk(String data) {
+    return new DefaultHttpContent(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
+  }
+
+  private static DefaultLastHttpContent lastChunk(String data) {
+    return new DefaultLastHttpContent(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
+  }
+
+  @Test
+  void streamsBodyAsItArrives() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/upload"), chunk("hello "));
+    assertEquals(1, chunks.size());
+    assertNull(channel.readOutbound(), "no response until the body is complete");
+
+    channel.writeInbound(chunk("streaming "), lastChunk("world"));
+    assertEquals("hello streaming world", String.join("", chunks));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.CREATED, response.status());
+    assertNull(aborted);
+  }
+
+  @Test
+  void servesPrebuiltResponseAsHttp1() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/prebuilt"));
+    FullHttpResponse response = channel.readOutbound();
+    assertFalse(response instanceof PrebuiltResponse);
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("text/plain", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    assertEquals("prebuilt", response.content().toString(CharsetUtil.UTF_8));
+    response.release();
+  }
+
+  @Test
+  void abortsStreamWhenConnectionCloses() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/upload"), chunk("partial"));
+    channel.close();
+    assertNotNull(aborted);
+  }
+
+  @Test
+  void collectsBodyForOrdinaryHandler() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/echo"), chunk("one "), chunk("two "), lastChunk("three"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("one two three", response.content().toString(CharsetUtil.UTF_8));
+    response.release();
+  }
+
+  @Test
+  void rejectsBodyOverDeclaredLimit() {
+    EmbeddedChannel channel = new EmbeddedChannel(router(8));
+    HttpRequest request = post("/echo");
+    HttpUtil.setContentLength(request, 9);
+
+    channel.writeInbound(request);
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.status());
+    assertEquals(
+        HttpHeaderValues.CLOSE.toString(), response.headers().get(HttpHeaderNames.CONNECTION));
+
+    // The rest of the body is dropped.
+    channel.writeInbound(chunk("12345"), lastChunk("6789"));
+    assertNull(channel.readOutbound());
+  }
+
+  @Test
+  void rejectsChunkedBodyOverLimit() {
+    EmbeddedChannel channel = new EmbeddedChannel(router(8));
+
+    channel.writeInbound(post("/echo"), chunk("12345"));
+    assertNull(channel.readOutbound());
+    channel.writeInbound(chunk("6789"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.status());
+  }
+
+  @Test
+  void appliesRouteLimit() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+    HttpRequest request = post("/small-echo");
+    HttpUtil.setContentLength(request, 5);
+
+    channel.writeInbound(request);
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.status());
+  }
+
+  @Test
+  void limitsStreamedBodyWhenRouteDoes() {
+    EmbeddedChannel channel = new EmbeddedChannel(router(2));
+
+    channel.writeInbound(post("/upload"), chunk("1234"));
+    assertNull(channel.readOutbound(), "the server's limit doesn't apply to streamed bodies");
+
+    channel.writeInbound(post("/small-upload"), chunk("1234"));
+    assertNull(channel.readOutbound());
+    channel.writeInbound(chunk("5"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.status());
+    assertNotNull(aborted);
+  }
+
+  @Test
+  void sendsContinueOnceRequestIsAccepted() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+    HttpRequest request = post("/echo");
+    HttpUtil.setContentLength(request, 3);
+    HttpUtil.set100ContinueExpected(request, true);
+
+    channel.writeInbound(request);
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.CONTINUE, response.status());
+
+    channel.writeInbound(lastChunk("abc"));
+    response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.OK, response.status());
+    response.release();
+  }
+
+  @Test
+  void rejectsBodyBeforeContinue() {
+    EmbeddedChannel channel = new EmbeddedChannel(router(8));
+    HttpRequest request = post("/echo");
+    HttpUtil.setContentLength(request, 9);
+    HttpUtil.set100ContinueExpected(request, true);
+
+    channel.writeInbound(request);
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.status());
+    assertNull(channel.readOutbound(), "the client is never told to continue");
+  }
+
+  @Test
+  void rejectsUnknownExpectation() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+    HttpRequest request = post("/echo");
+    HttpUtil.setContentLength(request, 3);
+    request.headers().set(HttpHeaderNames.EXPECT, "something-else");
+
+    channel.writeInbound(request);
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.EXPECTATION_FAILED, response.status());
+  }
+
+  @Test
+  void answersUnknownRouteBeforeBody() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/missing"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.NOT_FOUND, response.status());
+
+    channel.writeInbound(lastChunk("ignored"), post("/echo"), lastChunk("next"));
+    response = channel.readOutbound();
+    assertEquals("next", response.content().toString(CharsetUtil.UTF_8));
+    response.release();
+  }
+
+  private static String content(HttpContent content) {
+    String data = content.content().toString(CharsetUtil.UTF_8);
+    content.release();
+    return data;
+  }
+
+  @Test
+  void streamsResponseBody() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/download"));
+    HttpResponse response = channel.readOutbound();
+    assertFalse(response instanceof FullHttpResponse);
+    assertTrue(HttpUtil.isTransferEncodingChunked(response));
+    assertEquals("0123", content(channel.readOutbound()));
+    assertEquals("4567", content(channel.readOutbound()));
+    HttpContent last = channel.readOutbound();
+    assertTrue(last instanceof LastHttpContent);
+    assertEquals("89", content(last));
+    assertTrue(channel.config().isAutoRead(), "reads resume once the body is written");
+  }
+
+  @Test
+  void resumesResponseBodyWhenDataArrives() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/feed"));
+    assertTrue(channel.readOutbound() instanceof HttpResponse);
+    assertNull(channel.readOutbound());
+    assertFalse(channel.config().isAutoRead(), "no more requests are read during the body");
+
+    feedBody.add("first");
+    feed.resumeTransfer();
+    channel.runPendingTasks();
+    assertEquals("first", content(channel.readOutbound()));
+
+    feedBody.add("");
+    feed.resumeTransfer();
+    channel.runPendingTasks();
+    assertTrue(channel.readOutbound() instanceof LastHttpContent);
+    assertTrue(channel.config().isAutoRead());
+  }
+
+  @Test
+  void writesQueuedResponseBodyOnlyOnceEarlierOnesFinish() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/feed"));
+    channel.writeInbound(
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/other-feed"));
+    otherFeedBody.add("early");
+    otherFeed.resumeTransfer();
+    channel.runPendingTasks();
+    assertEquals(1, otherFeedBody.size(), "a queued body isn't read ahead of its turn");
+
+    feedBody.add("first");
+    feedBody.add("");
+    feed.resumeTransfer();
+    channel.runPendingTasks();
+    assertTrue(otherFeedBody.isEmpty(), "the queued body starts once the first finishes");
+    otherFeedBody.add("");
+    otherFeed.resumeTransfer();
+    channel.runPendingTasks();
+
+    // The heads go out at once; a pipelining handler in front would keep them in order.
+    assertTrue(channel.readOutbound() instanceof HttpResponse);
+    assertTrue(channel.readOutbound() instanceof HttpResponse);
+    assertEquals("first", content(channel.readOutbound()));
+    assertEquals("", content(channel.readOutbound()));
+    assertEquals("early", content(channel.readOutbound()));
+    assertEquals("", content(channel.readOutbound()));
+    assertTrue(channel.config().isAutoRead(), "reads resume once both bodies are written");
+  }
+
+  /** Respond to the given call of the asynchronous handler with the body of its request. */
+  private void respondAsync(int call) {
+    XrpcRequest request = asyncRequests.get(call);
+    pending
+        .get(call)
+        .set(
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                request.getH1Request().content().copy()));
+  }
+
+  @Test
+  void writesAsyncResponseWhenReady() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/async"), chunk("one "), lastChunk("two"));
+    assertNull(channel.readOutbound(), "no response until the future completes");
+
+    respondAsync(0);
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("one two", response.content().toString(CharsetUtil.UTF_8));
+    assertEquals(
+        0, asyncRequests.get(0).getH1Request().refCnt(), "the body is released once handled");
+    response.release();
+  }
+
+  @Test
+  void readsNextRequestWhileAsyncHandlerWaits() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/async"), lastChunk("first"));
+    channel.writeInbound(post("/async"), lastChunk("second"));
+    assertEquals(2, pending.size());
+
+    // Without a pipelining handler in front, the responses go out as they are ready.
+    respondAsync(1);
+    respondAsync(0);
+    FullHttpResponse second = channel.readOutbound();
+    assertEquals("second", second.content().toString(CharsetUtil.UTF_8));
+    second.release();
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals("first", response.content().toString(CharsetUtil.UTF_8));
+    response.release();
+  }
+
+  @Test
+  void readsNoResponseBodyWhileEarlierResponseIsPending() {
+    HttpPipeliningHandler pipelining = new HttpPipeliningHandler(16);
+    EmbeddedChannel channel = new EmbeddedChannel(pipelining, new UrlRouter(xctx));
+
+    channel.writeInbound(post("/async"), lastChunk("first"));
+    channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/feed"));
+    feedBody.add("one");
+    feedBody.add("two");
+    feed.resumeTransfer();
+    channel.runPendingTasks();
+    assertNull(channel.readOutbound());
+    assertEquals(2, feedBody.size(), "no chunks are read while the response waits its turn");
+    assertEquals(1, pipelining.held(), "only the head of the streamed response is held");
+
+    respondAsync(0);
+    channel.runPendingTasks();
+    FullHttpResponse first = channel.readOutbound();
+    assertEquals("first", first.content().toString(CharsetUtil.UTF_8));
+    first.release();
+    assertTrue(channel.readOutbound() instanceof HttpResponse);
+    assertEquals("one", content(channel.readOutbound()));
+    assertEquals("two", content(channel.readOutbound()));
+    assertEquals(0, pipelining.held());
+  }
+
+  @Test
+  void failsAsyncHandler() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/async"), lastChunk("body"));
+    pending.remove(0).setException(new IllegalStateException("backend down"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR, response.status());
+  }
+
+  @Test
+  void timesOutSlowAsyncHandler() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/slow"), lastChunk("body"));
+    SettableFuture<HttpResponse> slow = pending.get(0);
+    Thread.sleep(10);
+    channel.runScheduledPendingTasks();
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, response.status());
+    assertTrue(slow.isCancelled());
+    assertEquals(
+        0, asyncRequests.get(0).getH1Request().refCnt(), "the body is released on timeout");
+  }
+
+  @Test
+  void cancelsAsyncRequestWhenConnectionCloses() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UrlRouter(xctx));
+
+    channel.writeInbound(post("/async"), lastChunk("body"));
+    XrpcRequest request = asyncRequests.get(0);
+    ListenableFuture<Void> cancellation = request.getCancellation();
+    assertFalse(cancellation.isDone());
+
+    channel.close();
+    assertTrue(request.isCancelled());
+    assertTrue(cancellation.isDone());
+    assertTrue(pending.get(0).isCancelled(), "the handler's future is cancelled");
+    assertEquals(0, request.getH1Request().refCnt(), "the body is released");
+    assertNull(channel.readOutbound());
+  }
+
+  /** Returns a router for a server that offloads handlers to the given executor. */
+  private UrlRouter router(ListeningExecutorService handlerExecutor, Meter rejected) {
+    XrpcChannelContext offloading =
+        XrpcChannelContext.builder()
+            .requestMeter(new Meter())
+            .handlerExecutor(handlerExecutor)
+            .handlerRejectedMeter(rejected)
+            .build();
+    offloading.getRouteTable().set(xctx.getRouteTable().get());
+    return new UrlRouter(offloading);
+  }
+
+  @Test
+  void runsOffloadedHandlerOnExecutor() throws Exception {
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(
+            Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("offloaded").build()));
+    try {
+      EmbeddedChannel channel = new EmbeddedChannel(router(executor, new Meter()));
+
+      channel.writeInbound(
+          new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/offloaded"));
+      // Once the executor has run a later task, it has run the handler and written its response.
+      executor.submit(() -> null).get();
+      FullHttpResponse response = channel.readOutbound();
+      assertEquals("offloaded", response.content().toString(CharsetUtil.UTF_8));
+      response.release();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void interruptsOffloadedHandlerWhenConnectionCloses() throws Exception {
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    try {
+      EmbeddedChannel channel = new EmbeddedChannel(router(executor, new Meter()));
+
+      channel.writeInbound(
+          new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/blocking"));
+      assertTrue(blocking.await(5, TimeUnit.SECONDS));
+      channel.close();
+      interrupted.get(5, TimeUnit.SECONDS);
+      assertNull(channel.readOutbound());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns a router for a server that takes deadlines in the usual header, and offloads handlers
+   * to the given executor.
+   */
+  private UrlRouter routerWithDeadlines(ListeningExecutorService handlerExecutor, Meter expired) {
+    XrpcChannelContext withDeadlines =
+        XrpcChannelContext.builder()
+            .requestMeter(new Meter())
+            .handlerExecutor(handlerExecutor)
+            .deadlineHeader(Deadline.HEADER)
+            .expiredRequestMeter(expired)
+            .build();
+    withDeadlines.getRouteTable().set(xctx.getRouteTable().get());
+    return new UrlRouter(withDeadlines);
+  }
+
+  @Test
+  void answersExpiredRequestWithoutHandlingIt() {
+    Meter expired = new Meter();
+    EmbeddedChannel channel = new EmbeddedChannel(routerWithDeadlines(null, expired));
+
+    HttpRequest request = post("/async");
+    request.headers().set(Deadline.HEADER, "0m");
+    channel.writeInbound(request, lastChunk("body"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, response.status());
+    assertTrue(asyncRequests.isEmpty(), "the handler isn't called");
+    assertEquals(1, expired.getCount());
+  }
+
+  @Test
+  void timesOutAsyncHandlerAtRequestDeadline() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(routerWithDeadlines(null, new Meter()));
+
+    HttpRequest request = post("/async");
+    request.headers().set(Deadline.HEADER, "20m");
+    channel.writeInbound(request, lastChunk("body"));
+    assertTrue(asyncRequests.get(0).getDeadline().remaining(TimeUnit.MILLISECONDS) <= 20);
+    Thread.sleep(50);
+    channel.runScheduledPendingTasks();
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, response.status());
+    assertTrue(pending.get(0).isCancelled());
+  }
+
+  @Test
+  void dropsOffloadedRequestWhoseDeadlinePassesInTheQueue() throws Exception {
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    try {
+      Meter expired = new Meter();
+      EmbeddedChannel channel = new EmbeddedChannel(routerWithDeadlines(executor, expired));
+      CountDownLatch busy = new CountDownLatch(1);
+      executor.submit(
+          () -> {
+            busy.await();
+            return null;
+          });
+
+      HttpRequest request =
+          new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/offloaded");
+      request.headers().set(Deadline.HEADER, "50m");
+      channel.writeInbound(request);
+      // The request's timeout isn't run by the test's event loop, so only the queue can drop it.
+      Thread.sleep(100);
+      busy.countDown();
+      executor.submit(() -> null).get();
+      FullHttpResponse response = channel.readOutbound();
+      assertEquals(HttpResponseStatus.GATEWAY_TIMEOUT, response.status());
+      assertEquals(1, expired.getCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void rejectsOffloadedRequestWhenExecutorIsFull() {
+    ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+    executor.shutdown();
+    Meter rejected = new Meter();
+    EmbeddedChannel channel = new EmbeddedChannel(router(executor, rejected));
+
+    channel.writeInbound(
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/offloaded"));
+    FullHttpResponse response = channel.readOutbound();
+    assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, response.status());
+    assertEquals(1, rejected.getCount());
+  }
+}
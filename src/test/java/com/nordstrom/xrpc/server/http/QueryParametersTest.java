@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+public class QueryParametersTest {
+  @Test
+  public void testParse_noQuery() {
+    assertSame(QueryParameters.EMPTY, QueryParameters.parse("/people"));
+    assertSame(QueryParameters.EMPTY, QueryParameters.parse("/people?"));
+    assertSame(QueryParameters.EMPTY, QueryParameters.parse("/people?&&#a=b"));
+    assertNull(QueryParameters.EMPTY.get("a"));
+  }
+
+  @Test
+  public void testGet() {
+    QueryParameters query = QueryParameters.parse("/people?name=bob&&empty=&flag&name=jeff#x=y");
+
+    assertEquals(4, query.size());
+    assertEquals("bob", query.get("name"), "first value should win");
+    assertEquals(ImmutableList.of("bob", "jeff"), query.getAll("name"));
+    assertEquals("", query.get("empty"));
+    assertEquals("", query.get("flag"));
+    assertTrue(query.contains("flag"));
+    assertFalse(query.contains("x"), "fragment is not part of the query");
+    assertNull(query.get("nam"));
+    assertEquals(ImmutableList.of(), query.getAll("nope"));
+  }
+
+  @Test
+  public void testGet_decoding() {
+    QueryParameters query =
+        QueryParameters.parse("/?first+name=Bob+Smith&city=S%C3%A3o%20Paulo&bad=%zz");
+
+    assertEquals("Bob Smith", query.get("first name"));
+    assertEquals("São Paulo", query.get("city"));
+    assertEquals("%zz", query.get("bad"), "malformed escapes are left alone");
+    assertEquals(
+        ImmutableMap.of(
+            "first name", ImmutableList.of("Bob Smith"),
+            "city", ImmutableList.of("São Paulo"),
+            "bad", ImmutableList.of("%zz")),
+        query.toMap());
+  }
+
+  @Test
+  public void testTypedAccessors() {
+    QueryParameters query =
+        QueryParameters.parse(
+            "/?age=42&neg=-7&big=9223372036854775807&min=-9223372036854775808&over=2147483648"
+                + "&esc=%2B5&word=abc&yes=TRUE&no=nope&flag");
+
+    assertEquals(42, query.getInt("age", 0));
+    assertEquals(-7, query.getInt("neg", 0));
+    assertEquals(3, query.getInt("missing", 3));
+    assertEquals(Long.MAX_VALUE, query.getLong("big", 0));
+    assertEquals(Long.MIN_VALUE, query.getLong("min", 0));
+    assertEquals(2147483648L, query.getLong("over", 0));
+    assertEquals(5, query.getInt("esc", 0));
+    assertThrows(NumberFormatException.class, () -> query.getInt("over", 0));
+    assertThrows(NumberFormatException.class, () -> query.getInt("word", 0));
+    assertThrows(NumberFormatException.class, () -> query.getInt("flag", 0));
+    assertThrows(
+        NumberFormatException.class,
+        () -> QueryParameters.parse("/?n=9223372036854775808").getLong("n", 0));
+
+    assertTrue(query.getBoolean("yes", false));
+    assertFalse(query.getBoolean("no", true));
+    assertTrue(query.getBoolean("flag", false), "a bare flag counts as true");
+    assertTrue(query.getBoolean("missing", true));
+  }
+}
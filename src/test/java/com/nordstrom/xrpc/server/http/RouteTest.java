@@ -19,6 +19,7 @@ package com.nordstrom.xrpc.server.http;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Map;
@@ -87,4 +88,18 @@ public class RouteTest {
     assertEquals("usa", groups.get("country"), "country variable should bind correctly");
     assertEquals("seattle", groups.get("city"), "city variable should bind correctly");
   }
+
+  @Test
+  public void testVariables() {
+    Route route = Route.build("/api/location/{country}/{city}");
+    assertEquals(2, route.variableCount(), "should have exactly two variables");
+    assertEquals(1, route.variableIndex("city"), "variables should be indexed in path order");
+    assertEquals(-1, route.variableIndex("state"), "unknown variables have no index");
+
+    PathVariables variables = route.variables("/api/location/usa/seattle");
+    assertNotNull(variables, "null variables from route.variables");
+    assertEquals("usa", variables.get(0), "country variable should bind correctly");
+    assertEquals("seattle", variables.get("city"), "city variable should bind correctly");
+    assertNull(route.variables("/api/location/usa"), "non-matching path should be null");
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Ordering;
+import org.junit.jupiter.api.Test;
+
+public class RouteTrieTest {
+  private static final String[] ROUTES = {
+    "/",
+    "/api/people",
+    "/api/people/",
+    "/api/people/{person}",
+    "/api/people/bob",
+    "/api/people/{person}/friends",
+    "/api/location/{country}/{city}",
+    "/api/person/{age:\\d+}/all",
+    "/api/person/{name:[a-z]+}/all",
+    "/api/files/{name}.{ext:json|xml}",
+    "/api/.*",
+    "/static/{path:.*}",
+    "/static/robots.txt",
+    "/v{version:\\d+}/{resource}",
+  };
+
+  private static final String[] PATHS = {
+    "",
+    "/",
+    "//",
+    "/api",
+    "/api/people",
+    "/api/people/",
+    "/api/people//",
+    "/api/people/bob",
+    "/api/people/jeff",
+    "/api/people/jeff/",
+    "/api/people/jeff/friends",
+    "/api/people/jeff/friends/",
+    "/api/people//friends",
+    "/api/location/usa/seattle",
+    "/api/location//seattle",
+    "/api/person/45/all",
+    "/api/person/abc/all",
+    "/api/person/4a/all",
+    "/api/files/report.json",
+    "/api/files/report.csv",
+    "/api/.*",
+    "/api/person",
+    "/static/robots.txt",
+    "/static/css/site.css",
+    "/static/",
+    "/v2/people",
+    "/vx/people",
+    "/nope",
+  };
+
+  private static ImmutableSortedMap<Route, String> routes() {
+    ImmutableSortedMap.Builder<Route, String> builder =
+        new ImmutableSortedMap.Builder<>(Ordering.usingToString());
+    for (String route : ROUTES) {
+      builder.put(Route.build(route), route);
+    }
+    return builder.build();
+  }
+
+  /** The linear scan that the trie replaces. */
+  private static Route linearMatch(ImmutableSortedMap<Route, String> routes, String path) {
+    for (Route route : routes.descendingKeySet()) {
+      if (route.groups(path) != null) {
+        return route;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testMatch_sameAsLinearScan() {
+    ImmutableSortedMap<Route, String> routes = routes();
+    RouteTrie<String> trie = RouteTrie.build(routes.descendingMap());
+
+    for (String path : PATHS) {
+      Route expected = linearMatch(routes, path);
+      RouteTrie.Match<String> match = trie.match(path);
+      if (expected == null) {
+        assertNull(match, "unexpected match for " + path);
+      } else {
+        assertNotNull(match, "no match for " + path);
+        assertEquals(expected.toString(), match.getValue(), "wrong route for " + path);
+        assertEquals(
+            expected.groups(path), match.getVariables().toMap(), "wrong groups for " + path);
+      }
+    }
+  }
+
+  @Test
+  public void testMatch_groups() {
+    RouteTrie<String> trie = RouteTrie.build(routes().descendingMap());
+
+    PathVariables variables = trie.match("/api/files/report.json").getVariables();
+    assertEquals("report", variables.get("name"), "name variable should bind correctly");
+    assertEquals("json", variables.get("ext"), "ext variable should bind correctly");
+    assertEquals("report", variables.get(0), "variables should be indexed in path order");
+    assertEquals("json", variables.get(1), "variables should be indexed in path order");
+
+    variables = trie.match("/static/css/site.css").getVariables();
+    assertEquals("css/site.css", variables.get("path"), "regex variable should span segments");
+
+    variables = trie.match("/api/people/jeff/friends").getVariables();
+    assertEquals("jeff", variables.get("person"), "person variable should bind correctly");
+    assertNull(variables.get("nope"), "unknown variables should be null");
+
+    assertEquals(0, trie.match("/api/people").getVariables().size(), "literal route has none");
+  }
+
+  @Test
+  public void testMatch_empty() {
+    assertNull(RouteTrie.empty().match("/api/people"), "empty trie should never match");
+    assertNull(RouteTrie.build(routes().descendingMap()).match(null), "null path");
+  }
+
+  @Test
+  public void testIsSegmentSafe() {
+    assertTrue(RouteTrie.Segment.isSegmentSafe("\\d+"));
+    assertTrue(RouteTrie.Segment.isSegmentSafe("[a-z0-9_\\-]+"));
+    assertTrue(RouteTrie.Segment.isSegmentSafe("json|xml"));
+    assertTrue(RouteTrie.Segment.isSegmentSafe("\\.txt"));
+    assertFalse(RouteTrie.Segment.isSegmentSafe(".*"));
+    assertFalse(RouteTrie.Segment.isSegmentSafe("[^.]+"));
+    assertFalse(RouteTrie.Segment.isSegmentSafe("[!-z]+"));
+    assertFalse(RouteTrie.Segment.isSegmentSafe("\\S+"));
+    assertFalse(RouteTrie.Segment.isSegmentSafe("a/b"));
+    assertFalse(RouteTrie.Segment.isSegmentSafe("\\/"));
+  }
+}